@@ -24,10 +24,21 @@ public final class Constants {
         SECURE_SERVER_PORT = getProp("SSL_SERVER_PORT",  8443);
         HOST_NAME = properties.getProperty("HOST_NAME",  "localhost");
         DB_DIRECTORY = properties.getProperty("DB_DIRECTORY",  "db");
+        DB_USE_APPEND_LOG = getProp("DB_USE_APPEND_LOG", false);
+        DB_LOG_SEGMENT_SIZE_BYTES = getProp("DB_LOG_SEGMENT_SIZE_BYTES", 8 * 1024 * 1024);
+        DB_PRELOAD = getProp("DB_PRELOAD", "");
+        DB_SYNC_TO_DISK = getProp("DB_SYNC_TO_DISK", false);
         LOG_LEVELS = convertLoggingStringsToEnums(getProp("LOG_LEVELS", "DEBUG,TRACE,ASYNC_ERROR,AUDIT"));
         USE_VIRTUAL = getProp("USE_VIRTUAL", false);
+        USE_NIO_SELECTOR = getProp("USE_NIO_SELECTOR", false);
+        USE_HTTP2 = getProp("USE_HTTP2", false);
+        WORKER_THREADS = getProp("WORKER_THREADS", 0);
+        WORKER_QUEUE_SIZE = getProp("WORKER_QUEUE_SIZE", 100);
+        MAX_WORKERS_PER_ADDRESS = getProp("MAX_WORKERS_PER_ADDRESS", 0);
         KEYSTORE_PATH = properties.getProperty("KEYSTORE_PATH",  "");
         KEYSTORE_PASSWORD = properties.getProperty("KEYSTORE_PASSWORD",  "");
+        TLS_SESSION_CACHE_SIZE = getProp("TLS_SESSION_CACHE_SIZE", 20_480);
+        TLS_SESSION_TIMEOUT_SECONDS = getProp("TLS_SESSION_TIMEOUT_SECONDS", 24 * 60 * 60);
         REDIRECT_TO_SECURE = getProp("REDIRECT_TO_SECURE", false);
         MAX_READ_SIZE_BYTES = getProp("MAX_READ_SIZE_BYTES",  10 * 1024 * 1024);
         MAX_READ_LINE_SIZE_BYTES = getProp("MAX_READ_LINE_SIZE_BYTES", 500);
@@ -36,6 +47,7 @@ public final class Constants {
         MAX_HEADERS_COUNT = getProp("MAX_HEADERS_COUNT", 70);
         MAX_TOKENIZER_PARTITIONS = getProp("MAX_TOKENIZER_PARTITIONS", 20);
         SOCKET_TIMEOUT_MILLIS = getProp("SOCKET_TIMEOUT_MILLIS", 3 * 1000);
+        TLS_HANDSHAKE_TIMEOUT_MILLIS = getProp("TLS_HANDSHAKE_TIMEOUT_MILLIS", SOCKET_TIMEOUT_MILLIS);
         VULN_SEEKING_JAIL_DURATION = getProp("VULN_SEEKING_JAIL_DURATION", 7 * 24 * 60 * 60 * 1000);
         IS_THE_BRIG_ENABLED = getProp("IS_THE_BRIG_ENABLED", false);
         SUSPICIOUS_ERRORS = getProp("SUSPICIOUS_ERRORS", "");
@@ -43,6 +55,12 @@ public final class Constants {
         START_TIME = System.currentTimeMillis();
         EXTRA_MIME_MAPPINGS = getProp("EXTRA_MIME_MAPPINGS", "");
         STATIC_FILE_CACHE_TIME = getProp("STATIC_FILE_CACHE_TIME", 60 * 5);
+        STATIC_FILES_DISK_DIRECTORY = properties.getProperty("STATIC_FILES_DISK_DIRECTORY", "");
+        STATIC_FILE_MAX_IN_MEMORY_BYTES = getProp("STATIC_FILE_MAX_IN_MEMORY_BYTES", 64 * 1024);
+        STATIC_FILE_CACHE_MAX_BYTES = getProp("STATIC_FILE_CACHE_MAX_BYTES", 20 * 1024 * 1024);
+        MULTIPART_PART_MAX_IN_MEMORY_BYTES = getProp("MULTIPART_PART_MAX_IN_MEMORY_BYTES", 64 * 1024);
+        COMPRESS_DYNAMIC_RESPONSES = getProp("COMPRESS_DYNAMIC_RESPONSES", false);
+        DYNAMIC_COMPRESSION_MIN_BYTES = getProp("DYNAMIC_COMPRESSION_MIN_BYTES", 1024);
     }
 
     /**
@@ -65,6 +83,36 @@ public final class Constants {
      */
     public final String DB_DIRECTORY;
 
+    /**
+     * If true, each database appends its changes to a log on disk,
+     * rather than keeping a file for each piece of data.  Much faster
+     * with many rows.  See {@link minum.database.Db}
+     */
+    public final boolean DB_USE_APPEND_LOG;
+
+    /**
+     * When {@link #DB_USE_APPEND_LOG} is true, this is roughly the largest
+     * a single log file will grow before we start another.  This is also
+     * when we check whether the log needs compacting.
+     */
+    public final int DB_LOG_SEGMENT_SIZE_BYTES;
+
+    /**
+     * The names of databases (as given to {@link minum.Context#getDb}) whose
+     * data should start loading from disk as soon as they are created,
+     * rather than waiting for the first request that needs it.
+     */
+    public final List<String> DB_PRELOAD;
+
+    /**
+     * Changes to the database are written to disk in batches.  If this is
+     * true, each batch waits until the disk confirms the changes are
+     * physically stored (an fsync), so they will survive a power outage.
+     * Slower, but safer.  If false, the operating system decides when
+     * to get them onto the disk.
+     */
+    public final boolean DB_SYNC_TO_DISK;
+
     /**
      * The default logging levels
      */
@@ -76,6 +124,42 @@ public final class Constants {
      */
     public final boolean USE_VIRTUAL;
 
+    /**
+     * If true, the plain (non-TLS) server watches its connections with
+     * a {@link java.nio.channels.Selector}, only giving a connection a
+     * thread once a full request has arrived.  Idle keep-alive connections
+     * then cost us no threads.
+     */
+    public final boolean USE_NIO_SELECTOR;
+
+    /**
+     * If true, the secure server offers HTTP/2 to clients during the
+     * TLS handshake, and speaks it with those who accept.  Others carry
+     * on with HTTP/1.1.  See minum.web.Http2Connection
+     */
+    public final boolean USE_HTTP2;
+
+    /**
+     * The most threads each server will use to handle its connections.  When
+     * they are all busy, up to {@link #WORKER_QUEUE_SIZE} connections wait for
+     * one, and any more are turned away with a 503 Service Unavailable.  If
+     * zero, there is no limit - every connection gets a thread of its own.
+     * The requests on HTTP/2 connections get as many threads again, of their own.
+     */
+    public final int WORKER_THREADS;
+
+    /**
+     * How many connections may wait for a worker, when there are
+     * {@link #WORKER_THREADS} and they are all busy.
+     */
+    public final int WORKER_QUEUE_SIZE;
+
+    /**
+     * The most connections from a single remote address that may be
+     * handled at once.  Any more are turned away.  If zero, there is no limit.
+     */
+    public final int MAX_WORKERS_PER_ADDRESS;
+
     /**
      * The path to the keystore, required for encrypted TLS communication
      */
@@ -86,6 +170,18 @@ public final class Constants {
      */
     public final String KEYSTORE_PASSWORD;
 
+    /**
+     * How many TLS sessions the secure server remembers, so that a client
+     * coming back can resume its session with a quick, abbreviated handshake
+     * instead of a full one.  0 means no limit.
+     */
+    public final int TLS_SESSION_CACHE_SIZE;
+
+    /**
+     * How long, in seconds, a client may resume a TLS session after it began.
+     */
+    public final int TLS_SESSION_TIMEOUT_SECONDS;
+
 
     /**
      * If true, any requests to the non-encrypted port will receive a
@@ -131,6 +227,12 @@ public final class Constants {
      */
     public final int SOCKET_TIMEOUT_MILLIS;
 
+    /**
+     * How long, in milliseconds, to wait on a client to finish
+     * each step of the TLS handshake.  Defaults to {@link #SOCKET_TIMEOUT_MILLIS}
+     */
+    public final int TLS_HANDSHAKE_TIMEOUT_MILLIS;
+
     /**
      * If a client does something that we consider an indicator for attacking, put them in
      * jail for a longer duration.
@@ -180,6 +282,47 @@ public final class Constants {
      */
     public final long STATIC_FILE_CACHE_TIME;
 
+    /**
+     * If set, static files are served from this directory on the
+     * filesystem, rather than from the "static" directory in our
+     * resources.
+     */
+    public final String STATIC_FILES_DISK_DIRECTORY;
+
+    /**
+     * Static files this size or smaller are kept in memory.  Anything
+     * larger is sent straight from disk each time it is requested, so
+     * that large media files don't fill the heap.
+     */
+    public final int STATIC_FILE_MAX_IN_MEMORY_BYTES;
+
+    /**
+     * The most memory, in bytes, the cache of static files may use.  When
+     * it's full, the least-recently requested files are dropped from it.
+     */
+    public final int STATIC_FILE_CACHE_MAX_BYTES;
+
+    /**
+     * When a client uploads multipart form data, each part this size or
+     * smaller is kept in memory.  Anything larger, like an uploaded photo,
+     * is written to a temporary file as it arrives, which is deleted once
+     * the request has been handled.
+     */
+    public final int MULTIPART_PART_MAX_IN_MEMORY_BYTES;
+
+    /**
+     * If true, the text built by every registered endpoint is compressed
+     * with gzip for clients that accept it.  Without this, endpoints can
+     * choose it one at a time - see {@link minum.web.WebFramework#compressing}
+     */
+    public final boolean COMPRESS_DYNAMIC_RESPONSES;
+
+    /**
+     * Endpoint responses smaller than this, in bytes, are not worth
+     * compressing, and are sent as they are.
+     */
+    public final int DYNAMIC_COMPRESSION_MIN_BYTES;
+
     /**
      * A helper method to remove some redundant boilerplate code for grabbing
      * configuration values from app.config
@@ -90,8 +90,13 @@ public final class Context {
      *                 following a null-object pattern.  For example,
      *                 Photograph.EMPTY.  This is used in the Db code
      *                 to deserialize the data when reading.
+     * @see Constants#DB_PRELOAD
      */
     public <T extends DbData<?>> Db<T> getDb(String name, T instance) {
-        return new Db<>(Path.of(constants.DB_DIRECTORY, name), this, instance);
+        Db<T> db = new Db<>(Path.of(constants.DB_DIRECTORY, name), this, instance);
+        if (constants.DB_PRELOAD.contains(name)) {
+            db.loadDataInBackground();
+        }
+        return db;
     }
 }
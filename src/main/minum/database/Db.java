@@ -4,21 +4,26 @@ import minum.Context;
 import minum.logging.ILogger;
 import minum.utils.ActionQueue;
 import minum.utils.FileUtils;
+import minum.utils.InvariantException;
 import minum.utils.StacktraceUtils;
+import minum.utils.ThrowingRunnable;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-import static minum.utils.FileUtils.writeString;
 import static minum.utils.Invariants.*;
 
 /**
@@ -32,63 +37,123 @@ public final class Db<T extends DbData<?>> {
      * The suffix we will apply to each database file
      */
     static final String databaseFileSuffix = ".ddps";
-    private final T emptyInstance;
 
-    // some locks we use for certain operations
+    /**
+     * When loading data in parallel, we won't bother handing a thread
+     * fewer than this many items - it wouldn't be worth the overhead.
+     */
+    private static final int MIN_ITEMS_PER_THREAD = 64;
+
+    /**
+     * How many locks we spread the data across for updates and deletes.
+     * See {@link #lockFor(long)}
+     */
+    private static final int LOCK_STRIPES = 64;
+
     private final ReentrantLock loadDataLock = new ReentrantLock();
-    private final ReentrantLock writeLock = new ReentrantLock();
-    private final ReentrantLock updateLock = new ReentrantLock();
-    private final ReentrantLock deleteLock = new ReentrantLock();
 
     /**
-     * The full path to the file that contains the most-recent index
-     * for this data.  As we add new files, each gets its own index
-     * value.  When we start the program, we use this to determine
-     * where to start counting for new indexes.
+     * Changes to a piece of data take one of these locks, chosen by its
+     * index, so that the change in memory and the order it is sent to
+     * disk agree.  Changes to data with different indexes rarely share
+     * a lock, so they rarely wait on each other.
      */
-    private final Path fullPathForIndexFile;
+    private final ReentrantLock[] stripedLocks;
+
+    /**
+     * All changes to data share the read lock of this.  The write lock is
+     * only taken for the rare occasion that affects all the data at
+     * once - resetting the index when the data is emptied, or building
+     * a new secondary index.  Readers never take this lock.
+     */
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
 
     final AtomicLong index;
 
     private final Path dbDirectory;
     private final ActionQueue actionQueue;
+    private final DbStorage<T> storage;
     private final ILogger logger;
+    private final ExecutorService executorService;
     private final Map<Long, T> data;
-    private boolean hasLoadedData;
+    private volatile boolean hasLoadedData;
+
+    /**
+     * The functions registered with {@link #registerIndex(String, Function)}, by
+     * the name of their index.
+     */
+    private final Map<String, Function<T, String>> indexKeyFunctions;
+
+    /**
+     * The secondary indexes on our data, by name.  Each maps a key (as
+     * calculated by the function in {@link #indexKeyFunctions}) to the
+     * indexes of all the data having that key.
+     */
+    private final Map<String, Map<String, Set<Long>>> indexes;
+
+    /**
+     * Changes made in memory that haven't been sent to disk yet.  Rather
+     * than each change becoming its own task for the action queue, they
+     * collect here and the action queue takes them all in one batch.
+     * See {@link #commitPendingChanges()}
+     */
+    private final Queue<Change<T>> pendingChanges;
+
+    /**
+     * True if the action queue has a commit waiting to run, which
+     * will pick up any changes added to {@link #pendingChanges}.
+     */
+    private final AtomicBoolean isCommitScheduled;
+
+    private final boolean syncToDisk;
+
+    private enum ChangeType { INSERT, UPDATE, DELETE, RESET_INDEX }
+
+    /**
+     * A change made to the data in memory, waiting to be persisted to disk.
+     * @param data the data, or null for deletes and index resets
+     */
+    private record Change<T>(ChangeType type, long dataIndex, T data) {}
 
     /**
      * Constructs a disk-persistence class well-suited for your data.
+     * <p>
+     *     The layout on disk depends on {@link minum.Constants#DB_USE_APPEND_LOG}.
+     *     By default, each piece of data gets its own file (see {@link DbFileStorage}).
+     *     Otherwise, all changes are appended to a log (see {@link DbLogStorage}).
+     * </p>
      * @param dbDirectory the directory for a particular domain (*not* the top-level
      *                     directory).  For example, if the top-level directory is
      *                     "db", and we're building this for a domain "foo", we
      *                     might expect to receive "db/foo" here.
      */
     public Db(Path dbDirectory, Context context, T instance) {
+        this(dbDirectory, context, instance, context.getConstants().DB_USE_APPEND_LOG
+                ? new DbLogStorage<>(dbDirectory, context, instance, context.getConstants().DB_LOG_SEGMENT_SIZE_BYTES)
+                : new DbFileStorage<>(dbDirectory, context, instance));
+    }
+
+    /**
+     * Constructs a disk-persistence class with a particular layout on disk.
+     */
+    Db(Path dbDirectory, Context context, T instance, DbStorage<T> storage) {
         this.hasLoadedData = false;
-        data = new HashMap<>();
+        data = new ConcurrentHashMap<>();
+        this.stripedLocks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripedLocks[i] = new ReentrantLock();
+        }
         actionQueue = new ActionQueue("DatabaseWriter " + dbDirectory, context).initialize();
         this.logger = context.getLogger();
+        this.executorService = context.getExecutorService();
         this.dbDirectory = dbDirectory;
-        this.fullPathForIndexFile = dbDirectory.resolve("index" + databaseFileSuffix);
-        this.emptyInstance = instance;
-
-        if (Files.exists(fullPathForIndexFile)) {
-            long indexValue;
-            try (var fileReader = new FileReader(fullPathForIndexFile.toFile())) {
-                String s = new BufferedReader(fileReader).readLine();
-                mustNotBeNull(s);
-                mustBeFalse(s.isBlank(), "Unless something is terribly broken, we expect a numeric value here");
-                String trim = s.trim();
-                indexValue = Long.parseLong(trim);
-            } catch (Exception e) {
-                throw new RuntimeException("Exception while reading "+fullPathForIndexFile+" in Db constructor", e);
-            }
-
-            this.index = new AtomicLong(indexValue);
-
-        } else {
-            this.index = new AtomicLong(1);
-        }
+        this.storage = storage;
+        this.indexKeyFunctions = new ConcurrentHashMap<>();
+        this.indexes = new ConcurrentHashMap<>();
+        this.pendingChanges = new ConcurrentLinkedQueue<>();
+        this.isCommitScheduled = new AtomicBoolean(false);
+        this.syncToDisk = context.getConstants().DB_SYNC_TO_DISK;
+        this.index = new AtomicLong(storage.readNextIndex());
 
         actionQueue.enqueue("create directory" + dbDirectory, () -> {
             try {
@@ -110,6 +175,7 @@ public final class Db<T extends DbData<?>> {
      * </p>
      */
     void stop() {
+        actionQueue.enqueue("close storage", storage::close);
         actionQueue.stop();
     }
 
@@ -118,6 +184,7 @@ public final class Db<T extends DbData<?>> {
      * we'll wait before crashing it closed.  See {@link ActionQueue#stop(int, int)}
      */
     void stop(int count, int sleepTime) {
+        actionQueue.enqueue("close storage", storage::close);
         actionQueue.stop(count, sleepTime);
     }
 
@@ -128,32 +195,30 @@ public final class Db<T extends DbData<?>> {
      * @param newData the data we are writing
      */
     public T write(T newData) {
-        writeLock.lock();
-        try {
-            // load data if needed
-            if (!hasLoadedData) loadData();
+        // load data if needed
+        if (!hasLoadedData) loadData();
 
-            // deal with the in-memory portion
+        structureLock.readLock().lock();
+        try {
             newData.setIndex(index.getAndIncrement());
-            data.put(newData.getIndex(), newData);
-
-            // now handle the disk portion
-            final Path fullPath = dbDirectory.resolve(newData.getIndex() + databaseFileSuffix);
-            actionQueue.enqueue("persist data to disk", () -> {
-                mustBeTrue(!fullPath.toFile().exists(), fullPath + " must not already exist before persisting");
-                String serializedData = newData.serialize();
-                mustBeFalse(serializedData == null || serializedData.isBlank(),
-                        "the serialized form of data must not be blank. " +
-                                "Is the serialization code written properly? Our datatype: " + emptyInstance);
-                writeString(fullPath, serializedData);
-                writeString(fullPathForIndexFile, String.valueOf(newData.getIndex() + 1));
-            });
+            ReentrantLock lock = lockFor(newData.getIndex());
+            lock.lock();
+            try {
+                // deal with the in-memory portion
+                data.put(newData.getIndex(), newData);
+                addToIndexes(newData);
+
+                // now handle the disk portion
+                addPendingChange(new Change<>(ChangeType.INSERT, newData.getIndex(), newData));
+            } finally {
+                lock.unlock();
+            }
 
             // returning the data at this point is the most convenient
             // way users will have access to the new index of the data.
             return newData;
         } finally {
-            writeLock.unlock();
+            structureLock.readLock().unlock();
         }
     }
 
@@ -164,43 +229,41 @@ public final class Db<T extends DbData<?>> {
      * @param dataToDelete the data we are serializing and writing
      */
     public void delete(T dataToDelete) {
-        deleteLock.lock();
-        try {
-            // load data if needed
-            if (!hasLoadedData) loadData();
+        // load data if needed
+        if (!hasLoadedData) loadData();
 
+        long dataIndex = dataToDelete.getIndex();
+        ReentrantLock lock = lockFor(dataIndex);
+        structureLock.readLock().lock();
+        lock.lock();
+        try {
             // deal with the in-memory portion
-            long dataIndex = dataToDelete.getIndex();
-            if (!data.containsKey(dataIndex)) {
+            T deletedData = data.remove(dataIndex);
+            if (deletedData == null) {
                 throw new RuntimeException("no data was found with id of " + dataIndex);
             }
-            data.remove(dataIndex);
-
-            // if all the data was just now deleted, we need to
-            // reset the index back to 1
-            boolean hasResetIndex;
-            if (data.isEmpty()) {
-                index.set(1);
-                hasResetIndex = true;
-            } else {
-                hasResetIndex = false;
-            }
+            removeFromIndexes(deletedData);
 
             // now handle the disk portion
-            actionQueue.enqueue("delete data from disk", () -> {
-                final Path fullPath = dbDirectory.resolve(dataIndex + databaseFileSuffix);
-                try {
-                    mustBeTrue(fullPath.toFile().exists(), fullPath + " must already exist before deletion");
-                    Files.delete(fullPath);
-                    if (hasResetIndex) {
-                        writeString(fullPathForIndexFile, String.valueOf(1));
-                    }
-                } catch (Exception ex) {
-                    logger.logAsyncError(() -> "failed to delete file " + fullPath + " during deleteOnDisk. Exception: " + ex);
-                }
-            });
+            addPendingChange(new Change<>(ChangeType.DELETE, dataIndex, null));
         } finally {
-            deleteLock.unlock();
+            lock.unlock();
+            structureLock.readLock().unlock();
+        }
+
+        // if all the data was just now deleted, we need to
+        // reset the index back to 1.  That has to wait until
+        // no other changes are happening.
+        if (data.isEmpty()) {
+            structureLock.writeLock().lock();
+            try {
+                if (data.isEmpty()) {
+                    index.set(1);
+                    addPendingChange(new Change<>(ChangeType.RESET_INDEX, 1, null));
+                }
+            } finally {
+                structureLock.writeLock().unlock();
+            }
         }
     }
 
@@ -211,97 +274,273 @@ public final class Db<T extends DbData<?>> {
      * update the data on disk with this id.
      */
     public void update(T dataUpdate) {
-        updateLock.lock();
-        try {
-            // load data if needed
-            if (!hasLoadedData) loadData();
+        // load data if needed
+        if (!hasLoadedData) loadData();
 
+        long dataIndex = dataUpdate.getIndex();
+        ReentrantLock lock = lockFor(dataIndex);
+        structureLock.readLock().lock();
+        lock.lock();
+        try {
             // deal with the in-memory portion
-            long dataIndex = dataUpdate.getIndex();
-            if (!data.containsKey(dataIndex)) {
+            T previousData = data.replace(dataIndex, dataUpdate);
+            if (previousData == null) {
                 throw new RuntimeException("no data was found with id of " + dataIndex);
             }
-            data.put(dataIndex, dataUpdate);
+            removeFromIndexes(previousData);
+            addToIndexes(dataUpdate);
 
             // now handle the disk portion
-            actionQueue.enqueue("update data on disk", () -> {
-                final Path fullPath = dbDirectory.resolve(dataIndex + databaseFileSuffix);
-                // if the file isn't already there, throw an exception
-                mustBeTrue(fullPath.toFile().exists(), fullPath + " must already exist during updates");
-                writeString(fullPath, dataUpdate.serialize());
-            });
+            addPendingChange(new Change<>(ChangeType.UPDATE, dataIndex, dataUpdate));
         } finally {
-            updateLock.unlock();
+            lock.unlock();
+            structureLock.readLock().unlock();
         }
     }
 
     /**
-     * Grabs all the data from disk and returns it as a list.  This
-     * method is run by various programs when the system first loads.
+     * Adds a change to those waiting to be persisted, making sure
+     * the action queue has a commit scheduled to pick it up.
      */
-    void loadDataFromDisk() {
-        if (! Files.exists(dbDirectory)) {
-            logger.logDebug(() -> dbDirectory + " directory missing, adding nothing to the data list");
-            return;
+    private void addPendingChange(Change<T> change) {
+        pendingChanges.add(change);
+        if (isCommitScheduled.compareAndSet(false, true)) {
+            actionQueue.enqueue("commit changes to disk", this::commitPendingChanges);
         }
+    }
 
-        // walk through all the files in this directory, collecting
-        // all regular files (non-subdirectories) except for index.ddps
-        try (final var pathStream = Files.walk(dbDirectory)) {
-            final var listOfFiles = pathStream.filter(path -> {
-                return Files.exists(path) &&
-                        Files.isRegularFile(path) &&
-                        !path.getFileName().toString().startsWith("index");
-            }).toList();
-            for (Path p : listOfFiles) {
-                readAndDeserialize(p);
+    /**
+     * Runs on the action queue, persisting everything that has collected
+     * in {@link #pendingChanges} as one batch.  Multiple changes to the
+     * same data are combined, so that if a piece of data was updated a
+     * hundred times since the last batch, we only write it once.
+     */
+    private void commitPendingChanges() {
+        // any change added after this point will schedule another commit
+        isCommitScheduled.set(false);
+
+        int changeCount = 0;
+        int persistedCount = 0;
+        var batch = new LinkedHashMap<Long, Change<T>>();
+        Change<T> change;
+        while ((change = pendingChanges.poll()) != null) {
+            changeCount += 1;
+            if (change.type() == ChangeType.RESET_INDEX) {
+                // a reset means indexes may get used again, so
+                // it must not be combined with anything before it.
+                persistedCount += persistBatch(batch);
+                batch.clear();
+                runLoggingErrors(storage::persistIndexReset);
+                persistedCount += 1;
+            } else {
+                batch.merge(change.dataIndex(), change, Db::combineChanges);
             }
-        } catch (IOException e) { // if we fail to walk() the dbDirectory.  I don't even know how to test this.
-            throw new RuntimeException(e);
         }
+        persistedCount += persistBatch(batch);
+        runLoggingErrors(() -> storage.commit(syncToDisk));
+
+        int finalChangeCount = changeCount;
+        int finalPersistedCount = persistedCount;
+        logger.logTrace(() -> String.format("committed %d changes to %s, from %d made in memory", finalPersistedCount, dbDirectory, finalChangeCount));
     }
 
     /**
-     * Carry out the process of reading data files into our in-memory structure
-     * @param p the path of a particular file
+     * Combines two changes to the same piece of data into one
+     * having the same effect, or null if they cancel out.
      */
-    void readAndDeserialize(Path p) throws IOException {
-        String fileContents;
-        fileContents = Files.readString(p);
-        if (fileContents.isBlank()) {
-            logger.logDebug( () -> p.getFileName() + " file exists but empty, skipping");
-        } else {
-            try {
-                @SuppressWarnings("unchecked")
-                T deserializedData = (T) emptyInstance.deserialize(fileContents);
-
-                // confirm that the name of the file (e.g. 1.ddps) and its internal identifier (e.g. 1) are aligned.
-                String filename = p.getFileName().toString();
-                int startOfSuffixIndex = filename.indexOf('.');
-                mustBeTrue(startOfSuffixIndex > 0, "the files must look like 1.ddps");
-                int fileNameIdentifier = Integer.parseInt(filename.substring(0, startOfSuffixIndex));
-                mustBeTrue(deserializedData != null, "deserialization of " + emptyInstance +
-                        " resulted in a null value. Was the serialization method implemented properly?");
-                mustBeTrue(deserializedData.getIndex() == fileNameIdentifier, "The filename must correspond to the data's index. e.g. 1.ddps must have an id of 1");
-
-                // put the data into the in-memory data structure
-                data.put(deserializedData.getIndex(), deserializedData);
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to deserialize "+ p +" with data (\""+fileContents+"\")");
+    private static <T> Change<T> combineChanges(Change<T> earlier, Change<T> later) {
+        return switch (later.type()) {
+            // written and deleted in the same batch - the disk never needs to know
+            case DELETE -> earlier.type() == ChangeType.INSERT ? null : later;
+            // an update to data not yet written is just a write with newer contents
+            case UPDATE -> earlier.type() == ChangeType.INSERT ? new Change<>(ChangeType.INSERT, later.dataIndex(), later.data()) : later;
+            // deleted and written again: on disk, that is an update.
+            case INSERT -> earlier.type() == ChangeType.DELETE ? new Change<>(ChangeType.UPDATE, later.dataIndex(), later.data()) : later;
+            case RESET_INDEX -> throw new InvariantException("index resets are never combined");
+        };
+    }
+
+    /**
+     * @return how many changes were persisted
+     */
+    private int persistBatch(Map<Long, Change<T>> batch) {
+        for (Change<T> change : batch.values()) {
+            switch (change.type()) {
+                case INSERT -> runLoggingErrors(() -> storage.persistNew(change.data()));
+                case UPDATE -> runLoggingErrors(() -> storage.persistUpdate(change.data()));
+                case DELETE -> runLoggingErrors(() -> storage.persistDelete(change.dataIndex()));
+                case RESET_INDEX -> throw new InvariantException("index resets are not part of a batch");
             }
         }
+        return batch.size();
+    }
+
+    /**
+     * A failure persisting one change shouldn't stop the rest of the batch.
+     */
+    private void runLoggingErrors(Runnable action) {
+        try {
+            action.run();
+        } catch (Exception ex) {
+            logger.logAsyncError(() -> StacktraceUtils.stackTraceToString(ex));
+        }
+    }
+
+    private ReentrantLock lockFor(long dataIndex) {
+        return stripedLocks[Long.hashCode(dataIndex) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Grabs all the data from disk and returns it as a list.  This
+     * method is run by various programs when the system first loads.
+     */
+    void loadDataFromDisk() {
+        storage.loadData(data);
     }
 
     /**
      * The primary way to analyze this data.
+     * <p>
+     *     This never waits on anyone changing the data.  It is a live view,
+     *     so changes made while you are looking through it may or may not
+     *     show up, but it will never throw a
+     *     {@link java.util.ConcurrentModificationException}.  For a copy
+     *     that won't change underneath you, see {@link #snapshot()}
+     * </p>
      *
-     * @return a {@link Collection} view of the data
+     * @return an unmodifiable {@link Collection} view of the data
      */
     public Collection<T> values() {
         // load data if needed
         if (!hasLoadedData) loadData();
 
-        return data.values();
+        return Collections.unmodifiableCollection(data.values());
+    }
+
+    /**
+     * A copy of the data as it stands now.  Like {@link #values()}, this
+     * doesn't wait on anyone changing the data, so a change happening at the
+     * same moment may or may not be included.
+     */
+    public List<T> snapshot() {
+        return List.copyOf(values());
+    }
+
+    /**
+     * Registers a secondary index on this data, so that it may be searched
+     * by some value other than its index without looking through every item.
+     * See {@link #getIndexedData(String, String)} and {@link #findExactlyOne(String, String)}
+     * <p>
+     *     For example, to find users by their name:
+     * </p>
+     * <pre>
+     * {@code
+     * userDb.registerIndex("name", User::getUsername);
+     * User user = userDb.findExactlyOne("name", "alice");
+     * }
+     * </pre>
+     * <p>
+     *     The index is kept up to date as data is written, updated, and deleted.
+     * </p>
+     * @param indexName a name for this index, unique for this database
+     * @param keyObtainingFunction calculates the key for a piece of data.  Data for which
+     *                             this returns null is left out of the index.
+     */
+    public void registerIndex(String indexName, Function<T, String> keyObtainingFunction) {
+        mustBeFalse(indexName == null || indexName.isBlank(), "The name of an index must not be blank");
+        mustNotBeNull(keyObtainingFunction);
+        loadDataLock.lock();
+        structureLock.writeLock().lock();
+        try {
+            mustBeFalse(indexKeyFunctions.containsKey(indexName), "There is already an index registered with the name " + indexName);
+            indexes.put(indexName, new ConcurrentHashMap<>());
+            indexKeyFunctions.put(indexName, keyObtainingFunction);
+            if (hasLoadedData) buildIndex(indexName);
+        } finally {
+            structureLock.writeLock().unlock();
+            loadDataLock.unlock();
+        }
+    }
+
+    /**
+     * Returns all the data having a particular key in a secondary index.
+     * See {@link #registerIndex(String, Function)}
+     * @return the data found, or an empty collection if none
+     */
+    public Collection<T> getIndexedData(String indexName, String key) {
+        // load data if needed
+        if (!hasLoadedData) loadData();
+
+        Map<String, Set<Long>> index = indexes.get(indexName);
+        mustBeTrue(index != null, "There is no index registered with the name " + indexName);
+        if (key == null) return List.of();
+        Set<Long> indexesForKey = index.get(key);
+        if (indexesForKey == null) return List.of();
+        var result = new ArrayList<T>(indexesForKey.size());
+        for (long dataIndex : indexesForKey) {
+            T item = data.get(dataIndex);
+            if (item != null) result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #getIndexedData(String, String)}, for indexes where
+     * each key should belong to no more than one piece of data.
+     * @return the data found, or null if none
+     * @throws minum.utils.InvariantException if more than one is found
+     */
+    public T findExactlyOne(String indexName, String key) {
+        Collection<T> found = getIndexedData(indexName, key);
+        mustBeTrue(found.size() <= 1, "There must be zero or one items found for key " + key +
+                " in index " + indexName + ". Count found: " + found.size());
+        return found.isEmpty() ? null : found.iterator().next();
+    }
+
+    private void buildIndex(String indexName) {
+        Map<String, Set<Long>> index = indexes.get(indexName);
+        index.clear();
+        Function<T, String> keyObtainingFunction = indexKeyFunctions.get(indexName);
+        for (T item : data.values()) {
+            addToIndex(index, keyObtainingFunction.apply(item), item.getIndex());
+        }
+    }
+
+    private void addToIndexes(T item) {
+        for (var entry : indexKeyFunctions.entrySet()) {
+            addToIndex(indexes.get(entry.getKey()), entry.getValue().apply(item), item.getIndex());
+        }
+    }
+
+    private void removeFromIndexes(T item) {
+        if (item == null) return;
+        for (var entry : indexKeyFunctions.entrySet()) {
+            String key = entry.getValue().apply(item);
+            if (key == null) continue;
+            indexes.get(entry.getKey()).computeIfPresent(key, (k, indexesForKey) -> {
+                indexesForKey.remove(item.getIndex());
+                return indexesForKey.isEmpty() ? null : indexesForKey;
+            });
+        }
+    }
+
+    private static void addToIndex(Map<String, Set<Long>> index, String key, long dataIndex) {
+        if (key == null) return;
+        index.compute(key, (k, indexesForKey) -> {
+            Set<Long> result = indexesForKey == null ? ConcurrentHashMap.newKeySet() : indexesForKey;
+            result.add(dataIndex);
+            return result;
+        });
+    }
+
+    /**
+     * Starts loading the data from disk on another thread, so that
+     * the first request needing this data doesn't have to wait as long.
+     * Anyone asking for the data while it is loading will wait for
+     * it to finish.  See {@link minum.Constants#DB_PRELOAD}
+     */
+    public void loadDataInBackground() {
+        executorService.submit(ThrowingRunnable.throwingRunnableWrapper(this::loadData, logger));
     }
 
     /**
@@ -315,12 +554,61 @@ public final class Db<T extends DbData<?>> {
         loadDataLock.lock(); // block threads here if multiple are trying to get in - only one gets in at a time
         try {
             if (!hasLoadedData) {
+                long startMillis = System.currentTimeMillis();
                 loadDataFromDisk();
+                for (String indexName : indexKeyFunctions.keySet()) {
+                    buildIndex(indexName);
+                }
                 hasLoadedData = true;
+                long loadMillis = System.currentTimeMillis() - startMillis;
+                logger.logDebug(() -> String.format("loaded %d rows from %s in %d milliseconds", data.size(), dbDirectory, loadMillis));
             }
         } finally {
             loadDataLock.unlock();
         }
     }
 
+    /**
+     * Carries out an action on each item, spreading the work across the
+     * processors when there is enough of it to be worthwhile.  If any of
+     * the actions throw an exception, the first one is rethrown here.
+     */
+    static <I> void forEachInParallel(List<I> items, ExecutorService es, Consumer<I> action) {
+        int threadCount = Math.min(
+                Runtime.getRuntime().availableProcessors(),
+                (items.size() + MIN_ITEMS_PER_THREAD - 1) / MIN_ITEMS_PER_THREAD);
+        if (threadCount <= 1) {
+            items.forEach(action);
+            return;
+        }
+
+        int itemsPerThread = (items.size() + threadCount - 1) / threadCount;
+        var firstFailure = new AtomicReference<RuntimeException>();
+        var futures = new ArrayList<Future<?>>();
+        for (int start = 0; start < items.size(); start += itemsPerThread) {
+            List<I> portion = items.subList(start, Math.min(items.size(), start + itemsPerThread));
+            futures.add(es.submit(() -> {
+                try {
+                    for (I item : portion) {
+                        if (firstFailure.get() != null) return;
+                        action.accept(item);
+                    }
+                } catch (RuntimeException ex) {
+                    firstFailure.compareAndSet(null, ex);
+                }
+            }));
+        }
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+        if (firstFailure.get() != null) throw firstFailure.get();
+    }
+
 }
@@ -0,0 +1,209 @@
+package minum.database;
+
+import minum.Context;
+import minum.logging.ILogger;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import static minum.utils.FileUtils.writeString;
+import static minum.utils.Invariants.*;
+
+/**
+ * The original layout for a {@link Db}: each piece of data gets its
+ * own file, named by its index (e.g. 1.ddps), and index.ddps holds
+ * the next index to use.
+ * <p>
+ *     Simple to inspect by hand, but each change costs creating or
+ *     truncating a file, so it gets slow once there are many rows.
+ *     See {@link DbLogStorage} for an alternative.
+ * </p>
+ */
+final class DbFileStorage<T extends DbData<?>> implements DbStorage<T> {
+
+    private final Path dbDirectory;
+    private final ILogger logger;
+    private final ExecutorService executorService;
+    private final T emptyInstance;
+
+    /**
+     * The full path to the file that contains the most-recent index
+     * for this data.  As we add new files, each gets its own index
+     * value.  When we start the program, we use this to determine
+     * where to start counting for new indexes.
+     */
+    private final Path fullPathForIndexFile;
+
+    /*
+     * What we've done in the current batch, to be finished
+     * off in {@link #commit(boolean)}.  Only touched by the
+     * action queue thread.
+     */
+    private long nextIndexToRecord;
+    private final Set<Path> filesWrittenInBatch;
+
+    DbFileStorage(Path dbDirectory, Context context, T emptyInstance) {
+        this.dbDirectory = dbDirectory;
+        this.logger = context.getLogger();
+        this.executorService = context.getExecutorService();
+        this.emptyInstance = emptyInstance;
+        this.fullPathForIndexFile = dbDirectory.resolve("index" + Db.databaseFileSuffix);
+        this.filesWrittenInBatch = new HashSet<>();
+    }
+
+    @Override
+    public long readNextIndex() {
+        if (! Files.exists(fullPathForIndexFile)) {
+            return 1;
+        }
+        try (var fileReader = new FileReader(fullPathForIndexFile.toFile())) {
+            String s = new BufferedReader(fileReader).readLine();
+            mustNotBeNull(s);
+            mustBeFalse(s.isBlank(), "Unless something is terribly broken, we expect a numeric value here");
+            String trim = s.trim();
+            return Long.parseLong(trim);
+        } catch (Exception e) {
+            throw new RuntimeException("Exception while reading "+fullPathForIndexFile+" in Db constructor", e);
+        }
+    }
+
+    @Override
+    public void persistNew(T newData) {
+        final Path fullPath = dbDirectory.resolve(newData.getIndex() + Db.databaseFileSuffix);
+        mustBeTrue(!fullPath.toFile().exists(), fullPath + " must not already exist before persisting");
+        String serializedData = newData.serialize();
+        mustBeFalse(serializedData == null || serializedData.isBlank(),
+                "the serialized form of data must not be blank. " +
+                        "Is the serialization code written properly? Our datatype: " + emptyInstance);
+        writeString(fullPath, serializedData);
+        filesWrittenInBatch.add(fullPath);
+        nextIndexToRecord = Math.max(nextIndexToRecord, newData.getIndex() + 1);
+    }
+
+    @Override
+    public void persistUpdate(T dataUpdate) {
+        final Path fullPath = dbDirectory.resolve(dataUpdate.getIndex() + Db.databaseFileSuffix);
+        // if the file isn't already there, throw an exception
+        mustBeTrue(fullPath.toFile().exists(), fullPath + " must already exist during updates");
+        writeString(fullPath, dataUpdate.serialize());
+        filesWrittenInBatch.add(fullPath);
+    }
+
+    @Override
+    public void persistDelete(long dataIndex) {
+        final Path fullPath = dbDirectory.resolve(dataIndex + Db.databaseFileSuffix);
+        try {
+            mustBeTrue(fullPath.toFile().exists(), fullPath + " must already exist before deletion");
+            Files.delete(fullPath);
+        } catch (Exception ex) {
+            logger.logAsyncError(() -> "failed to delete file " + fullPath + " during deleteOnDisk. Exception: " + ex);
+        }
+    }
+
+    @Override
+    public void persistIndexReset() {
+        writeString(fullPathForIndexFile, String.valueOf(1));
+        filesWrittenInBatch.add(fullPathForIndexFile);
+    }
+
+    /**
+     * Rather than rewriting the index file with each new piece of
+     * data, we write it once for the whole batch.
+     */
+    @Override
+    public void commit(boolean syncToDisk) {
+        if (nextIndexToRecord > 0) {
+            writeString(fullPathForIndexFile, String.valueOf(nextIndexToRecord));
+            filesWrittenInBatch.add(fullPathForIndexFile);
+            nextIndexToRecord = 0;
+        }
+        if (syncToDisk) {
+            for (Path path : filesWrittenInBatch) {
+                try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+        filesWrittenInBatch.clear();
+    }
+
+    @Override
+    public void loadData(Map<Long, T> data) {
+        if (! Files.exists(dbDirectory)) {
+            logger.logDebug(() -> dbDirectory + " directory missing, adding nothing to the data list");
+            return;
+        }
+
+        // walk through all the files in this directory, collecting
+        // all regular files (non-subdirectories) except for index.ddps
+        try (final var pathStream = Files.walk(dbDirectory)) {
+            final var listOfFiles = pathStream.filter(path -> {
+                return Files.exists(path) &&
+                        Files.isRegularFile(path) &&
+                        !path.getFileName().toString().startsWith("index");
+            }).toList();
+
+            // reading and deserializing each file is independent of the others,
+            // so with many files we spread the work across threads.
+            var loadedData = new ConcurrentHashMap<Long, T>();
+            Db.forEachInParallel(listOfFiles, executorService, p -> {
+                try {
+                    readAndDeserialize(p, loadedData);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            data.putAll(loadedData);
+        } catch (IOException e) { // if we fail to walk() the dbDirectory.  I don't even know how to test this.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Carry out the process of reading data files into our in-memory structure
+     * @param p the path of a particular file
+     */
+    void readAndDeserialize(Path p, Map<Long, T> data) throws IOException {
+        String fileContents;
+        fileContents = Files.readString(p);
+        if (fileContents.isBlank()) {
+            logger.logDebug( () -> p.getFileName() + " file exists but empty, skipping");
+        } else {
+            try {
+                @SuppressWarnings("unchecked")
+                T deserializedData = (T) emptyInstance.deserialize(fileContents);
+
+                // confirm that the name of the file (e.g. 1.ddps) and its internal identifier (e.g. 1) are aligned.
+                String filename = p.getFileName().toString();
+                int startOfSuffixIndex = filename.indexOf('.');
+                mustBeTrue(startOfSuffixIndex > 0, "the files must look like 1.ddps");
+                int fileNameIdentifier = Integer.parseInt(filename.substring(0, startOfSuffixIndex));
+                mustBeTrue(deserializedData != null, "deserialization of " + emptyInstance +
+                        " resulted in a null value. Was the serialization method implemented properly?");
+                mustBeTrue(deserializedData.getIndex() == fileNameIdentifier, "The filename must correspond to the data's index. e.g. 1.ddps must have an id of 1");
+
+                // put the data into the in-memory data structure
+                data.put(deserializedData.getIndex(), deserializedData);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to deserialize "+ p +" with data (\""+fileContents+"\")");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing held open between writes
+    }
+}
@@ -0,0 +1,453 @@
+package minum.database;
+
+import minum.Context;
+import minum.logging.ILogger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static minum.utils.Invariants.*;
+
+/**
+ * An append-only layout for a {@link Db}.  Rather than a file per piece
+ * of data, every change is appended as a record to the end of a log file.
+ * Once a log file grows past a certain size, we start a new one (each of
+ * these files is a "segment").  On startup, we replay the records in
+ * order to rebuild the data.
+ * <p>
+ *     The records look like this, where the number after INSERT or UPDATE
+ *     is the index of the data, followed by the length in bytes of its
+ *     serialized form, which is on the next line:
+ * </p>
+ * <pre>
+ * {@code
+ * INSERT 1 17
+ * 1|abc|some%20data
+ * UPDATE 1 17
+ * 1|abd|some%20data
+ * DELETE 1
+ * NEXT_INDEX 1
+ * }
+ * </pre>
+ * <p>
+ *     Updates and deletes leave the older records behind, taking up
+ *     space.  Whenever we start a new segment, if more than half of the
+ *     records are obsolete, we compact: the current data is written to
+ *     a fresh segment, and the older segments are deleted.
+ * </p>
+ */
+final class DbLogStorage<T extends DbData<?>> implements DbStorage<T> {
+
+    /**
+     * The suffix we will apply to each log segment
+     */
+    static final String logFileSuffix = ".ddlog";
+    private static final String logFilePrefix = "log_";
+
+    private static final String INSERT = "INSERT";
+    private static final String UPDATE = "UPDATE";
+    private static final String DELETE = "DELETE";
+    private static final String NEXT_INDEX = "NEXT_INDEX";
+
+    private final Path dbDirectory;
+    private final ILogger logger;
+    private final ExecutorService executorService;
+    private final T emptyInstance;
+    private final long maxSegmentBytes;
+
+    /**
+     * Held while reading or replacing the segments, so that a
+     * compaction doesn't delete files out from under a reader.
+     */
+    private final ReentrantLock segmentsLock = new ReentrantLock();
+
+    /*
+     * The following are set up by {@link #readNextIndex()} and afterwards
+     * only touched by the action queue thread.
+     */
+    private long currentSegmentNumber;
+    private long currentSegmentSize;
+    private FileChannel currentSegment;
+
+    /**
+     * Records appended during a batch, not yet written to the current segment.
+     * See {@link #commit(boolean)}
+     */
+    private final ByteArrayOutputStream pendingWrites;
+    private final Set<Long> liveIndexes;
+    private long recordCount;
+
+    /**
+     * What we read from disk at startup, kept until the {@link Db} first
+     * asks for its data, so we don't have to read it all twice.
+     */
+    private Map<Long, String> dataReadAtStartup;
+
+    /**
+     * Constructor
+     * @param maxSegmentBytes once a segment would grow past this size, we start a new one.
+     */
+    DbLogStorage(Path dbDirectory, Context context, T emptyInstance, long maxSegmentBytes) {
+        this.dbDirectory = dbDirectory;
+        this.logger = context.getLogger();
+        this.executorService = context.getExecutorService();
+        this.emptyInstance = emptyInstance;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.liveIndexes = new HashSet<>();
+        this.pendingWrites = new ByteArrayOutputStream();
+    }
+
+    /**
+     * The result of replaying all the segments.
+     * @param data the serialized data, keyed by index
+     * @param lastSegmentNumber the number of the newest segment, or 0 if there are none
+     * @param lastSegmentValidLength the number of bytes in the newest segment up
+     *                               to the end of its last complete record.
+     */
+    private record Replay(Map<Long, String> data, long nextIndex, long recordCount,
+                          long lastSegmentNumber, long lastSegmentValidLength) {}
+
+    @Override
+    public long readNextIndex() {
+        Replay replay = replay();
+        dataReadAtStartup = replay.data();
+        liveIndexes.addAll(replay.data().keySet());
+        recordCount = replay.recordCount();
+        currentSegmentNumber = replay.lastSegmentNumber();
+        currentSegmentSize = replay.lastSegmentValidLength();
+        removeIncompleteRecord();
+        return replay.nextIndex();
+    }
+
+    /**
+     * If we crashed partway through writing a record, the newest segment
+     * ends with part of it.  Cut that off now, before anything is written -
+     * should the next record start a new segment, this one would no longer
+     * be the newest, and only the newest may end that way.
+     */
+    private void removeIncompleteRecord() {
+        if (currentSegmentNumber == 0) return;
+        Path segment = segmentPath(currentSegmentNumber);
+        try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            if (channel.size() > currentSegmentSize) {
+                logger.logDebug(() -> "truncating " + segment + " to " + currentSegmentSize + " bytes, removing an incomplete record");
+                channel.truncate(currentSegmentSize);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void loadData(Map<Long, T> data) {
+        if (! Files.exists(dbDirectory)) {
+            logger.logDebug(() -> dbDirectory + " directory missing, adding nothing to the data list");
+            return;
+        }
+        Map<Long, String> serializedData;
+        if (dataReadAtStartup != null) {
+            serializedData = dataReadAtStartup;
+            dataReadAtStartup = null;
+        } else {
+            serializedData = replay().data();
+        }
+        // replaying has to happen in order, but deserializing
+        // the results can be spread across threads.
+        var loadedData = new ConcurrentHashMap<Long, T>();
+        Db.forEachInParallel(new ArrayList<>(serializedData.entrySet()), executorService, entry -> {
+            try {
+                @SuppressWarnings("unchecked")
+                T deserializedData = (T) emptyInstance.deserialize(entry.getValue());
+                mustBeTrue(deserializedData != null, "deserialization of " + emptyInstance +
+                        " resulted in a null value. Was the serialization method implemented properly?");
+                mustBeTrue(deserializedData.getIndex() == entry.getKey(), "The record's index must correspond to the data's index");
+                loadedData.put(deserializedData.getIndex(), deserializedData);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to deserialize record " + entry.getKey() + " in " + dbDirectory + " with data (\"" + entry.getValue() + "\")");
+            }
+        });
+        data.putAll(loadedData);
+    }
+
+    @Override
+    public void persistNew(T newData) {
+        String serializedData = newData.serialize();
+        mustBeFalse(serializedData == null || serializedData.isBlank(),
+                "the serialized form of data must not be blank. " +
+                        "Is the serialization code written properly? Our datatype: " + emptyInstance);
+        append(dataRecord(INSERT, newData.getIndex(), serializedData));
+        liveIndexes.add(newData.getIndex());
+    }
+
+    @Override
+    public void persistUpdate(T dataUpdate) {
+        mustBeTrue(liveIndexes.contains(dataUpdate.getIndex()), "data with index " + dataUpdate.getIndex() + " must already exist during updates");
+        append(dataRecord(UPDATE, dataUpdate.getIndex(), dataUpdate.serialize()));
+    }
+
+    @Override
+    public void persistDelete(long dataIndex) {
+        if (! liveIndexes.remove(dataIndex)) {
+            logger.logAsyncError(() -> "failed to delete data with index " + dataIndex + " in " + dbDirectory + ". It was not found");
+            return;
+        }
+        append((DELETE + " " + dataIndex + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void persistIndexReset() {
+        append((NEXT_INDEX + " 1\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void commit(boolean syncToDisk) {
+        try {
+            writePending();
+            if (syncToDisk && currentSegment != null) {
+                currentSegment.force(false);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writePending();
+            closeCurrentSegment();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static byte[] dataRecord(String operation, long index, String serializedData) {
+        byte[] payload = serializedData.getBytes(StandardCharsets.UTF_8);
+        byte[] header = (operation + " " + index + " " + payload.length + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[header.length + payload.length + 1];
+        System.arraycopy(header, 0, record, 0, header.length);
+        System.arraycopy(payload, 0, record, header.length, payload.length);
+        record[record.length - 1] = '\n';
+        return record;
+    }
+
+    /**
+     * Add a record to the end of the current segment, starting a
+     * new segment first if this one has grown too large.  The record
+     * is held in memory until the batch is committed, so that a batch
+     * costs us one write rather than one for each record.
+     */
+    private void append(byte[] record) {
+        try {
+            long segmentSize = currentSegmentSize + pendingWrites.size();
+            if (segmentSize > 0 && segmentSize + record.length > maxSegmentBytes) {
+                writePending();
+                closeCurrentSegment();
+                if (recordCount - liveIndexes.size() > liveIndexes.size()) {
+                    compact();
+                }
+                currentSegmentNumber += 1;
+                currentSegmentSize = 0;
+            }
+            pendingWrites.write(record);
+            recordCount += 1;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Write the records held in memory out to the current segment.
+     */
+    private void writePending() throws IOException {
+        if (pendingWrites.size() == 0) return;
+        if (currentSegment == null) {
+            openCurrentSegment();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pendingWrites.toByteArray());
+        while (buffer.hasRemaining()) {
+            currentSegment.write(buffer);
+        }
+        currentSegmentSize += pendingWrites.size();
+        pendingWrites.reset();
+    }
+
+    /**
+     * Opens the current segment for writing, positioned after its last
+     * complete record.  See {@link #removeIncompleteRecord()}
+     */
+    private void openCurrentSegment() throws IOException {
+        if (currentSegmentNumber == 0) currentSegmentNumber = 1;
+        currentSegment = FileChannel.open(segmentPath(currentSegmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        currentSegment.position(currentSegmentSize);
+    }
+
+    private void closeCurrentSegment() throws IOException {
+        if (currentSegment != null) {
+            currentSegment.close();
+            currentSegment = null;
+        }
+    }
+
+    /**
+     * Writes the current data into a new segment, then deletes all the
+     * segments before it.  If we crash partway through, replaying the old
+     * segments followed by the new one still gives the correct data.
+     */
+    void compact() {
+        segmentsLock.lock();
+        try {
+            writePending();
+            closeCurrentSegment();
+            Replay replay = replay();
+            long compactedSegmentNumber = replay.lastSegmentNumber() + 1;
+            Path compactedSegment = segmentPath(compactedSegmentNumber);
+            Path temporaryFile = compactedSegment.resolveSibling(compactedSegment.getFileName() + ".tmp");
+            long size = 0;
+            try (var channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                byte[] nextIndexRecord = (NEXT_INDEX + " " + replay.nextIndex() + "\n").getBytes(StandardCharsets.UTF_8);
+                out.write(nextIndexRecord);
+                size += nextIndexRecord.length;
+                for (var entry : replay.data().entrySet()) {
+                    byte[] record = dataRecord(INSERT, entry.getKey(), entry.getValue());
+                    out.write(record);
+                    size += record.length;
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temporaryFile, compactedSegment, StandardCopyOption.ATOMIC_MOVE);
+            for (Path oldSegment : listSegments()) {
+                if (segmentNumber(oldSegment) < compactedSegmentNumber) {
+                    Files.delete(oldSegment);
+                }
+            }
+            long finalSize = size;
+            logger.logDebug(() -> "compacted " + dbDirectory + " from " + replay.recordCount() + " records to " +
+                    (replay.data().size() + 1) + " records, " + finalSize + " bytes");
+
+            currentSegmentNumber = compactedSegmentNumber;
+            currentSegmentSize = size;
+            recordCount = replay.data().size() + 1;
+            liveIndexes.clear();
+            liveIndexes.addAll(replay.data().keySet());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    /**
+     * Read through every segment in order, applying the records, to
+     * arrive at the current state of the data.
+     */
+    private Replay replay() {
+        segmentsLock.lock();
+        try {
+            var data = new HashMap<Long, String>();
+            long nextIndex = 1;
+            long recordCount = 0;
+            long lastSegmentNumber = 0;
+            long lastSegmentValidLength = 0;
+            List<Path> segments = listSegments();
+            for (int i = 0; i < segments.size(); i++) {
+                Path segment = segments.get(i);
+                byte[] bytes = Files.readAllBytes(segment);
+                int position = 0;
+                while (position < bytes.length) {
+                    int endOfHeader = indexOfNewline(bytes, position);
+                    if (endOfHeader < 0) break;
+                    String[] header = new String(bytes, position, endOfHeader - position, StandardCharsets.UTF_8).split(" ");
+                    int endOfRecord;
+                    try {
+                        switch (header[0]) {
+                            case INSERT, UPDATE -> {
+                                long index = Long.parseLong(header[1]);
+                                int length = Integer.parseInt(header[2]);
+                                endOfRecord = endOfHeader + 1 + length;
+                                if (endOfRecord >= bytes.length) break;
+                                mustBeTrue(bytes[endOfRecord] == '\n', "a record's data must be followed by a newline");
+                                data.put(index, new String(bytes, endOfHeader + 1, length, StandardCharsets.UTF_8));
+                                nextIndex = Math.max(nextIndex, index + 1);
+                            }
+                            case DELETE -> {
+                                data.remove(Long.parseLong(header[1]));
+                                endOfRecord = endOfHeader;
+                            }
+                            case NEXT_INDEX -> {
+                                nextIndex = Long.parseLong(header[1]);
+                                endOfRecord = endOfHeader;
+                            }
+                            default -> throw new RuntimeException("unrecognized record type: " + header[0]);
+                        }
+                    } catch (Exception ex) {
+                        throw new RuntimeException("Failed to read the record at byte " + position + " of " + segment + ": " + ex.getMessage());
+                    }
+                    if (endOfRecord >= bytes.length) break;
+                    position = endOfRecord + 1;
+                    recordCount += 1;
+                }
+                if (position < bytes.length) {
+                    mustBeTrue(i == segments.size() - 1, "Only the newest segment may end with an incomplete record. Found one in " + segment);
+                    int finalPosition = position;
+                    logger.logDebug(() -> "ignoring an incomplete record at byte " + finalPosition + " at the end of " + segment);
+                }
+                lastSegmentNumber = segmentNumber(segment);
+                lastSegmentValidLength = position;
+            }
+            return new Replay(data, nextIndex, recordCount, lastSegmentNumber, lastSegmentValidLength);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    private static int indexOfNewline(byte[] bytes, int start) {
+        for (int i = start; i < bytes.length; i++) {
+            if (bytes[i] == '\n') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * All the segments in this directory, oldest first.
+     */
+    List<Path> listSegments() throws IOException {
+        if (! Files.exists(dbDirectory)) return List.of();
+        try (var pathStream = Files.list(dbDirectory)) {
+            return pathStream
+                    .filter(path -> {
+                        String filename = path.getFileName().toString();
+                        return filename.startsWith(logFilePrefix) && filename.endsWith(logFileSuffix);
+                    })
+                    .sorted(Comparator.comparingLong(DbLogStorage::segmentNumber))
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(long segmentNumber) {
+        return dbDirectory.resolve(String.format("%s%010d%s", logFilePrefix, segmentNumber, logFileSuffix));
+    }
+
+    private static long segmentNumber(Path segment) {
+        String filename = segment.getFileName().toString();
+        return Long.parseLong(filename.substring(logFilePrefix.length(), filename.length() - logFileSuffix.length()));
+    }
+}
@@ -0,0 +1,67 @@
+package minum.database;
+
+import java.util.Map;
+
+/**
+ * The disk-facing half of a {@link Db}.  The {@link Db} keeps all the
+ * data in memory and decides what changes, and an implementation of this
+ * decides how those changes get laid out on disk.
+ * <p>
+ *     The persist methods are only ever called from the {@link Db}'s
+ *     {@link minum.utils.ActionQueue}, one at a time, in batches.  Each
+ *     batch ends with a call to {@link #commit(boolean)}.  Within a batch,
+ *     there is no more than one change for each piece of data, having
+ *     combined the changes made in memory since the previous batch.
+ * </p>
+ * @param <T> the type of data we'll be persisting
+ */
+interface DbStorage<T extends DbData<?>> {
+
+    /**
+     * Called once as the {@link Db} is constructed, to learn where to
+     * start counting for the indexes of new data.
+     */
+    long readNextIndex();
+
+    /**
+     * Reads all the data from disk into the provided map, keyed by index.
+     */
+    void loadData(Map<Long, T> data);
+
+    /**
+     * Persist a newly-written piece of data.
+     */
+    void persistNew(T newData);
+
+    /**
+     * Persist a change to a piece of data already on disk.
+     */
+    void persistUpdate(T dataUpdate);
+
+    /**
+     * Remove a piece of data from disk.
+     */
+    void persistDelete(long dataIndex);
+
+    /**
+     * Called once all the data has been deleted, so that
+     * the index starts back at 1.  This is always the first
+     * change in its batch.
+     */
+    void persistIndexReset();
+
+    /**
+     * Called after each batch of changes.  An implementation may hold
+     * changes in memory until this is called, but must have them written
+     * by the time it returns.
+     * @param syncToDisk if true, don't return until the changes are physically
+     *                   on the disk, rather than just handed to the operating system.
+     *                   See {@link minum.Constants#DB_SYNC_TO_DISK}
+     */
+    void commit(boolean syncToDisk);
+
+    /**
+     * Release any resources held open, such as file handles.
+     */
+    void close();
+}
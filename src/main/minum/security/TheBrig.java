@@ -54,6 +54,11 @@ public final class TheBrig {
      */
     private final Map<String, Long> clientKeys;
 
+    /**
+     * The name of the index in our database for looking up inmates by client identifier
+     */
+    private static final String CLIENT_ID_INDEX = "client_id";
+
     /**
      * Represents an inmate in our "jail".  If someone does something we don't like, they do their time here.
      */
@@ -120,6 +125,7 @@ public final class TheBrig {
         this.logger = context.getLogger();
         Path dbDir = Path.of(constants.DB_DIRECTORY);
         this.db = new Db<>(dbDir.resolve("the_brig"), context, Inmate.EMPTY);
+        this.db.registerIndex(CLIENT_ID_INDEX, Inmate::getClientId);
         this.clientKeys = this.db.values().stream().collect(Collectors.toMap(Inmate::getClientId, Inmate::getDuration));
         this.sleepTime = sleepTime;
     }
@@ -159,9 +165,8 @@ public final class TheBrig {
                     }
                     for (var k : keysToRemove) {
                         logger.logTrace(() -> "TheBrig: removing " + k + " from jail");
-                        List<Inmate> inmates1 = db.values().stream().filter(x -> x.clientId.equals(k)).toList();
-                        mustBeTrue(inmates1.size() == 1, "There must be exactly one inmate found or there's a bug");
-                        Inmate inmateToRemove = inmates1.get(0);
+                        Inmate inmateToRemove = db.findExactlyOne(CLIENT_ID_INDEX, k);
+                        mustBeTrue(inmateToRemove != null, "There must be exactly one inmate found or there's a bug");
                         clientKeys.remove(k);
                         db.delete(inmateToRemove);
                     }
@@ -219,7 +224,7 @@ public final class TheBrig {
         try {
             logger.logDebug(() -> "TheBrig: Putting away " + clientIdentifier + " for " + sentenceDuration + " milliseconds");
             clientKeys.put(clientIdentifier, System.currentTimeMillis() + sentenceDuration);
-            var existingInmates = db.values().stream().filter(x -> x.clientId.equals(clientIdentifier)).count();
+            var existingInmates = db.getIndexedData(CLIENT_ID_INDEX, clientIdentifier).size();
             mustBeTrue(existingInmates < 2, "count of inmates must be either 0 or 1, anything else is a bug");
             if (existingInmates == 0) {
                 Inmate newInmate = new Inmate(0L, clientIdentifier, System.currentTimeMillis() + sentenceDuration);
@@ -1,6 +1,9 @@
 package minum.utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Handy helpers when working with bytes
@@ -29,4 +32,19 @@ public final class ByteUtils {
         }
         return resultArray;
     }
+
+    /**
+     * Compress bytes in the gzip format, as used for the
+     * Content-Encoding of HTTP responses.
+     */
+    public static byte[] gzip(byte[] input) {
+        var compressed = new ByteArrayOutputStream(input.length / 2 + 32);
+        try (var gzipOutputStream = new GZIPOutputStream(compressed)) {
+            gzipOutputStream.write(input);
+        } catch (IOException ex) {
+            // writing to memory, we don't expect to get here
+            throw new RuntimeException(ex);
+        }
+        return compressed.toByteArray();
+    }
 }
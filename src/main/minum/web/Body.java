@@ -3,6 +3,11 @@ package minum.web;
 import minum.Context;
 import minum.utils.StringUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
@@ -34,6 +39,11 @@ public final class Body {
 
     public static byte[] EMPTY_BYTES = new byte[0];
     private final Map<String, byte[]> bodyMap;
+    /**
+     * Parts of a multipart body too large to keep in memory, each in a
+     * temporary file.  See {@link MultipartParser}
+     */
+    private final Map<String, Path> partFiles;
     private final byte[] raw;
     private final Context context;
 
@@ -48,7 +58,16 @@ public final class Body {
      * @param raw the raw bytes of this body
      */
     public Body(Map<String, byte[]> bodyMap, byte[] raw, Context context) {
+        this(bodyMap, Map.of(), raw, context);
+    }
+
+    /**
+     * @param partFiles parts of the body kept in temporary files rather than
+     *                  in memory, by key.  These are deleted by {@link #deleteTempFiles()}
+     */
+    Body(Map<String, byte[]> bodyMap, Map<String, Path> partFiles, byte[] raw, Context context) {
         this.bodyMap = bodyMap;
+        this.partFiles = partFiles;
         this.raw = raw;
         this.context = context;
     }
@@ -59,7 +78,7 @@ public final class Body {
      * as key-value pairs.
      */
     public String asString(String key) {
-        byte[] byteArray = bodyMap.get(key);
+        byte[] byteArray = asBytes(key);
         if (byteArray == null) {
             return "";
         } else {
@@ -83,13 +102,60 @@ public final class Body {
      * organize the data as key-value pairs,
      * and thus if you were expecting that organization,
      * this will get the value by its key.
+     * <p>
+     *     A large part of a multipart upload is kept on disk, and
+     *     this reads all of it into memory.  To avoid that, see
+     *     {@link #asInputStream(String)}
+     * </p>
      */
     public byte[] asBytes(String key) {
+        Path partFile = partFiles.get(key);
+        if (partFile != null) {
+            try {
+                return Files.readAllBytes(partFile);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
         return bodyMap.get(key);
     }
 
     /**
-     * Returns the raw bytes of this HTTP message's body
+     * Like {@link #asBytes(String)}, but as a stream, so that a large
+     * part of a multipart upload - a photo, say - can be copied where
+     * it needs to go without holding all of it in memory.  Returns
+     * null if there is no value for the key.
+     */
+    public InputStream asInputStream(String key) {
+        Path partFile = partFiles.get(key);
+        if (partFile != null) {
+            try {
+                return Files.newInputStream(partFile);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        byte[] value = bodyMap.get(key);
+        return value == null ? null : new ByteArrayInputStream(value);
+    }
+
+    /**
+     * Delete the temporary files holding large parts of a multipart body.
+     * Called once the request has been handled.
+     */
+    void deleteTempFiles() {
+        for (Path partFile : partFiles.values()) {
+            try {
+                Files.deleteIfExists(partFile);
+            } catch (IOException ex) {
+                context.getLogger().logAsyncError(() -> "failed to delete temporary file " + partFile + ". Exception: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the raw bytes of this HTTP message's body.  For a multipart
+     * body read from the client, the parts are kept separately and this is empty.
      */
     public byte[] asBytes() {
         return this.raw;
@@ -14,8 +14,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static minum.utils.Invariants.mustBeTrue;
@@ -60,6 +59,12 @@ final class BodyProcessor {
     Body extractData(InputStream is, Headers h) throws IOException {
         final var contentType = h.contentType();
 
+        // a multipart body of known length is parsed as it is read, so that
+        // large uploads go to disk rather than into memory
+        if (h.contentLength() > 0 && contentType.contains("multipart/form-data")) {
+            return parseMultiform(is, h.contentLength(), contentType);
+        }
+
         byte[] bodyBytes = h.contentLength() > 0 ?
                 inputStreamUtils.read(h.contentLength(), is) :
                 inputStreamUtils.readChunkedEncoding(is);
@@ -82,14 +87,7 @@ final class BodyProcessor {
             if (contentLength > 0 && contentType.contains("application/x-www-form-urlencoded")) {
                 return parseUrlEncodedForm(StringUtils.byteArrayToString(bodyBytes));
             } else if (contentType.contains("multipart/form-data")) {
-                String boundaryKey = "boundary=";
-                int indexOfBoundaryKey = contentType.indexOf(boundaryKey);
-                if (indexOfBoundaryKey > 0) {
-                    // grab all the text after the key
-                    String boundaryValue = contentType.substring(indexOfBoundaryKey + boundaryKey.length());
-                    return parseMultiform(bodyBytes, boundaryValue);
-                }
-                throw new ParsingException("Did not find a valid boundary value for the multipart input. Header was: " + contentType);
+                return parseMultiform(bodyBytes, extractBoundaryValue(contentType));
             } else {
                 logger.logDebug(() -> "did not recognize a key-value pattern content-type, returning an empty map and the raw bytes for the body");
                 return new Body(Map.of(), bodyBytes, context);
@@ -99,6 +97,35 @@ final class BodyProcessor {
         }
     }
 
+    /**
+     * Reads and parses multipart/form-data straight from the client.
+     * See {@link MultipartParser}
+     */
+    private Body parseMultiform(InputStream is, int contentLength, String contentType) throws IOException {
+        int maxReadSize = context.getConstants().MAX_READ_SIZE_BYTES;
+        if (contentLength > maxReadSize) {
+            throw new ForbiddenUseException("client requested to send more bytes than allowed.  Current max: " + maxReadSize + " asked to receive: " + contentLength);
+        }
+        try {
+            return new MultipartParser(context, is, contentLength, extractBoundaryValue(contentType), headerLines -> headerLines.toString())
+                    .parse(Body.EMPTY_BYTES);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new ParsingException("Unable to parse this body", ex);
+        }
+    }
+
+    private String extractBoundaryValue(String contentType) {
+        String boundaryKey = "boundary=";
+        int indexOfBoundaryKey = contentType.indexOf(boundaryKey);
+        if (indexOfBoundaryKey > 0) {
+            // grab all the text after the key
+            return contentType.substring(indexOfBoundaryKey + boundaryKey.length());
+        }
+        throw new ParsingException("Did not find a valid boundary value for the multipart input. Header was: " + contentType);
+    }
+
 
     /**
      * Parse data formatted by application/x-www-form-urlencoded
@@ -152,75 +179,25 @@ final class BodyProcessor {
     }
 
     /**
-     * A regex used to extract the name value from the headers in multipart/form
-     * For example, in the following code, you can see that the name is "image_uploads"
-     * <pre>
-     * {@code
-     * --i_am_a_boundary
-     * Content-Type: text/plain
-     * Content-Disposition: form-data; name="text1"
-     *
-     * I am a value that is text
-     * --i_am_a_boundary
-     * Content-Type: application/octet-stream
-     * Content-Disposition: form-data; name="image_uploads"; filename="photo_preview.jpg"
-     * }
-     * </pre>
-     */
-    private final static Pattern multiformNameRegex = Pattern.compile("\\bname\\b=\"(?<namevalue>.*?)\"");
-
-    /**
-     * Extract multipart/form data from a body.  See docs/http_protocol/returning_values_from_multipart_rfc_7578.txt
+     * Extract multipart/form data from a body we already hold in memory.
+     * See {@link MultipartParser}
      */
     Body parseMultiform(byte[] body, String boundaryValue) {
-        // how to split this up? It's a mix of strings and bytes.
-        List<byte[]> partitions = split(body, "--" + boundaryValue);
-        // What we can bear in mind is that once we've read the headers, and gotten
-        // past the single blank line, *everything else* is pure data.
-        final var result = new HashMap<String, byte[]>();
-        for (var df : partitions) {
-            final var is = new ByteArrayInputStream(df);
-
-            Headers headers;
-            try {
-                headers = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
-            } catch (IOException e) {
-                // This is an InputStream we built ourselves from local data.
-                // there's no reason why it should fail.
-                throw new RuntimeException(e);
-            }
-
-            List<String> cds = headers.valueByKey("Content-Disposition");
-            String contentDisposition = String.join(";", cds == null ? List.of("") : cds);
-
-            Matcher matcher = multiformNameRegex.matcher(contentDisposition);
-
-            if (matcher.find()) {
-                String name = matcher.group("namevalue");
-                // at this point our inputstream pointer is at the beginning of the
-                // body data.  From here until the end it's pure data.
-                byte[] data;
-                try {
-                    data = inputStreamUtils.readUntilEOF(is);
-                } catch (IOException e) {
-                    // This is an InputStream we built ourselves from local data.
-                    // there's no reason why it should fail.
-                    throw new RuntimeException(e);
-                }
-                result.put(name, data);
-            }
-            else {
-                String returnedData;
-                if (body.length > MAX_SIZE_DATA_RETURNED_IN_EXCEPTION) {
-                    returnedData = StringUtils.byteArrayToString(Arrays.copyOf(body, MAX_SIZE_DATA_RETURNED_IN_EXCEPTION)) + " ... (remainder of data trimmed)";
-                } else {
-                    returnedData = StringUtils.byteArrayToString(body);
-                }
-                throw new ParsingException("No name value found in the headers of a partition. Data: " + returnedData);
+        // if we can't make sense of the data, the error includes the start of it
+        Function<List<String>, String> describeForErrors = headerLines -> {
+            if (body.length > MAX_SIZE_DATA_RETURNED_IN_EXCEPTION) {
+                return StringUtils.byteArrayToString(Arrays.copyOf(body, MAX_SIZE_DATA_RETURNED_IN_EXCEPTION)) + " ... (remainder of data trimmed)";
+            } else {
+                return StringUtils.byteArrayToString(body);
             }
-
+        };
+        try {
+            return new MultipartParser(context, new ByteArrayInputStream(body), body.length, boundaryValue, describeForErrors).parse(body);
+        } catch (IOException e) {
+            // This is an InputStream we built ourselves from local data.
+            // there's no reason why it should fail.
+            throw new RuntimeException(e);
         }
-        return new Body(result, body, context);
     }
 
     /**
@@ -229,30 +206,17 @@ final class BodyProcessor {
      */
     List<byte[]> split(byte[] body, String boundaryValue) {
         List<byte[]> result = new ArrayList<>();
-        List<Integer> indexesOfEndsOfBoundaries = new ArrayList<>();
-        byte[] boundaryValueBytes = boundaryValue.getBytes(StandardCharsets.UTF_8);
-        int indexIntoBoundaryValue = 0;
-        for (int i = 0; i < body.length; i++) {
-            if (body[i] == boundaryValueBytes[indexIntoBoundaryValue]) {
-                if (indexIntoBoundaryValue == boundaryValueBytes.length - 1) {
-                    // have to add two to account for *either* CR+LF or two dashes.  Multipart
-                    // form is so complicated!
-                    indexesOfEndsOfBoundaries.add(i + 2);
-                    indexIntoBoundaryValue = 0;
-                }
-                indexIntoBoundaryValue += 1;
-            } else {
-                indexIntoBoundaryValue = 0;
-            }
-        }
-        // now we know where the boundaries are in this hunk of data.  Partition time!
+        var boundarySearch = new BoundarySearch(boundaryValue.getBytes(StandardCharsets.UTF_8));
         int indexInBody = 0;
-        for (int endOfBoundaryIndex : indexesOfEndsOfBoundaries) {
-            // the minus one plus two silliness is to make clear that we're calculating for two extra chars after the boundary
-            if (indexInBody != endOfBoundaryIndex-(boundaryValue.length() + 2 - 1)) {
-                result.add(Arrays.copyOfRange(body, indexInBody, endOfBoundaryIndex-(boundaryValue.length() + 2 -1)));
+        int boundaryStart = boundarySearch.indexOf(body, 0, body.length);
+        while (boundaryStart >= 0) {
+            if (indexInBody != boundaryStart) {
+                result.add(Arrays.copyOfRange(body, indexInBody, boundaryStart));
             }
-            indexInBody = endOfBoundaryIndex+1;
+            // have to add two to account for *either* CR+LF or two dashes
+            // after the boundary.  Multipart form is so complicated!
+            indexInBody = boundaryStart + boundarySearch.length() + 2;
+            boundaryStart = boundarySearch.indexOf(body, boundaryStart + boundarySearch.length(), body.length);
         }
         return result;
     }
@@ -0,0 +1,20 @@
+package minum.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Writes the body of a streamed {@link Response}, a piece at a time,
+ * as it goes out to the client.  See {@link Response#streaming(StatusLine.StatusCode, Map, BodyWriter)}
+ */
+@FunctionalInterface
+public interface BodyWriter {
+
+    /**
+     * Write the body to the provided stream.  There is no need to
+     * flush or close it - the framework finishes the body off
+     * once this returns.
+     */
+    void write(OutputStream out) throws IOException;
+}
@@ -0,0 +1,62 @@
+package minum.web;
+
+import java.util.Arrays;
+
+import static minum.utils.Invariants.mustBeTrue;
+
+/**
+ * Finds a multipart boundary in a span of bytes, using the
+ * <a href="https://en.wikipedia.org/wiki/Boyer%E2%80%93Moore%E2%80%93Horspool_algorithm">Boyer-Moore-Horspool</a>
+ * algorithm.
+ * <p>
+ *     Rather than checking every byte, we look at the byte where the end
+ *     of the boundary would be.  If that byte doesn't appear in the boundary
+ *     at all - which, for the random-looking boundaries browsers make, is
+ *     most of the time - we can jump ahead by the full length of the boundary.
+ *     The jump for each byte value is worked out once, up front, per boundary.
+ * </p>
+ */
+final class BoundarySearch {
+
+    private final byte[] pattern;
+
+    /**
+     * For each byte value, how far we may move ahead when that
+     * value is under the last position of the pattern.
+     */
+    private final int[] skip;
+
+    BoundarySearch(byte[] pattern) {
+        mustBeTrue(pattern.length > 0, "the boundary to search for must not be empty");
+        this.pattern = pattern;
+        this.skip = new int[256];
+        Arrays.fill(skip, pattern.length);
+        for (int i = 0; i < pattern.length - 1; i++) {
+            skip[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+    }
+
+    /**
+     * Returns the index of the first place the pattern starts within
+     * data, from (inclusive) up to to (exclusive), or -1 if it doesn't
+     * appear there in full.
+     */
+    int indexOf(byte[] data, int from, int to) {
+        final int last = pattern.length - 1;
+        int i = from;
+        while (i + last < to) {
+            byte b = data[i + last];
+            if (b == pattern[last]) {
+                int j = last - 1;
+                while (j >= 0 && data[i + j] == pattern[j]) j--;
+                if (j < 0) return i;
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
+    }
+
+    int length() {
+        return pattern.length;
+    }
+}
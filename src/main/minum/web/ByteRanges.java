@@ -0,0 +1,127 @@
+package minum.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Handles the Range header, by which a client asks for only part of
+ * a response - for example, to seek partway into a video, or to resume
+ * a download that was cut off.
+ * <p>
+ *     We honor ranges on successful responses to GET that say they accept
+ *     them, with a header of "Accept-Ranges: bytes".  Responses made by
+ *     {@link Response#fromFile} and static files say so automatically.
+ * </p>
+ * See <a href="https://www.rfc-editor.org/rfc/rfc9110.html#name-range-requests">Range Requests</a>
+ */
+final class ByteRanges {
+
+    private ByteRanges() {
+        // cannot construct
+    }
+
+    /**
+     * More ranges than this in one request, and we will just send
+     * the whole thing.  Asking for many tiny overlapping ranges is a
+     * known way to make a server do a lot of work for nothing.
+     */
+    static final int MAX_RANGES = 16;
+
+    /**
+     * A range of bytes, from start to end, inclusive of both, as
+     * they are written in the Range and Content-Range headers.
+     */
+    record Range(long start, long end) {
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long bodyLength) {
+            return "bytes " + start + "-" + end + "/" + bodyLength;
+        }
+    }
+
+    /**
+     * Determine which parts of the body the client asked for.
+     * @return null if we should send the whole body as usual - because there was
+     * no Range header, we couldn't make sense of it, or it doesn't apply here.  An
+     * empty list means none of the ranges asked for fit within the body, meaning
+     * a 416 Range Not Satisfiable.
+     */
+    static List<Range> requestedRanges(Request request, Response response, long bodyLength) {
+        if (response.statusCode() != StatusLine.StatusCode._200_OK) return null;
+        if (request.startLine().getVerb() != StartLine.Verb.GET) return null;
+        if (! "bytes".equals(headerValue(response, "accept-ranges"))) return null;
+
+        List<String> rangeHeaders = request.headers().valueByKey("range");
+        if (rangeHeaders == null || rangeHeaders.size() != 1) return null;
+
+        // If-Range means "send me the ranges if the version I have is still current, otherwise send it all"
+        List<String> ifRange = request.headers().valueByKey("if-range");
+        if (ifRange != null && ! isStillCurrent(ifRange.get(0), response)) return null;
+
+        return parse(rangeHeaders.get(0), bodyLength);
+    }
+
+    /**
+     * Parses a Range header value, e.g. "bytes=0-499, 1000-, -200"
+     * @return as described in {@link #requestedRanges}
+     */
+    static List<Range> parse(String rangeHeader, long bodyLength) {
+        String value = rangeHeader.trim();
+        if (! value.toLowerCase(Locale.ROOT).startsWith("bytes=")) return null;
+
+        String[] specs = value.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) return null;
+        var ranges = new ArrayList<Range>();
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    // a suffix, like -200, meaning the last 200 bytes
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength < 0) return null;
+                    if (suffixLength == 0 || bodyLength == 0) continue;
+                    ranges.add(new Range(Math.max(0, bodyLength - suffixLength), bodyLength - 1));
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) return null;
+                    if (start >= bodyLength) continue;
+                    ranges.add(new Range(start, Math.min(end, bodyLength - 1)));
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * If-Range holds either an ETag or a date.  Either way, it has to be
+     * an exact match to what we have now.
+     */
+    private static boolean isStillCurrent(String ifRange, Response response) {
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            // only a strong ETag will do for ranges
+            return value.equals(headerValue(response, "etag"));
+        } else if (value.startsWith("W/")) {
+            return false;
+        } else {
+            return value.equals(headerValue(response, "last-modified"));
+        }
+    }
+
+    private static String headerValue(Response response, String key) {
+        for (var header : response.extraHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(key)) return header.getValue();
+        }
+        return null;
+    }
+}
@@ -3,12 +3,11 @@ package minum.web;
 import minum.Constants;
 import minum.Context;
 import minum.exceptions.ForbiddenUseException;
+import minum.utils.InvariantException;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static minum.utils.Invariants.mustBeTrue;
 
@@ -41,6 +40,29 @@ public final class Headers{
     private final Context context;
     private final Map<String, List<String>> headersMap;
 
+    /*
+    The names of the headers we look at for nearly every request, ready
+    in lowercase.  When a client sends one of these, we use the string
+    here as its key rather than making a lowercase copy of its own.
+     */
+    private static final String CONTENT_TYPE = "content-type";
+    private static final String CONTENT_LENGTH = "content-length";
+    private static final String CONNECTION = "connection";
+    private static final String COOKIE = "cookie";
+    private static final String ACCEPT_ENCODING = "accept-encoding";
+    private static final String HOST = "host";
+    private static final String USER_AGENT = "user-agent";
+    private static final String ACCEPT = "accept";
+    private static final String TRANSFER_ENCODING = "transfer-encoding";
+    private static final List<String> COMMON_NAMES = List.of(CONTENT_TYPE, CONTENT_LENGTH, CONNECTION, COOKIE,
+            ACCEPT_ENCODING, HOST, USER_AGENT, ACCEPT, TRANSFER_ENCODING);
+
+    /**
+     * The whole line of the first content-type header, and how many there were.
+     */
+    private String contentTypeHeader;
+    private int contentTypeHeadersCount;
+
 
     /**
      * It is rare you will use this constructor.  Instead, see {@link Headers#make(Context, InputStreamUtils)}
@@ -53,6 +75,7 @@ public final class Headers{
         this.context = context;
         this.constants = context.getConstants();
         this.headerStrings = headerStrings;
+        this.contentTypeHeader = "";
         this.headersMap = Collections.unmodifiableMap(extractHeadersToMap());
     }
 
@@ -60,12 +83,6 @@ public final class Headers{
         return headerStrings;
     }
 
-    /**
-     * Used for extracting the length of the body, in POSTs and
-     * responses from servers
-     */
-    private final static Pattern contentLengthRegex = Pattern.compile("^[cC]ontent-[lL]ength: (.*)$");
-
     /**
      * Run this command to build a Headers object.
      */
@@ -86,46 +103,52 @@ public final class Headers{
 
     /**
      * Obtain any desired header by looking it up in this map.  All keys
-     * are made lowercase.
+     * are made lowercase.  This is done once, as the headers arrive, so
+     * that looking up a header afterwards is quick.
      */
     private Map<String, List<String>> extractHeadersToMap() {
         var result = new HashMap<String, List<String>>();
         for (var h : headerStrings) {
-            var indexOfFirstColon = h.indexOf(":");
+            var indexOfFirstColon = h.indexOf(':');
 
             // if the header is malformed, just move on
             if (indexOfFirstColon <= 0) continue;
 
-            String key = h.substring(0, indexOfFirstColon).toLowerCase(Locale.ROOT);
+            String key = lowercaseName(h, indexOfFirstColon);
             String value = h.substring(indexOfFirstColon+1).trim();
 
-            if (result.containsKey(key)) {
-                var currentValue = result.get(key);
-                List<String> newList = new ArrayList<>();
-                newList.add(value);
-                newList.addAll(currentValue);
-                result.put(key, newList);
-            } else {
-                result.put(key, List.of(value));
+            if (key.equals(CONTENT_TYPE)) {
+                if (contentTypeHeadersCount == 0) contentTypeHeader = h;
+                contentTypeHeadersCount++;
             }
 
+            result.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
         }
+        // wrapped only once all the values are in, so a repeated header isn't copied each time
+        result.replaceAll((k, values) -> Collections.unmodifiableList(values));
         return result;
     }
 
+    /**
+     * The lowercase name of a header, which is everything before its colon.
+     */
+    private static String lowercaseName(String header, int indexOfFirstColon) {
+        for (String name : COMMON_NAMES) {
+            if (name.length() == indexOfFirstColon && header.regionMatches(true, 0, name, 0, indexOfFirstColon)) {
+                return name;
+            }
+        }
+        return header.substring(0, indexOfFirstColon).toLowerCase(Locale.ROOT);
+    }
+
     /**
      * Gets the one content-type header, or returns an empty string
      */
     public String contentType() {
-        // find the header that starts with content-type
-        List<String> cts = headerStrings.stream().filter(x -> x.toLowerCase(Locale.ROOT).startsWith("content-type")).toList();
-        mustBeTrue(cts.isEmpty() || cts.size() == 1, "The number of content-type headers must be exactly zero or one.  Recieved: " + cts);
-        if (!cts.isEmpty()) {
-            return cts.get(0);
-        }
+        mustBeTrue(contentTypeHeadersCount <= 1, "The number of content-type headers must be exactly zero or one.  Recieved: " + headersMap.get(CONTENT_TYPE));
 
-        // if we don't find a content-type header, or if we don't find one we can handle, return an empty string.
-        return "";
+        // if we don't find a content-type header, this is an empty string.
+        return contentTypeHeader;
     }
 
     /**
@@ -134,16 +157,16 @@ public final class Headers{
      * we do not find a content length, return -1.
      */
     public int contentLength() {
-        List<String> cl = headerStrings.stream().filter(x -> x.toLowerCase(Locale.ROOT).startsWith("content-length")).toList();
-        mustBeTrue(cl.isEmpty() || cl.size() == 1, "The number of content-length headers must be exactly zero or one.  Received: " + cl);
-        int contentLength = -1;
-        if (!cl.isEmpty()) {
-            Matcher clMatcher = contentLengthRegex.matcher(cl.get(0));
-            mustBeTrue(clMatcher.matches(), "The content length header value must match the contentLengthRegex");
-            contentLength = Integer.parseInt(clMatcher.group(1));
-            mustBeTrue(contentLength >= 0, "Content-length cannot be negative");
+        List<String> cl = headersMap.get(CONTENT_LENGTH);
+        if (cl == null) return -1;
+        mustBeTrue(cl.size() == 1, "The number of content-length headers must be exactly zero or one.  Received: " + cl);
+        int contentLength;
+        try {
+            contentLength = Integer.parseInt(cl.get(0));
+        } catch (NumberFormatException ex) {
+            throw new InvariantException("The content length header value must be a number.  Received: " + cl.get(0));
         }
-
+        mustBeTrue(contentLength >= 0, "Content-length cannot be negative");
         return contentLength;
     }
 
@@ -152,9 +175,7 @@ public final class Headers{
      * have a Connection: Keep-Alive
      */
     public boolean hasKeepAlive() {
-        List<String> connectionHeader = headersMap.get("connection");
-        if (connectionHeader == null) return false;
-        return connectionHeader.stream().anyMatch(x -> x.toLowerCase().contains("keep-alive"));
+        return anyValueContains(CONNECTION, "keep-alive");
     }
 
     /**
@@ -162,9 +183,53 @@ public final class Headers{
      * have a Connection: close
      */
     public boolean hasConnectionClose() {
-        List<String> connectionHeader = headersMap.get("connection");
-        if (connectionHeader == null) return false;
-        return connectionHeader.stream().anyMatch(x -> x.toLowerCase().contains("close"));
+        return anyValueContains(CONNECTION, "close");
+    }
+
+    /**
+     * Whether any value of a header contains some lowercase text, ignoring case
+     */
+    private boolean anyValueContains(String key, String text) {
+        List<String> values = headersMap.get(key);
+        if (values == null) return false;
+        for (String value : values) {
+            for (int i = 0; i + text.length() <= value.length(); i++) {
+                if (value.regionMatches(true, i, text, 0, text.length())) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether the client told us, through Accept-Encoding, that
+     * it can handle a response body in this encoding (e.g. "gzip").  An
+     * encoding listed with a quality of zero (e.g. "gzip;q=0") is refused.
+     * See <a href="https://www.rfc-editor.org/rfc/rfc9110.html#name-accept-encoding">Accept-Encoding</a>
+     */
+    public boolean acceptsEncoding(String encoding) {
+        List<String> acceptEncodingHeaders = headersMap.get(ACCEPT_ENCODING);
+        if (acceptEncodingHeaders == null) return false;
+        boolean acceptedByWildcard = false;
+        for (String header : acceptEncodingHeaders) {
+            for (String item : header.split(",")) {
+                String[] parts = item.split(";");
+                String name = parts[0].trim();
+                boolean isRefused = false;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=") || param.startsWith("Q=")) {
+                        try {
+                            isRefused = Double.parseDouble(param.substring(2).trim()) == 0;
+                        } catch (NumberFormatException ex) {
+                            isRefused = true;
+                        }
+                    }
+                }
+                if (name.equalsIgnoreCase(encoding)) return ! isRefused;
+                if (name.equals("*")) acceptedByWildcard = ! isRefused;
+            }
+        }
+        return acceptedByWildcard;
     }
 
     /**
@@ -0,0 +1,470 @@
+package minum.web;
+
+import minum.htmlparsing.ParsingException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HPACK, the compression HTTP/2 uses for headers.
+ * See <a href="https://www.rfc-editor.org/rfc/rfc7541">RFC 7541</a>
+ * <p>
+ *     The {@link Decoder} handles everything a client may send us - the
+ *     static and dynamic tables, and Huffman-coded strings.  The {@link Encoder}
+ *     keeps things simple: each header is sent as a literal, naming the static
+ *     table entry where there is one, and nothing is added to the dynamic table.
+ *     That costs a few bytes per response, but leaves the client's decoder
+ *     nothing to keep in step with.
+ * </p>
+ */
+final class Hpack {
+
+    private Hpack() {
+        // not meant to be constructed.
+    }
+
+    record HeaderField(String name, String value) {
+
+        /**
+         * The size of a header, as counted against the size of the
+         * dynamic table and the size of a header list.
+         */
+        int size() {
+            return name.length() + value.length() + 32;
+        }
+    }
+
+    /**
+     * See <a href="https://www.rfc-editor.org/rfc/rfc7541#appendix-A">Appendix A</a>.
+     * Index 1 is the first entry.
+     */
+    private static final HeaderField[] STATIC_TABLE = {
+            null,
+            new HeaderField(":authority", ""),
+            new HeaderField(":method", "GET"),
+            new HeaderField(":method", "POST"),
+            new HeaderField(":path", "/"),
+            new HeaderField(":path", "/index.html"),
+            new HeaderField(":scheme", "http"),
+            new HeaderField(":scheme", "https"),
+            new HeaderField(":status", "200"),
+            new HeaderField(":status", "204"),
+            new HeaderField(":status", "206"),
+            new HeaderField(":status", "304"),
+            new HeaderField(":status", "400"),
+            new HeaderField(":status", "404"),
+            new HeaderField(":status", "500"),
+            new HeaderField("accept-charset", ""),
+            new HeaderField("accept-encoding", "gzip, deflate"),
+            new HeaderField("accept-language", ""),
+            new HeaderField("accept-ranges", ""),
+            new HeaderField("accept", ""),
+            new HeaderField("access-control-allow-origin", ""),
+            new HeaderField("age", ""),
+            new HeaderField("allow", ""),
+            new HeaderField("authorization", ""),
+            new HeaderField("cache-control", ""),
+            new HeaderField("content-disposition", ""),
+            new HeaderField("content-encoding", ""),
+            new HeaderField("content-language", ""),
+            new HeaderField("content-length", ""),
+            new HeaderField("content-location", ""),
+            new HeaderField("content-range", ""),
+            new HeaderField("content-type", ""),
+            new HeaderField("cookie", ""),
+            new HeaderField("date", ""),
+            new HeaderField("etag", ""),
+            new HeaderField("expect", ""),
+            new HeaderField("expires", ""),
+            new HeaderField("from", ""),
+            new HeaderField("host", ""),
+            new HeaderField("if-match", ""),
+            new HeaderField("if-modified-since", ""),
+            new HeaderField("if-none-match", ""),
+            new HeaderField("if-range", ""),
+            new HeaderField("if-unmodified-since", ""),
+            new HeaderField("last-modified", ""),
+            new HeaderField("link", ""),
+            new HeaderField("location", ""),
+            new HeaderField("max-forwards", ""),
+            new HeaderField("proxy-authenticate", ""),
+            new HeaderField("proxy-authorization", ""),
+            new HeaderField("range", ""),
+            new HeaderField("referer", ""),
+            new HeaderField("refresh", ""),
+            new HeaderField("retry-after", ""),
+            new HeaderField("server", ""),
+            new HeaderField("set-cookie", ""),
+            new HeaderField("strict-transport-security", ""),
+            new HeaderField("transfer-encoding", ""),
+            new HeaderField("user-agent", ""),
+            new HeaderField("vary", ""),
+            new HeaderField("via", ""),
+            new HeaderField("www-authenticate", ""),
+    };
+
+    /**
+     * Reads header blocks from a client.  There is one of these for
+     * each connection, since the dynamic table carries over from one
+     * header block to the next.
+     */
+    static final class Decoder {
+
+        /**
+         * The dynamic table, oldest entry first.  Index 62 is the newest.
+         */
+        private final List<HeaderField> dynamicTable = new ArrayList<>();
+        private int dynamicTableSize;
+        private int maxDynamicTableSize;
+
+        /**
+         * The most the client may set the size of the dynamic table
+         * to - what we told them in our settings.
+         */
+        private final int maxAllowedTableSize;
+
+        /**
+         * The most we'll decode in a single header block, so that a small
+         * block repeatedly naming a large table entry can't use up our memory.
+         */
+        private final int maxHeaderListSize;
+
+        private byte[] data;
+        private int position;
+        private int end;
+
+        Decoder(int maxAllowedTableSize, int maxHeaderListSize) {
+            this.maxAllowedTableSize = maxAllowedTableSize;
+            this.maxDynamicTableSize = maxAllowedTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /**
+         * Decode a complete header block.
+         * @throws ParsingException if the block isn't valid HPACK, or decodes
+         *         to more than the allowed size.  Since the dynamic table
+         *         may then be out of step with the client's, the
+         *         connection can't be used after this.
+         */
+        List<HeaderField> decode(byte[] block) {
+            this.data = block;
+            this.position = 0;
+            this.end = block.length;
+            var headers = new ArrayList<HeaderField>();
+            int headerListSize = 0;
+            while (position < end) {
+                int b = data[position] & 0xff;
+                HeaderField field;
+                if ((b & 0x80) != 0) {
+                    // indexed header field
+                    field = fieldAt(readInteger(7));
+                } else if ((b & 0xc0) == 0x40) {
+                    // literal header field with incremental indexing
+                    field = readLiteral(6);
+                    addToDynamicTable(field);
+                } else if ((b & 0xe0) == 0x20) {
+                    // dynamic table size update, only allowed at the start of a block
+                    if (! headers.isEmpty()) {
+                        throw new ParsingException("HPACK dynamic table size update after a header field");
+                    }
+                    int newSize = readInteger(5);
+                    if (newSize > maxAllowedTableSize) {
+                        throw new ParsingException("HPACK dynamic table size update of " + newSize + " is larger than allowed: " + maxAllowedTableSize);
+                    }
+                    maxDynamicTableSize = newSize;
+                    evictUntilSize(maxDynamicTableSize);
+                    continue;
+                } else {
+                    // literal header field without indexing, or never indexed
+                    field = readLiteral(4);
+                }
+                headerListSize += field.size();
+                if (headerListSize > maxHeaderListSize) {
+                    throw new ParsingException("HPACK header block decodes to more than allowed.  Current max: " + maxHeaderListSize);
+                }
+                headers.add(field);
+            }
+            this.data = null;
+            return headers;
+        }
+
+        private HeaderField readLiteral(int prefixBits) {
+            int index = readInteger(prefixBits);
+            String name = index == 0 ? readString() : fieldAt(index).name();
+            String value = readString();
+            return new HeaderField(name, value);
+        }
+
+        private HeaderField fieldAt(int index) {
+            if (index <= 0) {
+                throw new ParsingException("HPACK index of 0 is not allowed");
+            }
+            if (index < STATIC_TABLE.length) {
+                return STATIC_TABLE[index];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length;
+            if (dynamicIndex >= dynamicTable.size()) {
+                throw new ParsingException("HPACK index " + index + " is past the end of the table");
+            }
+            return dynamicTable.get(dynamicTable.size() - 1 - dynamicIndex);
+        }
+
+        private void addToDynamicTable(HeaderField field) {
+            // an entry larger than the whole table just empties it
+            evictUntilSize(maxDynamicTableSize - field.size());
+            if (field.size() <= maxDynamicTableSize) {
+                dynamicTable.add(field);
+                dynamicTableSize += field.size();
+            }
+        }
+
+        private void evictUntilSize(int size) {
+            while (! dynamicTable.isEmpty() && dynamicTableSize > size) {
+                dynamicTableSize -= dynamicTable.remove(0).size();
+            }
+        }
+
+        /**
+         * See <a href="https://www.rfc-editor.org/rfc/rfc7541#section-5.1">Integer Representation</a>
+         */
+        private int readInteger(int prefixBits) {
+            int mask = (1 << prefixBits) - 1;
+            int value = data[position++] & mask;
+            if (value < mask) return value;
+            int shift = 0;
+            while (true) {
+                if (position >= end) {
+                    throw new ParsingException("HPACK integer runs past the end of the header block");
+                }
+                int b = data[position++] & 0xff;
+                if (shift > 21) {
+                    throw new ParsingException("HPACK integer is too large");
+                }
+                value += (b & 0x7f) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        /**
+         * See <a href="https://www.rfc-editor.org/rfc/rfc7541#section-5.2">String Literal Representation</a>
+         */
+        private String readString() {
+            if (position >= end) {
+                throw new ParsingException("HPACK string runs past the end of the header block");
+            }
+            boolean isHuffman = (data[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) {
+                throw new ParsingException("HPACK string runs past the end of the header block");
+            }
+            String value = isHuffman ?
+                    Huffman.decode(data, position, length) :
+                    new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+
+    /**
+     * Writes header blocks for our responses.
+     */
+    static final class Encoder {
+
+        private static final Map<HeaderField, Integer> staticFieldIndexes = new HashMap<>();
+        private static final Map<String, Integer> staticNameIndexes = new HashMap<>();
+        static {
+            for (int i = STATIC_TABLE.length - 1; i > 0; i--) {
+                staticFieldIndexes.put(STATIC_TABLE[i], i);
+                staticNameIndexes.put(STATIC_TABLE[i].name(), i);
+            }
+        }
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        /**
+         * Add a header to the block.  Names are sent in lower case, as HTTP/2 requires.
+         */
+        Encoder header(String name, String value) {
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            Integer fieldIndex = staticFieldIndexes.get(new HeaderField(lowerName, value));
+            if (fieldIndex != null) {
+                writeInteger(0x80, 7, fieldIndex);
+                return this;
+            }
+            // literal header field without indexing
+            Integer nameIndex = staticNameIndexes.get(lowerName);
+            if (nameIndex != null) {
+                writeInteger(0x00, 4, nameIndex);
+            } else {
+                out.write(0x00);
+                writeString(lowerName);
+            }
+            writeString(value);
+            return this;
+        }
+
+        /**
+         * Returns the header block, and starts a new one.
+         */
+        byte[] finish() {
+            byte[] result = out.toByteArray();
+            out.reset();
+            return result;
+        }
+
+        private void writeInteger(int flags, int prefixBits, int value) {
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInteger(0x00, 7, bytes.length);
+            out.writeBytes(bytes);
+        }
+    }
+
+    /**
+     * The Huffman code HPACK uses for strings.  Clients usually
+     * encode with this whenever it comes out shorter.
+     * See <a href="https://www.rfc-editor.org/rfc/rfc7541#appendix-B">Appendix B</a>
+     */
+    static final class Huffman {
+
+        private Huffman() {
+            // not meant to be constructed.
+        }
+
+        /**
+         * The code for each byte value, right-aligned.  The end-of-string
+         * code is left out, since it must never appear in a string.
+         */
+        private static final int[] CODES = {
+                0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+                0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+                0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+                0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+                0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+                0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+                0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+                0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+                0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+                0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+                0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+                0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+                0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+                0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+                0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+                0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+                0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+                0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+                0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+                0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+                0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+                0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+                0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+                0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+                0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+                0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+                0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+                0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+                0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+                0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+                0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+                0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        };
+
+        private static final byte[] CODE_LENGTHS = {
+                13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+                28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+                6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+                5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+                13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+                7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+                15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+                6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+                20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+                24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+                22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+                21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+                26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+                19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+                20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+                26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        };
+
+        /*
+         * The codes as a binary tree, one bit per step.  For each node, the
+         * index of the next node for a 0 bit and for a 1 bit, or -1 if there is
+         * none.  A leaf holds the byte value decoded there, and -1 otherwise.
+         */
+        private static final int[] zeroChild = new int[512];
+        private static final int[] oneChild = new int[512];
+        private static final int[] symbol = new int[512];
+        static {
+            Arrays.fill(zeroChild, -1);
+            Arrays.fill(oneChild, -1);
+            Arrays.fill(symbol, -1);
+            int nodeCount = 1;
+            for (int value = 0; value < CODES.length; value++) {
+                int node = 0;
+                for (int bit = CODE_LENGTHS[value] - 1; bit >= 0; bit--) {
+                    int[] children = ((CODES[value] >>> bit) & 1) == 0 ? zeroChild : oneChild;
+                    if (children[node] < 0) {
+                        children[node] = nodeCount++;
+                    }
+                    node = children[node];
+                }
+                symbol[node] = value;
+            }
+        }
+
+        static String decode(byte[] data, int offset, int length) {
+            var result = new ByteArrayOutputStream(length * 8 / 5 + 1);
+            int node = 0;
+            // bits read since the last complete code, which at the end must be
+            // fewer than 8, and all ones (the start of the end-of-string code).
+            int pendingBits = 0;
+            boolean isAllOnes = true;
+            for (int i = offset; i < offset + length; i++) {
+                int b = data[i];
+                for (int bit = 7; bit >= 0; bit--) {
+                    boolean isOne = ((b >>> bit) & 1) == 1;
+                    node = isOne ? oneChild[node] : zeroChild[node];
+                    if (node < 0) {
+                        throw new ParsingException("Invalid Huffman code in HPACK string");
+                    }
+                    pendingBits++;
+                    isAllOnes &= isOne;
+                    if (symbol[node] >= 0) {
+                        result.write(symbol[node]);
+                        node = 0;
+                        pendingBits = 0;
+                        isAllOnes = true;
+                    }
+                }
+            }
+            if (pendingBits > 7 || ! isAllOnes) {
+                throw new ParsingException("Invalid padding at the end of a Huffman-coded HPACK string");
+            }
+            return result.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,1037 @@
+package minum.web;
+
+import minum.Constants;
+import minum.Context;
+import minum.htmlparsing.ParsingException;
+import minum.logging.ILogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serial;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import static minum.web.StatusLine.StatusCode._304_NOT_MODIFIED;
+import static minum.web.StatusLine.StatusCode._404_NOT_FOUND;
+
+/**
+ * A connection with a client speaking HTTP/2, which we agree on during
+ * the TLS handshake.  See {@link ISocketWrapper#getApplicationProtocol()}
+ * and <a href="https://www.rfc-editor.org/rfc/rfc9113">RFC 9113</a>
+ * <p>
+ *     Unlike HTTP/1.1, a client may have many requests going at once on a
+ *     single connection, each on its own stream.  The thread that calls
+ *     {@link #run()} does all the reading: it collects the headers and body
+ *     of each request, and once a request is complete, hands it to one of
+ *     the server's workers for streams (see {@link WorkerPool#submitStream}).
+ *     The workers send their responses as they finish, in whatever order
+ *     that is, taking turns on the socket a frame at a time.
+ * </p>
+ * <p>
+ *     A stream counts against our limit of concurrent streams until its
+ *     worker is done, even if the client resets it sooner.  Otherwise, a
+ *     client could open and reset streams as fast as it liked, and leave us
+ *     with far more work than the limit allows (the "rapid reset" attack).
+ *     A client that keeps opening streams past the limit is told to calm
+ *     down, and disconnected.
+ * </p>
+ * <p>
+ *     Flow control applies to what we send - a worker waits when the client's
+ *     window is used up.  For what we receive, {@link Constants#MAX_READ_SIZE_BYTES}
+ *     limits the size of each body, and the bodies held for a connection's
+ *     requests together may be twice that.  We give the window back as each
+ *     piece of a body arrives, until the bodies near that limit, and then
+ *     hold onto it until a worker is done with a request, so the client waits.
+ *     A client that sends more anyway has the stream that went past the limit
+ *     refused.
+ * </p>
+ * <p>
+ *     Left out: server push, stream priorities (which RFC 9113 deprecates),
+ *     and byte ranges - we ignore a Range header and send the whole body.
+ * </p>
+ */
+final class Http2Connection {
+
+    /**
+     * What the client sends first, before any frames
+     */
+    static final byte[] CLIENT_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    static final int FRAME_HEADER_LENGTH = 9;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    static final int DEFAULT_WINDOW_SIZE = 65_535;
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final byte[] EMPTY = new byte[0];
+
+    // frame types
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    // frame flags
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY = 0x20;
+
+    // settings
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // error codes
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    /**
+     * Headers that only mean something to a single HTTP/1.1 connection,
+     * and which HTTP/2 forbids.
+     */
+    private static final Set<String> connectionSpecificHeaders = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private final Context context;
+    private final Constants constants;
+    private final ILogger logger;
+    private final ISocketWrapper sw;
+    private final InputStream is;
+    private final BodyProcessor bodyProcessor;
+    private final Function<Request, Response> requestHandler;
+    private final Hpack.Decoder hpackDecoder;
+    private final int maxHeaderListSize;
+    private final long maxBufferedBodyBytes;
+
+    /**
+     * The streams the client has open, whether we're still reading their
+     * request or working on their response.  Changed only by the reading
+     * thread, except that a worker removes its stream once it has responded.
+     * A stream being worked on stays here even if the client resets it, so
+     * it still counts against {@link #MAX_CONCURRENT_STREAMS}.
+     */
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    /*
+     * These are only touched by the reading thread.
+     */
+    private int lastStreamId;
+    private Stream continuationStream;
+    private Stream headerBlockStream;
+    private boolean headerBlockEndsStream;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int refusedStreams;
+
+    /*
+     * These are guarded by flowControlLock, and changes are announced
+     * on flowControlChanged.  They are how the reading thread tells the
+     * workers the client has given us more room to send.
+     */
+    private final ReentrantLock flowControlLock = new ReentrantLock();
+    private final Condition flowControlChanged = flowControlLock.newCondition();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int streamsResponding;
+    private boolean isClosed;
+    private int receivedSinceWindowUpdate;
+    private long bufferedBodyBytes;
+
+    /**
+     * Held while writing a frame, or a run of frames that must not
+     * be split up, so the workers don't interleave their bytes.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * @param requestHandler given a complete request, returns the response.
+     *                       Runs on a worker thread.
+     */
+    Http2Connection(Context context, ISocketWrapper sw, Function<Request, Response> requestHandler) {
+        this.context = context;
+        this.constants = context.getConstants();
+        this.logger = context.getLogger();
+        this.sw = sw;
+        this.is = sw.getInputStream();
+        this.bodyProcessor = new BodyProcessor(context);
+        this.requestHandler = requestHandler;
+        this.maxHeaderListSize = constants.MAX_READ_LINE_SIZE_BYTES * constants.MAX_HEADERS_COUNT;
+        this.hpackDecoder = new Hpack.Decoder(4096, maxHeaderListSize);
+        this.maxBufferedBodyBytes = 2L * constants.MAX_READ_SIZE_BYTES;
+    }
+
+    /**
+     * The state of a single request and its response
+     */
+    private static final class Stream {
+        final int id;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        List<Hpack.HeaderField> headerFields;
+        int receivedSinceWindowUpdate;
+        boolean isRequestComplete;
+
+        // guarded by flowControlLock
+        long sendWindow;
+        boolean isReset;
+
+        Stream(int id, long sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+    }
+
+    /**
+     * A problem with the connection as a whole, after which we tell the
+     * client why with a GOAWAY frame, and close the connection.
+     */
+    static final class ConnectionError extends RuntimeException {
+
+        @Serial
+        private static final long serialVersionUID = 2787015392541318907L;
+
+        final int errorCode;
+
+        ConnectionError(int errorCode, String msg) {
+            super(msg);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Read from the client until they're done with the connection.  Returns
+     * once the last response is sent, and the caller closes the socket.
+     */
+    void run() throws IOException {
+        if (! Arrays.equals(is.readNBytes(CLIENT_PREFACE.length), CLIENT_PREFACE)) {
+            logger.logDebug(() -> sw + " agreed to HTTP/2 but did not send the connection preface.  Closing");
+            return;
+        }
+        writeFrame(SETTINGS, 0, 0, settings(
+                SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS,
+                SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderListSize));
+        try {
+            if (readFrames()) {
+                waitForResponses();
+            }
+        } catch (ConnectionError ex) {
+            logger.logDebug(() -> "HTTP/2 connection error with " + sw + ": " + ex.getMessage());
+            sendGoAway(ex.errorCode);
+        } finally {
+            flowControlLock.lock();
+            try {
+                isClosed = true;
+                flowControlChanged.signalAll();
+            } finally {
+                flowControlLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return true if the client said goodbye with a GOAWAY frame, in
+     * which case it still expects responses to what it has asked for.
+     * False if the connection ended, or was idle for too long.
+     */
+    private boolean readFrames() throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        while (true) {
+            int firstByte;
+            try {
+                firstByte = is.read();
+            } catch (SocketTimeoutException ex) {
+                // a client waiting on a slow response is not idle
+                if (isResponding()) continue;
+                logger.logTrace(() -> sw + " has been idle on HTTP/2, closing");
+                sendGoAway(NO_ERROR);
+                return false;
+            }
+            if (firstByte < 0) return false;
+            header[0] = (byte) firstByte;
+            readFully(header, 1, FRAME_HEADER_LENGTH - 1);
+
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = readInt(header, 5) & 0x7fffffff;
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes is larger than our limit of " + DEFAULT_MAX_FRAME_SIZE);
+            }
+            byte[] payload = new byte[length];
+            readFully(payload, 0, length);
+            logger.logTrace(() -> String.format("%s: HTTP/2 frame type %d, flags %d, stream %d, length %d", sw, type, flags, streamId, length));
+
+            if (continuationStream != null && (type != CONTINUATION || streamId != continuationStream.id)) {
+                throw new ConnectionError(PROTOCOL_ERROR, "expected a CONTINUATION frame on stream " + continuationStream.id);
+            }
+            switch (type) {
+                case DATA -> readData(flags, streamId, payload);
+                case HEADERS -> readHeaders(flags, streamId, payload);
+                case CONTINUATION -> readContinuation(flags, payload);
+                case SETTINGS -> readSettings(flags, streamId, payload);
+                case PING -> readPing(flags, streamId, payload);
+                case WINDOW_UPDATE -> readWindowUpdate(streamId, payload);
+                case RST_STREAM -> readRstStream(streamId, payload);
+                case GOAWAY -> {
+                    logger.logTrace(() -> sw + " sent GOAWAY");
+                    return true;
+                }
+                case PUSH_PROMISE -> throw new ConnectionError(PROTOCOL_ERROR, "a client must not send PUSH_PROMISE");
+                // PRIORITY, and any frame types we don't know, are ignored
+                default -> logger.logTrace(() -> "ignoring HTTP/2 frame of type " + type);
+            }
+        }
+    }
+
+    private void readHeaders(int flags, int streamId, byte[] payload) {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int start = (flags & PADDED) != 0 ? 1 : 0;
+        int end = payload.length - ((flags & PADDED) != 0 && payload.length > 0 ? payload[0] & 0xff : 0);
+        if ((flags & PRIORITY) != 0) start += 5;
+        if (start > end) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS padding is longer than the frame");
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId % 2 == 0 || streamId <= lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "HEADERS opened an unexpected stream: " + streamId);
+            }
+            lastStreamId = streamId;
+            flowControlLock.lock();
+            try {
+                stream = new Stream(streamId, peerInitialWindowSize);
+            } finally {
+                flowControlLock.unlock();
+            }
+        } else if (stream.isRequestComplete || (flags & END_STREAM) == 0) {
+            // the only other HEADERS allowed is a trailer, ending the request
+            throw new ConnectionError(STREAM_CLOSED, "unexpected HEADERS on stream " + streamId);
+        }
+
+        headerBlock.reset();
+        headerBlock.write(payload, start, end - start);
+        headerBlockStream = stream;
+        headerBlockEndsStream = (flags & END_STREAM) != 0;
+        if ((flags & END_HEADERS) != 0) {
+            finishHeaderBlock();
+        } else {
+            continuationStream = stream;
+        }
+    }
+
+    private void readContinuation(int flags, byte[] payload) {
+        if (continuationStream == null) {
+            throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        if (headerBlock.size() + payload.length > maxHeaderListSize) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "header block is larger than allowed.  Current max: " + maxHeaderListSize);
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if ((flags & END_HEADERS) != 0) {
+            continuationStream = null;
+            finishHeaderBlock();
+        }
+    }
+
+    private void finishHeaderBlock() {
+        List<Hpack.HeaderField> fields;
+        try {
+            fields = hpackDecoder.decode(headerBlock.toByteArray());
+        } catch (ParsingException ex) {
+            throw new ConnectionError(COMPRESSION_ERROR, ex.getMessage());
+        }
+        Stream stream = headerBlockStream;
+        if (stream.headerFields == null) {
+            // we decode even a stream we refuse, to keep the HPACK table in step
+            if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+                logger.logDebug(() -> sw + " opened more than " + MAX_CONCURRENT_STREAMS + " streams at once, refusing stream " + stream.id);
+                refuseStream(stream.id);
+                return;
+            }
+            stream.headerFields = fields;
+            streams.put(stream.id, stream);
+        }
+        // headers after the first are trailers, which we have no use for
+        if (headerBlockEndsStream) {
+            startResponding(stream);
+        }
+    }
+
+    private void readData(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        // the whole frame, padding included, counts against the connection's window
+        int windowToReturn;
+        flowControlLock.lock();
+        try {
+            receivedSinceWindowUpdate += payload.length;
+            windowToReturn = takeWindowToReturn();
+        } finally {
+            flowControlLock.unlock();
+        }
+        if (windowToReturn > 0) sendWindowUpdate(0, windowToReturn);
+
+        int start = (flags & PADDED) != 0 ? 1 : 0;
+        int end = payload.length - ((flags & PADDED) != 0 && payload.length > 0 ? payload[0] & 0xff : 0);
+        if (start > end) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA padding is longer than the frame");
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.isRequestComplete) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on a stream that was never opened: " + streamId);
+            }
+            // a stream we've reset, and the client didn't know yet when it sent this.
+            return;
+        }
+        int maxReadSize = constants.MAX_READ_SIZE_BYTES;
+        if (stream.body.size() + (end - start) > maxReadSize) {
+            logger.logDebug(() -> sw + " sent a body larger than allowed on stream " + streamId + ".  Current max: " + maxReadSize);
+            streams.remove(streamId);
+            releaseBody(stream);
+            resetStream(streamId, CANCEL);
+            return;
+        }
+        boolean isOverLimit;
+        flowControlLock.lock();
+        try {
+            isOverLimit = bufferedBodyBytes + (end - start) > maxBufferedBodyBytes;
+            if (! isOverLimit) bufferedBodyBytes += end - start;
+        } finally {
+            flowControlLock.unlock();
+        }
+        if (isOverLimit) {
+            logger.logDebug(() -> sw + " sent more body than we hold for a connection, refusing stream " + streamId + ".  Current max: " + maxBufferedBodyBytes);
+            streams.remove(streamId);
+            releaseBody(stream);
+            refuseStream(streamId);
+            return;
+        }
+        stream.body.write(payload, start, end - start);
+
+        if ((flags & END_STREAM) != 0) {
+            startResponding(stream);
+        } else {
+            stream.receivedSinceWindowUpdate += payload.length;
+            if (stream.receivedSinceWindowUpdate >= DEFAULT_WINDOW_SIZE / 2) {
+                sendWindowUpdate(streamId, stream.receivedSinceWindowUpdate);
+                stream.receivedSinceWindowUpdate = 0;
+            }
+        }
+    }
+
+    private void readSettings(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & ACK) != 0) {
+            if (payload.length != 0) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS payload of " + payload.length + " bytes");
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            int value = readInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE larger than allowed");
+                    }
+                    changeInitialWindowSize(value);
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+                    }
+                    flowControlLock.lock();
+                    try {
+                        peerMaxFrameSize = value;
+                    } finally {
+                        flowControlLock.unlock();
+                    }
+                }
+                // the rest don't matter to us - our HPACK encoder doesn't use the
+                // dynamic table, and we don't push, so don't open streams of our own.
+                default -> logger.logTrace(() -> "ignoring HTTP/2 setting " + id + " of " + value);
+            }
+        }
+        writeFrame(SETTINGS, ACK, 0, EMPTY);
+    }
+
+    /**
+     * A change to the initial window size applies to the streams already
+     * open, as though they'd had the new size from the start.
+     */
+    private void changeInitialWindowSize(int value) {
+        flowControlLock.lock();
+        try {
+            int delta = value - peerInitialWindowSize;
+            peerInitialWindowSize = value;
+            for (Stream stream : streams.values()) {
+                stream.sendWindow += delta;
+                if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE overflowed the window of stream " + stream.id);
+                }
+            }
+            flowControlChanged.signalAll();
+        } finally {
+            flowControlLock.unlock();
+        }
+    }
+
+    private void readPing(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if (payload.length != 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "PING payload of " + payload.length + " bytes");
+        }
+        if ((flags & ACK) == 0) {
+            writeFrame(PING, ACK, 0, payload);
+        }
+    }
+
+    private void readWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE payload of " + payload.length + " bytes");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0 && streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE with an increment of 0");
+        }
+        int errorForStream = NO_ERROR;
+        Stream abandonedStream = null;
+        flowControlLock.lock();
+        try {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "WINDOW_UPDATE overflowed the connection's window");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) return;
+                stream.sendWindow += increment;
+                if (increment == 0) {
+                    errorForStream = PROTOCOL_ERROR;
+                } else if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                    errorForStream = FLOW_CONTROL_ERROR;
+                }
+                if (errorForStream != NO_ERROR) {
+                    stream.isReset = true;
+                    if (! stream.isRequestComplete) {
+                        streams.remove(streamId);
+                        abandonedStream = stream;
+                    }
+                }
+            }
+            flowControlChanged.signalAll();
+        } finally {
+            flowControlLock.unlock();
+        }
+        if (abandonedStream != null) releaseBody(abandonedStream);
+        if (errorForStream != NO_ERROR) {
+            resetStream(streamId, errorForStream);
+        }
+    }
+
+    private void readRstStream(int streamId, byte[] payload) {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on a stream that was never opened: " + streamId);
+        }
+        if (payload.length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM payload of " + payload.length + " bytes");
+        }
+        logger.logTrace(() -> sw + " reset stream " + streamId + " with error code " + readInt(payload, 0));
+        Stream stream = streams.get(streamId);
+        if (stream == null) return;
+        // a stream being worked on is removed by its worker, once the work is done
+        if (! stream.isRequestComplete) {
+            streams.remove(streamId);
+            releaseBody(stream);
+        }
+        flowControlLock.lock();
+        try {
+            stream.isReset = true;
+            flowControlChanged.signalAll();
+        } finally {
+            flowControlLock.unlock();
+        }
+    }
+
+    /**
+     * The request on this stream is complete, so hand it to a worker.  If
+     * the server has no worker to spare, the stream is refused instead.
+     */
+    private void startResponding(Stream stream) {
+        stream.isRequestComplete = true;
+        flowControlLock.lock();
+        try {
+            streamsResponding++;
+        } finally {
+            flowControlLock.unlock();
+        }
+        if (sw.submitWork(() -> respond(stream))) return;
+
+        streams.remove(stream.id);
+        releaseBody(stream);
+        flowControlLock.lock();
+        try {
+            streamsResponding--;
+            flowControlChanged.signalAll();
+        } finally {
+            flowControlLock.unlock();
+        }
+        logger.logDebug(() -> "no worker to spare for stream " + stream.id + " of " + sw + ", refusing it");
+        refuseStream(stream.id);
+    }
+
+    /**
+     * Tell the client we didn't start on this stream, so it may try again.
+     * A client that keeps on after being refused this many times is
+     * flooding us, and we give up on the connection.
+     */
+    private void refuseStream(int streamId) {
+        refusedStreams++;
+        if (refusedStreams > MAX_CONCURRENT_STREAMS) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "refused more than " + MAX_CONCURRENT_STREAMS + " streams");
+        }
+        resetStream(streamId, REFUSED_STREAM);
+    }
+
+    private boolean isResponding() {
+        flowControlLock.lock();
+        try {
+            return streamsResponding > 0;
+        } finally {
+            flowControlLock.unlock();
+        }
+    }
+
+    private void waitForResponses() {
+        flowControlLock.lock();
+        try {
+            while (streamsResponding > 0) {
+                flowControlChanged.await();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            flowControlLock.unlock();
+        }
+    }
+
+    /**
+     * Runs on a worker thread, from building the request through
+     * to sending the last of the response.
+     */
+    private void respond(Stream stream) {
+        try {
+            Request request = buildRequest(stream);
+            logger.logTrace(() -> String.format("%s: HTTP/2 request on stream %d: %s", sw, stream.id, request.startLine()));
+            Response response = requestHandler.apply(request);
+            try {
+                sendResponse(stream, request, response);
+            } finally {
+                request.body().deleteTempFiles();
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.logDebug(() -> "unable to finish responding on stream " + stream.id + " of " + sw + ": " + ex);
+            boolean shouldReset;
+            flowControlLock.lock();
+            try {
+                shouldReset = ! stream.isReset && ! isClosed;
+            } finally {
+                flowControlLock.unlock();
+            }
+            if (shouldReset) {
+                resetStream(stream.id, ex instanceof ParsingException ? PROTOCOL_ERROR : INTERNAL_ERROR);
+            }
+        } finally {
+            streams.remove(stream.id);
+            releaseBody(stream);
+            flowControlLock.lock();
+            try {
+                streamsResponding--;
+                flowControlChanged.signalAll();
+            } finally {
+                flowControlLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Converts the headers of a stream into the same {@link Request} an
+     * HTTP/1.1 client would have given us, so the endpoints needn't know
+     * the difference.
+     */
+    private Request buildRequest(Stream stream) {
+        String method = null;
+        String path = null;
+        String authority = null;
+        boolean hasHost = false;
+        var headerStrings = new ArrayList<String>();
+        for (var field : stream.headerFields) {
+            switch (field.name()) {
+                case ":method" -> method = field.value();
+                case ":path" -> path = field.value();
+                case ":authority" -> authority = field.value();
+                case ":scheme" -> { }
+                default -> {
+                    if (field.name().startsWith(":")) {
+                        throw new ParsingException("unknown pseudo-header " + field.name() + " on stream " + stream.id);
+                    }
+                    hasHost |= field.name().equals("host");
+                    headerStrings.add(field.name() + ": " + field.value());
+                }
+            }
+        }
+        if (authority != null && ! hasHost) {
+            headerStrings.add("host: " + authority);
+        }
+
+        StartLine sl = StartLine.EMPTY(context).extractStartLine(method + " " + path + " HTTP/1.1");
+        if (method == null || path == null || sl.getRawValue().isBlank()) {
+            throw new ParsingException("unable to make sense of the request on stream " + stream.id + ": " + method + " " + path);
+        }
+        sl = new StartLine(sl.getVerb(), sl.getPathDetails(), HttpVersion.TWO, method + " " + path + " HTTP/2", context);
+
+        var headers = new Headers(headerStrings, context);
+        byte[] bodyBytes = stream.body.toByteArray();
+        Body body = bodyBytes.length == 0 ?
+                Body.EMPTY(context) :
+                bodyProcessor.extractBodyFromBytes(bodyBytes.length, headers.contentType(), bodyBytes);
+        return new Request(headers, sl, body, sw.getRemoteAddr());
+    }
+
+    private void sendResponse(Stream stream, Request request, Response response) throws IOException {
+        FileChannel bodyFile = null;
+        if (response.bodyFile() != null) {
+            try {
+                bodyFile = FileChannel.open(response.bodyFile(), StandardOpenOption.READ);
+            } catch (NoSuchFileException ex) {
+                logger.logDebug(() -> "file for response no longer exists: " + response.bodyFile() + ". Returning 404");
+                sendHeaders(stream, new Response(_404_NOT_FOUND), 0, true);
+                return;
+            }
+        }
+        try {
+            long bodyLength = response.bodyWriter() != null ? -1 : bodyFile != null ? bodyFile.size() : response.body().length;
+            boolean isHead = request.startLine().getVerb() == StartLine.Verb.HEAD;
+            boolean hasBody = ! isHead && response.statusCode() != _304_NOT_MODIFIED && bodyLength != 0;
+            sendHeaders(stream, response, bodyLength, ! hasBody);
+            if (! hasBody) return;
+
+            if (response.bodyWriter() != null) {
+                var out = new DataFrameStream(stream);
+                response.bodyWriter().write(out);
+                // not in a finally block: if the writer failed, the stream is reset instead.
+                out.close();
+            } else if (bodyFile != null) {
+                var buffer = ByteBuffer.allocate(DEFAULT_MAX_FRAME_SIZE);
+                long position = 0;
+                while (position < bodyLength) {
+                    buffer.clear();
+                    int count = bodyFile.read(buffer, position);
+                    if (count < 0) throw new EOFException("file for response ended early: " + response.bodyFile());
+                    position += count;
+                    sendData(stream, buffer.array(), 0, count, position >= bodyLength);
+                }
+            } else {
+                sendData(stream, response.body(), 0, response.body().length, true);
+            }
+        } finally {
+            if (bodyFile != null) bodyFile.close();
+        }
+    }
+
+    private void sendHeaders(Stream stream, Response response, long bodyLength, boolean endStream) throws IOException {
+        var encoder = new Hpack.Encoder()
+                .header(":status", String.valueOf(response.statusCode().code))
+                .header("date", ResponseHeadEncoder.currentDate())
+                .header("server", "minum");
+        for (var header : response.extraHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (connectionSpecificHeaders.contains(name) || name.equals("content-length")) continue;
+            encoder.header(name, header.getValue());
+        }
+        if (response.statusCode() != _304_NOT_MODIFIED && bodyLength >= 0) {
+            encoder.header("content-length", Long.toString(bodyLength));
+        }
+        byte[] block = encoder.finish();
+
+        // a large header block continues in CONTINUATION frames, with nothing in between
+        int maxFrameSize;
+        flowControlLock.lock();
+        try {
+            maxFrameSize = peerMaxFrameSize;
+        } finally {
+            flowControlLock.unlock();
+        }
+        writeLock.lock();
+        try {
+            int offset = 0;
+            do {
+                int length = Math.min(block.length - offset, maxFrameSize);
+                boolean isLast = offset + length == block.length;
+                int flags = (isLast ? END_HEADERS : 0) | (offset == 0 && endStream ? END_STREAM : 0);
+                writeFrame(offset == 0 ? HEADERS : CONTINUATION, flags, stream.id, block, offset, length);
+                offset += length;
+            } while (offset < block.length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the data in as many DATA frames as needed, waiting whenever
+     * the client's flow control window is used up.
+     */
+    private void sendData(Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        if (length == 0 && ! endStream) return;
+        do {
+            int count = length == 0 ? 0 : takeSendWindow(stream, length);
+            boolean isLast = count == length;
+            writeFrame(DATA, isLast && endStream ? END_STREAM : 0, stream.id, data, offset, count);
+            offset += count;
+            length -= count;
+        } while (length > 0);
+    }
+
+    /**
+     * Waits until the client allows us to send some data on this stream,
+     * and takes as much of that allowance as we can use in one frame.
+     * @return how many bytes we may send
+     */
+    private int takeSendWindow(Stream stream, int wanted) throws IOException {
+        flowControlLock.lock();
+        try {
+            long nanosLeft = TimeUnit.MILLISECONDS.toNanos(constants.SOCKET_TIMEOUT_MILLIS);
+            while (true) {
+                if (isClosed) throw new IOException("the connection is closed");
+                if (stream.isReset) throw new IOException("the client reset stream " + stream.id);
+                long available = Math.min(connectionSendWindow, stream.sendWindow);
+                if (available > 0) {
+                    int count = (int) Math.min(available, Math.min(wanted, peerMaxFrameSize));
+                    connectionSendWindow -= count;
+                    stream.sendWindow -= count;
+                    return count;
+                }
+                if (nanosLeft <= 0) {
+                    throw new IOException("timed out waiting for the client to let us send more on stream " + stream.id);
+                }
+                nanosLeft = flowControlChanged.awaitNanos(nanosLeft);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } finally {
+            flowControlLock.unlock();
+        }
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, intBytes(increment));
+    }
+
+    /**
+     * How much of the connection's window to give back to the client now,
+     * which is none until enough has arrived to be worth a frame, or while
+     * the bodies we hold are too near {@link #maxBufferedBodyBytes} to take
+     * another window's worth.  Call while holding flowControlLock.
+     */
+    private int takeWindowToReturn() {
+        if (receivedSinceWindowUpdate < DEFAULT_WINDOW_SIZE / 2 ||
+                bufferedBodyBytes + DEFAULT_WINDOW_SIZE > maxBufferedBodyBytes) {
+            return 0;
+        }
+        int windowToReturn = receivedSinceWindowUpdate;
+        receivedSinceWindowUpdate = 0;
+        return windowToReturn;
+    }
+
+    /**
+     * We are done holding this stream's body, whether it was answered or
+     * abandoned, so there may be room for the client to send more.
+     */
+    private void releaseBody(Stream stream) {
+        int windowToReturn;
+        flowControlLock.lock();
+        try {
+            bufferedBodyBytes -= stream.body.size();
+            stream.body.reset();
+            windowToReturn = isClosed ? 0 : takeWindowToReturn();
+        } finally {
+            flowControlLock.unlock();
+        }
+        if (windowToReturn == 0) return;
+        try {
+            sendWindowUpdate(0, windowToReturn);
+        } catch (IOException ex) {
+            logger.logDebug(() -> "unable to update the window on " + sw + ": " + ex);
+        }
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        try {
+            writeFrame(RST_STREAM, 0, streamId, intBytes(errorCode));
+        } catch (IOException ex) {
+            logger.logDebug(() -> "unable to reset stream " + streamId + " on " + sw + ": " + ex);
+        }
+    }
+
+    private void sendGoAway(int errorCode) {
+        byte[] payload = new byte[8];
+        System.arraycopy(intBytes(lastStreamId), 0, payload, 0, 4);
+        System.arraycopy(intBytes(errorCode), 0, payload, 4, 4);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload);
+        } catch (IOException ex) {
+            logger.logDebug(() -> "unable to send GOAWAY on " + sw + ": " + ex);
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        writeFrame(type, flags, streamId, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        byte[] header = frameHeader(length, type, flags, streamId);
+        writeLock.lock();
+        try {
+            sw.send(ByteBuffer.wrap(header), ByteBuffer.wrap(payload, offset, length));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    static byte[] frameHeader(int length, int type, int flags, int streamId) {
+        return new byte[]{
+                (byte) (length >>> 16), (byte) (length >>> 8), (byte) length,
+                (byte) type,
+                (byte) flags,
+                (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId
+        };
+    }
+
+    /**
+     * The payload of a SETTINGS frame, given pairs of identifier and value
+     */
+    static byte[] settings(int... idsAndValues) {
+        byte[] payload = new byte[idsAndValues.length * 3];
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            int at = i * 3;
+            payload[at] = (byte) (idsAndValues[i] >>> 8);
+            payload[at + 1] = (byte) idsAndValues[i];
+            System.arraycopy(intBytes(idsAndValues[i + 1]), 0, payload, at + 2, 4);
+        }
+        return payload;
+    }
+
+    static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) |
+                ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        if (is.readNBytes(buffer, offset, length) < length) {
+            throw new EOFException("HTTP/2 connection ended in the middle of a frame");
+        }
+    }
+
+    /**
+     * The body of a streamed response ({@link BodyWriter}), sent a frame at a time
+     */
+    private final class DataFrameStream extends OutputStream {
+        private final Stream stream;
+        private final byte[] buffer = new byte[DEFAULT_MAX_FRAME_SIZE];
+        private int count;
+
+        DataFrameStream(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) flush();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) flush();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sendData(stream, buffer, 0, count, false);
+            count = 0;
+        }
+
+        /**
+         * Sends what's left, ending the stream
+         */
+        @Override
+        public void close() throws IOException {
+            sendData(stream, buffer, 0, count, true);
+            count = 0;
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package minum.web;
 
 public enum HttpVersion {
-    ONE_DOT_ZERO, ONE_DOT_ONE, NONE
+    ONE_DOT_ZERO, ONE_DOT_ONE, TWO, NONE
 
 }
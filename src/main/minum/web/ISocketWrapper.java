@@ -3,6 +3,8 @@ package minum.web;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This is the public interface to {@link ISocketWrapper}, whose
@@ -21,6 +23,41 @@ interface ISocketWrapper extends AutoCloseable {
      */
     void send(byte[] bodyContents) throws IOException;
 
+    /**
+     * Send part of an array of bytes on the socket.
+     */
+    void send(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Send several buffers of bytes, one after another, as though they were
+     * one.  Where the socket allows, they go out in a single gathering write,
+     * so that the head and body of a small response can share a packet.
+     */
+    void send(ByteBuffer... buffers) throws IOException;
+
+    /**
+     * Send part of a file on the socket, without first reading
+     * it into memory.  Where the socket allows, the operating system
+     * copies the bytes from the file to the socket directly.
+     * @param position where in the file to start
+     * @param count how many bytes to send
+     */
+    void sendFile(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Rather than sending right away, hold onto what is sent until
+     * {@link #flush()}.  Used when a client has sent several requests without
+     * waiting for replies (pipelining), so that the replies go out together.
+     * If a lot piles up, it is sent anyway.
+     */
+    void holdOutput();
+
+    /**
+     * Send anything held since {@link #holdOutput()}, and go back
+     * to sending right away.
+     */
+    void flush() throws IOException;
+
     /**
      * Sends a line of text, with carriage-return and line-feed
      * appended to the end, required for the HTTP protocol.
@@ -49,10 +86,48 @@ interface ISocketWrapper extends AutoCloseable {
      */
     String getRemoteAddr();
 
+    /**
+     * For an encrypted socket, carry out the TLS handshake now, on this thread,
+     * rather than as part of the first read.  That way it has its own timeout
+     * ({@link minum.Constants#TLS_HANDSHAKE_TIMEOUT_MILLIS}), we can measure it
+     * (see {@link Server#getHandshakeStatistics()}), and a failure is plainly a
+     * failed handshake rather than a confusing error partway through a request.
+     * Does nothing for a plain socket, or if the handshake is done.
+     */
+    void handshake() throws IOException;
+
+    /**
+     * The protocol agreed on with the client during the TLS handshake,
+     * using ALPN - "h2" for HTTP/2.  Empty if the socket isn't encrypted,
+     * or no protocol was agreed on, which means HTTP/1.1.  Only meaningful
+     * after {@link #handshake()}.
+     */
+    String getApplicationProtocol();
+
     void close() throws IOException;
 
     /**
      * Returns this socket's input stream for more granular access
      */
     InputStream getInputStream();
+
+    /**
+     * Called between requests on a keep-alive connection.  If this socket
+     * is being watched by a {@link SelectorLoop} and the client has nothing
+     * more waiting for us, it is handed back to the selector so that we
+     * aren't holding a thread while the client is idle.
+     * @return true if the socket was handed back, in which case the caller
+     * must stop using it (and must not close it).  False otherwise,
+     * meaning the caller carries on as usual.
+     */
+    boolean parkIfIdle() throws IOException;
+
+    /**
+     * Run some work for this socket's client on another thread, using the
+     * server's {@link WorkerPool}, which keeps workers for this apart from
+     * those handling connections.  Used by {@link Http2Connection} for each stream.
+     * @return false if there was no room for the work, in which case it will
+     * never run.  Always false for a socket that doesn't belong to a server.
+     */
+    boolean submitWork(Runnable work);
 }
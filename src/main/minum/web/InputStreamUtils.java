@@ -90,6 +90,18 @@ final class InputStreamUtils {
         final int CARRIAGE_RETURN_DECIMAL = 13;
 
         final var result = new ByteArrayOutputStream(constants.MAX_READ_LINE_SIZE_BYTES / 3);
+        if (inputStream instanceof SocketInputStream sis) {
+            // the usual case when reading from a client - scan its buffer
+            // for the newline rather than going byte by byte.
+            int count = sis.readLine(result, constants.MAX_READ_LINE_SIZE_BYTES);
+            if (count == SocketInputStream.END_OF_STREAM) return null;
+            if (count == SocketInputStream.LINE_TOO_LONG) {
+                logger.logDebug(() -> "in readLine, client sent more bytes than allowed.  Current max: " + constants.MAX_READ_LINE_SIZE_BYTES);
+                inputStream.close();
+                return "";
+            }
+            return result.toString(StandardCharsets.UTF_8);
+        }
         for (int i = 0; i <= (constants.MAX_READ_LINE_SIZE_BYTES + 1); i++) {
             if (i == constants.MAX_READ_LINE_SIZE_BYTES) {
                 logger.logDebug(() -> "in readLine, client sent more bytes than allowed.  Current max: " + constants.MAX_READ_LINE_SIZE_BYTES);
@@ -126,15 +138,10 @@ final class InputStreamUtils {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         int read;
         int totalRead = 0;
-        while ((read = inputStream.read(buf)) >= 0) {
+        // never ask for more than we want, since whatever follows on the stream belongs to someone else
+        while (totalRead < lengthToRead && (read = inputStream.read(buf, 0, Math.min(buf.length, lengthToRead - totalRead))) >= 0) {
+            baos.write(buf, 0, read);
             totalRead += read;
-            if (totalRead < lengthToRead) {
-                // if we haven't gotten everything we wanted, write this to the output and loop again
-                baos.write(buf, 0, read);
-            } else {
-                baos.write(buf, 0, read - (totalRead - lengthToRead));
-                break;
-            }
         }
         data = baos.toByteArray();
 
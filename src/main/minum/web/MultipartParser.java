@@ -0,0 +1,301 @@
+package minum.web;
+
+import minum.Context;
+import minum.htmlparsing.ParsingException;
+import minum.logging.ILogger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads multipart/form-data a buffer-full at a time, straight from
+ * the stream, rather than reading the whole body into memory first.
+ * <p>
+ *     Each part is kept in memory up to {@link minum.Constants#MULTIPART_PART_MAX_IN_MEMORY_BYTES}.
+ *     Past that, it is written to a temporary file as it arrives, so an
+ *     uploaded photo costs us a buffer of heap rather than the size of the photo.
+ *     The temporary files belong to the {@link Body}, which deletes them
+ *     once the request has been handled.
+ * </p>
+ * <p>
+ *     See docs/http_protocol/returning_values_from_multipart_rfc_7578.txt
+ * </p>
+ */
+final class MultipartParser {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * A regex used to extract the name value from the headers in multipart/form
+     * For example, in the following code, you can see that the name is "image_uploads"
+     * <pre>
+     * {@code
+     * --i_am_a_boundary
+     * Content-Type: text/plain
+     * Content-Disposition: form-data; name="text1"
+     *
+     * I am a value that is text
+     * --i_am_a_boundary
+     * Content-Type: application/octet-stream
+     * Content-Disposition: form-data; name="image_uploads"; filename="photo_preview.jpg"
+     * }
+     * </pre>
+     */
+    private final static Pattern multiformNameRegex = Pattern.compile("\\bname\\b=\"(?<namevalue>.*?)\"");
+
+    private final Context context;
+    private final ILogger logger;
+    private final InputStream inputStream;
+    private final BoundarySearch delimiter;
+    private final Function<List<String>, String> describeForErrors;
+    private final int maxPartBytesInMemory;
+    private final int maxLineBytes;
+    private final int maxHeadersCount;
+
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    /**
+     * How much more of the body there is to read from the stream.
+     * We must not read past the end of the body, since whatever
+     * follows it is the client's next request.
+     */
+    private long remaining;
+
+    /**
+     * @param length the length of the body on the stream
+     * @param boundaryValue the boundary value from the Content-Type header
+     * @param describeForErrors given the headers of a part we can't make sense
+     *                          of, returns a description of the data to include
+     *                          in the exception.
+     */
+    MultipartParser(Context context, InputStream inputStream, long length, String boundaryValue,
+                    Function<List<String>, String> describeForErrors) {
+        var constants = context.getConstants();
+        this.context = context;
+        this.logger = context.getLogger();
+        this.inputStream = inputStream;
+        this.remaining = length;
+        this.delimiter = new BoundarySearch(("--" + boundaryValue).getBytes(StandardCharsets.UTF_8));
+        this.describeForErrors = describeForErrors;
+        this.maxPartBytesInMemory = constants.MULTIPART_PART_MAX_IN_MEMORY_BYTES;
+        this.maxLineBytes = constants.MAX_READ_LINE_SIZE_BYTES;
+        this.maxHeadersCount = constants.MAX_HEADERS_COUNT;
+        this.buffer = new byte[Math.max(BUFFER_SIZE, Math.max(maxLineBytes, delimiter.length()) * 2 + 4)];
+    }
+
+    /**
+     * Read the parts of the body into a {@link Body}.  The whole body is
+     * consumed from the stream, even if the client put something after
+     * the final boundary.
+     * @param raw the raw bytes of the body, if we happen to have them.
+     */
+    Body parse(byte[] raw) throws IOException {
+        final var inMemoryParts = new HashMap<String, byte[]>();
+        final var fileParts = new HashMap<String, Path>();
+        try {
+            // anything before the first boundary is a preamble, which we ignore
+            boolean hasMoreParts = copyUntilDelimiter(OutputStream.nullOutputStream());
+            while (hasMoreParts) {
+                // the rest of the boundary line - two dashes after the last boundary
+                String restOfBoundaryLine = readLine();
+                if (restOfBoundaryLine == null || restOfBoundaryLine.startsWith("--")) break;
+
+                List<String> headerLines = readPartHeaders();
+                String name = extractName(headerLines);
+
+                // at this point we're at the beginning of the part's
+                // data.  From here until the next boundary it's pure data.
+                var partData = new PartData();
+                try {
+                    hasMoreParts = copyUntilDelimiter(partData);
+                    partData.close();
+                } catch (IOException | RuntimeException ex) {
+                    partData.close();
+                    deleteTempFile(partData.file);
+                    throw ex;
+                }
+                deleteTempFile(fileParts.remove(name));
+                inMemoryParts.remove(name);
+                if (partData.file != null) {
+                    logger.logTrace(() -> "multipart part " + name + " was large, kept on disk at " + partData.file);
+                    fileParts.put(name, partData.file);
+                } else {
+                    inMemoryParts.put(name, partData.inMemory.toByteArray());
+                }
+            }
+
+            // skip past whatever comes after the final boundary
+            while (fill() >= 0) {
+                position = limit;
+            }
+        } catch (IOException | RuntimeException ex) {
+            fileParts.values().forEach(this::deleteTempFile);
+            throw ex;
+        }
+        return new Body(inMemoryParts, fileParts, raw, context);
+    }
+
+    private String extractName(List<String> headerLines) {
+        List<String> contentDispositions = new ArrayList<>();
+        for (String line : headerLines) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals("content-disposition")) {
+                contentDispositions.add(line.substring(colon + 1).trim());
+            }
+        }
+        Matcher matcher = multiformNameRegex.matcher(String.join(";", contentDispositions));
+        if (! matcher.find()) {
+            throw new ParsingException("No name value found in the headers of a partition. Data: " + describeForErrors.apply(headerLines));
+        }
+        return matcher.group("namevalue");
+    }
+
+    private List<String> readPartHeaders() throws IOException {
+        List<String> headerLines = new ArrayList<>();
+        while (true) {
+            String line = readLine();
+            if (line == null) {
+                throw new ParsingException("The body ended in the middle of the headers of a partition. Data: " + describeForErrors.apply(headerLines));
+            }
+            if (line.isEmpty()) return headerLines;
+            if (headerLines.size() == maxHeadersCount) {
+                throw new ParsingException("Too many headers in a partition.  Current max: " + maxHeadersCount);
+            }
+            headerLines.add(line);
+        }
+    }
+
+    private void deleteTempFile(Path file) {
+        if (file == null) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            logger.logAsyncError(() -> "failed to delete temporary file " + file + " for multipart data. Exception: " + ex);
+        }
+    }
+
+    /**
+     * Copies the data from here until the next delimiter into the
+     * provided output, and moves past the delimiter.  The line ending
+     * just before the delimiter belongs to it, not to the data.
+     * @return true if we found a delimiter, false if the body ended first.
+     */
+    private boolean copyUntilDelimiter(OutputStream out) throws IOException {
+        while (true) {
+            int found = delimiter.indexOf(buffer, position, limit);
+            if (found >= 0) {
+                int end = found;
+                if (end > position && buffer[end - 1] == '\n') end--;
+                if (end > position && buffer[end - 1] == '\r') end--;
+                out.write(buffer, position, end - position);
+                position = found + delimiter.length();
+                return true;
+            }
+            // hold back enough that a delimiter (and its line ending) split
+            // across reads is still in the buffer once the rest of it arrives.
+            int safeToCopy = limit - (delimiter.length() + 1);
+            if (safeToCopy > position) {
+                out.write(buffer, position, safeToCopy - position);
+                position = safeToCopy;
+            }
+            if (fill() < 0) {
+                out.write(buffer, position, limit - position);
+                position = limit;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reads a line of text, skipping carriage returns.
+     * @return the line, or null if the body ended first.
+     */
+    private String readLine() throws IOException {
+        int searchFrom = position;
+        while (true) {
+            for (int i = searchFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            int alreadySearched = limit - position;
+            if (alreadySearched > maxLineBytes) {
+                throw new ParsingException("A line in the multipart data was longer than allowed.  Current max: " + maxLineBytes);
+            }
+            if (fill() < 0) return null;
+            searchFrom = position + alreadySearched;
+        }
+    }
+
+    /**
+     * Moves what's left in the buffer to its start, and reads as much more
+     * as will fit, without reading past the end of the body.
+     * @return the count of bytes read, or -1 if there's no more body
+     */
+    private int fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (remaining == 0) return -1;
+        int count = inputStream.read(buffer, limit, (int) Math.min(buffer.length - limit, remaining));
+        if (count < 0) return -1;
+        limit += count;
+        remaining -= count;
+        return count;
+    }
+
+    /**
+     * Where the data of a part goes as we read it - into memory
+     * at first, and into a temporary file if it grows too large.
+     */
+    private final class PartData extends OutputStream {
+        private ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+        private Path file;
+        private OutputStream fileStream;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileStream == null && inMemory.size() + len > maxPartBytesInMemory) {
+                file = Files.createTempFile("minum_upload_", ".part");
+                fileStream = new BufferedOutputStream(Files.newOutputStream(file));
+                inMemory.writeTo(fileStream);
+                inMemory = null;
+            }
+            if (fileStream != null) {
+                fileStream.write(b, off, len);
+            } else {
+                inMemory.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileStream != null) fileStream.close();
+        }
+    }
+}
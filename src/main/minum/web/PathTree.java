@@ -0,0 +1,188 @@
+package minum.web;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static minum.utils.Invariants.mustBeTrue;
+
+/**
+ * Finds the value registered for a path, by walking a tree of the
+ * registered paths a few characters at a time.  Paths that share a
+ * beginning share the branch for it, so a lookup takes time according to
+ * the length of the path, not how many paths have been registered.
+ * <p>
+ *     A value may be registered for a path exactly, or for any path
+ *     starting with it.  When several of the latter match, the longest
+ *     one wins.  For example, with these two registered as prefixes:
+ * </p>
+ * <pre>
+ *     .well-known
+ *     .well-known/acme-challenge
+ * </pre>
+ * <p>
+ *     a request for .well-known/acme-challenge/abc123 gets the second.
+ * </p>
+ * <p>
+ *     A path registered exactly may have parameters - a whole segment
+ *     between braces, like photo/{id}, matches any text up to the next
+ *     slash, and the text is given back under that name.  A segment
+ *     spelled out wins over a parameter, so photo/new may be registered
+ *     alongside photo/{id}.
+ * </p>
+ * <p>
+ *     This is built up as endpoints are registered, before the server
+ *     starts, and only read after that.  It is not safe to change while
+ *     being read.
+ * </p>
+ */
+final class PathTree<T> {
+
+    private static final class Node<T> {
+        /**
+         * The characters along the branch from the parent to here
+         */
+        private String label;
+        /**
+         * The branches from here, by their first character
+         */
+        private final Map<Character, Node<T>> children = new HashMap<>();
+        /**
+         * The branch for a parameter segment starting here, if any.  Its
+         * label is the name of the parameter.
+         */
+        private Node<T> parameterChild;
+        private T exactValue;
+        private T prefixValue;
+
+        private Node(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Node<T> root = new Node<>("");
+
+    /**
+     * Register a value for exactly this path
+     */
+    void putExact(String path, T value) {
+        nodeFor(path).exactValue = value;
+    }
+
+    /**
+     * Register a value for every path starting with this one
+     */
+    void putPrefix(String path, T value) {
+        mustBeTrue(path.indexOf('{') < 0, "Only a path registered exactly may have parameters: " + path);
+        nodeFor(path).prefixValue = value;
+    }
+
+    /**
+     * Returns the value registered for exactly this path, or null.  The
+     * path is compared as though it were lowercase, which is how paths are
+     * registered, but the values of any parameters keep their case.
+     * @param parameters where to put the value of each parameter, by name
+     */
+    T getExact(String path, Map<String, String> parameters) {
+        return getExact(root, path, 0, parameters);
+    }
+
+    private T getExact(Node<T> node, String path, int index, Map<String, String> parameters) {
+        if (index == path.length()) return node.exactValue;
+        Node<T> child = node.children.get(Character.toLowerCase(path.charAt(index)));
+        if (child != null && startsWithLowercase(path, index, child.label)) {
+            T found = getExact(child, path, index + child.label.length(), parameters);
+            if (found != null) return found;
+        }
+        // the spelled-out branch led nowhere, so try it as a parameter
+        Node<T> parameterChild = node.parameterChild;
+        if (parameterChild == null) return null;
+        int end = path.indexOf('/', index);
+        if (end < 0) end = path.length();
+        if (end == index) return null;
+        T found = getExact(parameterChild, path, end, parameters);
+        if (found != null) parameters.put(parameterChild.label, path.substring(index, end));
+        return found;
+    }
+
+    private static boolean startsWithLowercase(String path, int index, String label) {
+        if (path.length() - index < label.length()) return false;
+        for (int i = 0; i < label.length(); i++) {
+            if (Character.toLowerCase(path.charAt(index + i)) != label.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value registered for the longest prefix of this path, or null
+     */
+    T getLongestPrefix(String path) {
+        Node<T> node = root;
+        T found = root.prefixValue;
+        int index = 0;
+        while (index < path.length()) {
+            Node<T> child = node.children.get(path.charAt(index));
+            if (child == null || ! path.startsWith(child.label, index)) break;
+            index += child.label.length();
+            node = child;
+            if (node.prefixValue != null) found = node.prefixValue;
+        }
+        return found;
+    }
+
+    /**
+     * Finds the node for a path, adding it to the tree if need be.  When
+     * the path ends partway along an existing branch, or turns off from
+     * it, that branch is split in two with a new node where they part.
+     * Each parameter gets a node of its own, off to the side of the
+     * spelled-out branches.
+     */
+    private Node<T> nodeFor(String path) {
+        for (int open = path.indexOf('{'); open >= 0; open = path.indexOf('{', open + 1)) {
+            int close = path.indexOf('}', open);
+            mustBeTrue(close > open + 1 && path.lastIndexOf('/', close) < open && (open == 0 || path.charAt(open - 1) == '/') &&
+                    (close == path.length() - 1 || path.charAt(close + 1) == '/'),
+                    "A parameter must be a whole segment of the path, like photo/{id}: " + path);
+        }
+        Node<T> node = root;
+        int index = 0;
+        while (index < path.length()) {
+            char next = path.charAt(index);
+            if (next == '{') {
+                int close = path.indexOf('}', index);
+                String name = path.substring(index + 1, close);
+                if (node.parameterChild == null) node.parameterChild = new Node<>(name);
+                mustBeTrue(node.parameterChild.label.equals(name),
+                        "Parameter {" + name + "} is in the same place as {" + node.parameterChild.label + "} in another path: " + path);
+                index = close + 1;
+                node = node.parameterChild;
+                continue;
+            }
+            // the spelled-out part goes as far as the next parameter
+            int literalEnd = path.indexOf('{', index);
+            if (literalEnd < 0) literalEnd = path.length();
+            Node<T> child = node.children.get(next);
+            if (child == null) {
+                child = new Node<>(path.substring(index, literalEnd));
+                node.children.put(next, child);
+                index = literalEnd;
+                node = child;
+                continue;
+            }
+            int common = 0;
+            while (common < child.label.length() && index + common < literalEnd &&
+                    child.label.charAt(common) == path.charAt(index + common)) {
+                common++;
+            }
+            if (common < child.label.length()) {
+                var middle = new Node<T>(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.children.put(child.label.charAt(0), child);
+                node.children.put(next, middle);
+                child = middle;
+            }
+            index += common;
+            node = child;
+        }
+        return node;
+    }
+}
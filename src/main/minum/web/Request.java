@@ -3,6 +3,7 @@ package minum.web;
 import minum.Context;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * An HTTP request.
@@ -54,7 +55,17 @@ public record Request(Headers headers, StartLine startLine, Body body,
                       /*
                       This is the remote address making the request
                        */
-                      String remoteRequester) {
+                      String remoteRequester,
+                      /*
+                      The values of the parameters in the path the endpoint was
+                      registered with, by name - for photo/{id}, the id.  See
+                      WebFramework.registerPath
+                       */
+                      Map<String, String> pathParameters) {
+
+    public Request(Headers headers, StartLine startLine, Body body, String remoteRequester) {
+        this(headers, startLine, body, remoteRequester, Map.of());
+    }
 
     public static Request EMPTY(Context context) {
         return new Request(new Headers(List.of(), context), StartLine.EMPTY(context), Body.EMPTY(context), "");
@@ -1,7 +1,17 @@
 package minum.web;
 
+import minum.utils.CryptoUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
+import static minum.utils.Invariants.mustBeTrue;
+import static minum.utils.Invariants.mustNotBeNull;
+
 /**
  * Represents an HTTP response. This is what will get sent back to the
  * client (that is, to the browser).  There are a variety of overloads
@@ -44,9 +54,24 @@ import java.util.*;
  * </li>
  *</ul>
  * @param extraHeaders extra headers we want to return with the response.
+ * @param bodyFile if not null, the body is the contents of this file, sent
+ *                 straight from disk rather than from {@link #body()}.
+ *                 See {@link #fromFile(StatusLine.StatusCode, Map, Path)}
+ * @param bodyWriter if not null, the body is whatever this writes as the response
+ *                   goes out, rather than {@link #body()}.
+ *                   See {@link #streaming(StatusLine.StatusCode, Map, BodyWriter)}
  */
 public record Response(StatusLine.StatusCode statusCode, Map<String, String> extraHeaders,
-                       byte[] body) {
+                       byte[] body, Path bodyFile, BodyWriter bodyWriter) {
+
+    public Response(StatusLine.StatusCode statusCode, Map<String, String> extraHeaders, byte[] body, Path bodyFile) {
+        this(statusCode, extraHeaders, body, bodyFile, null);
+    }
+
+    public Response(StatusLine.StatusCode statusCode, Map<String, String> extraHeaders, byte[] body) {
+        this(statusCode, extraHeaders, body, null);
+    }
+
     public Response(StatusLine.StatusCode statusCode, byte[] body) {
         this(statusCode, Map.of(), body);
     }
@@ -71,6 +96,84 @@ public record Response(StatusLine.StatusCode statusCode, Map<String, String> ext
         this(statusCode, Map.of(), "".getBytes());
     }
 
+    /**
+     * A response whose body is the contents of a file.  Rather than reading
+     * the file into memory, it is sent to the client straight from disk when
+     * the response goes out, which suits large files like photos and video.
+     * The extra headers must include a Content-Type.
+     * <p>
+     *     Clients may ask for just part of the file with a Range header,
+     *     for instance to seek within a video.  See {@link ByteRanges}
+     * </p>
+     */
+    public static Response fromFile(StatusLine.StatusCode statusCode, Map<String, String> extraHeaders, Path bodyFile) {
+        var headers = new HashMap<>(extraHeaders);
+        headers.putIfAbsent("Accept-Ranges", "bytes");
+        return new Response(statusCode, headers, "".getBytes(), bodyFile);
+    }
+
+    /**
+     * A response whose body is written a piece at a time as it is sent,
+     * rather than built up in memory beforehand - for instance, a large
+     * CSV export, or the contents of an {@link java.io.InputStream}:
+     * <pre>
+     * {@code
+     * Response.streaming(_200_OK, Map.of("Content-Type", "text/csv"), out -> inputStream.transferTo(out));
+     * }
+     * </pre>
+     * Since we don't know the length ahead of time, the body is sent with
+     * chunked transfer-encoding.  The exception is an HTTP/1.0 client,
+     * which doesn't understand that, so we send the body as-is and close
+     * the connection at its end.
+     * <p>
+     *     The writer runs after the status line and headers have been sent,
+     *     so if it throws, it is too late to tell the client about it with
+     *     a 500.  The connection is closed instead, with the body unfinished.
+     * </p>
+     */
+    public static Response streaming(StatusLine.StatusCode statusCode, Map<String, String> extraHeaders, BodyWriter bodyWriter) {
+        mustNotBeNull(bodyWriter);
+        return new Response(statusCode, extraHeaders, "".getBytes(), null, bodyWriter);
+    }
+
+    /**
+     * Returns a copy of this response with an ETag header, a fingerprint
+     * of the body.  Browsers keep the ETag, and when they ask for the same
+     * thing again they send it back in an If-None-Match header.  If it still
+     * matches, the framework replies with a short 304 Not Modified rather
+     * than sending the whole body again.
+     * <p>
+     *     For a body kept in memory, the fingerprint is a hash of its bytes.
+     *     For a body sent from a file, it is built from the file's size and
+     *     when it was last modified, so that we don't have to read the file.
+     * </p>
+     */
+    public Response withETag() {
+        mustBeTrue(bodyWriter == null, "a streamed body isn't available ahead of time to compute an ETag from");
+        var headers = new HashMap<>(extraHeaders);
+        headers.put("ETag", bodyFile == null ? computeETag(body) : computeETag(bodyFile));
+        return new Response(statusCode, headers, body, bodyFile, bodyWriter);
+    }
+
+    static String computeETag(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+            return "\"" + CryptoUtils.bytesToHex(Arrays.copyOf(hash, 16)) + "\"";
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static String computeETag(Path file) {
+        try {
+            long size = Files.size(file);
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     /**
      * A helper method to create a response that returns a
      * 303 status code ("see other").  Provide a url that will
@@ -0,0 +1,91 @@
+package minum.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static minum.web.WebEngine.HTTP_CRLF;
+
+/**
+ * The stream handed to a {@link BodyWriter}.  Writes are collected
+ * in a buffer and sent on the socket each time it fills.
+ * <p>
+ *     When chunked, each buffer-full goes out as one chunk of
+ *     <a href="https://www.rfc-editor.org/rfc/rfc9112#name-chunked-transfer-coding">chunked transfer coding</a>,
+ *     and closing the stream sends the zero-length chunk that marks the end
+ *     of the body.  Otherwise, the bytes are sent as-is, and it's up to the
+ *     caller to close the connection afterwards so the client knows the body
+ *     has ended.
+ * </p>
+ * <p>
+ *     Closing this does not close the socket underneath.
+ * </p>
+ */
+final class ResponseBodyStream extends OutputStream {
+
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private final ISocketWrapper sw;
+    private final boolean isChunked;
+    private final byte[] buffer;
+    private int count;
+    private boolean isClosed;
+
+    ResponseBodyStream(ISocketWrapper sw, boolean isChunked) {
+        this.sw = sw;
+        this.isChunked = isChunked;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) sendBuffered();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) sendBuffered();
+            int toCopy = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, toCopy);
+            count += toCopy;
+            off += toCopy;
+            len -= toCopy;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        sendBuffered();
+    }
+
+    private void sendBuffered() throws IOException {
+        if (isClosed) throw new IOException("the response body has already been finished");
+        if (count == 0) return;
+        if (isChunked) {
+            // the size line, the data, and the line ending all go out in one send
+            byte[] sizeLine = (Integer.toHexString(count) + HTTP_CRLF).getBytes(StandardCharsets.US_ASCII);
+            byte[] chunk = new byte[sizeLine.length + count + 2];
+            System.arraycopy(sizeLine, 0, chunk, 0, sizeLine.length);
+            System.arraycopy(buffer, 0, chunk, sizeLine.length, count);
+            chunk[chunk.length - 2] = '\r';
+            chunk[chunk.length - 1] = '\n';
+            sw.send(chunk);
+        } else {
+            sw.send(count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+        }
+        count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed) return;
+        sendBuffered();
+        if (isChunked) {
+            sw.send(("0" + HTTP_CRLF + HTTP_CRLF).getBytes(StandardCharsets.US_ASCII));
+        }
+        isClosed = true;
+    }
+}
@@ -0,0 +1,149 @@
+package minum.web;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the bodies of responses built by our endpoints, when the
+ * client says it can handle gzip.  A page of HTML usually shrinks to a
+ * fraction of its size, which matters a great deal on a slow connection.
+ * <p>
+ *     A {@link Deflater} holds a good chunk of memory outside the heap, which
+ *     is only given back when it is ended.  Rather than making a new one for
+ *     every response, we keep a few in a pool and reset them between uses.
+ * </p>
+ * See {@link WebFramework#compressing(java.util.function.Function)}
+ */
+final class ResponseCompressor {
+
+    /**
+     * The fixed start of a gzip file: the magic number, "deflate" as the
+     * method, no flags, no modification time, and an unknown operating system.
+     * See <a href="https://www.rfc-editor.org/rfc/rfc1952">RFC 1952</a>
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int minBytesToCompress;
+    private final BlockingQueue<Deflater> deflaters;
+
+    /**
+     * @param minBytesToCompress bodies smaller than this are sent as they are,
+     *                           since there's little to gain in compressing them.
+     */
+    ResponseCompressor(int minBytesToCompress) {
+        this.minBytesToCompress = minBytesToCompress;
+        this.deflaters = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Returns a gzipped version of the response, if the client accepts
+     * that and the response is worth compressing, or else the response
+     * unchanged.  Only text bodies held in memory are compressed - not
+     * files, streamed bodies, or anything already encoded.
+     */
+    Response compress(Request request, Response response) {
+        if (response.statusCode() != StatusLine.StatusCode._200_OK ||
+                response.bodyFile() != null ||
+                response.bodyWriter() != null ||
+                response.body().length < minBytesToCompress) {
+            return response;
+        }
+
+        String contentType = "";
+        String etagName = null;
+        String varyName = null;
+        for (var header : response.extraHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.equals("content-encoding")) return response;
+            if (name.equals("content-type")) contentType = header.getValue().toLowerCase(Locale.ROOT);
+            if (name.equals("etag")) etagName = header.getKey();
+            if (name.equals("vary")) varyName = header.getKey();
+        }
+        if (! StaticFilesCache.isCompressible(contentType)) return response;
+
+        // caches between us and the client need to know the response depends on
+        // Accept-Encoding, along with whatever else the endpoint said it depends on.
+        var headers = new HashMap<>(response.extraHeaders());
+        if (varyName == null) {
+            headers.put("Vary", "Accept-Encoding");
+        } else if (! containsToken(headers.get(varyName), "accept-encoding")) {
+            headers.put(varyName, headers.get(varyName) + ", Accept-Encoding");
+        }
+        if (! request.headers().acceptsEncoding("gzip")) {
+            return new Response(response.statusCode(), headers, response.body());
+        }
+
+        byte[] compressed = gzip(response.body());
+        if (compressed.length >= response.body().length) {
+            return new Response(response.statusCode(), headers, response.body());
+        }
+        headers.put("Content-Encoding", "gzip");
+        // the compressed body is a different set of bytes, so it needs its own ETag
+        if (etagName != null) {
+            String etag = headers.get(etagName);
+            if (etag.endsWith("\"")) {
+                headers.put(etagName, etag.substring(0, etag.length() - 1) + "-gzip\"");
+            }
+        }
+        return new Response(response.statusCode(), headers, compressed);
+    }
+
+    /**
+     * Whether a comma-separated header value, like that of Vary,
+     * includes this lowercase item, or "*", which includes everything.
+     */
+    private static boolean containsToken(String headerValue, String token) {
+        for (String item : headerValue.split(",")) {
+            String trimmed = item.trim();
+            if (trimmed.equals("*") || trimmed.equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compress bytes in the gzip format, using a {@link Deflater} from our pool.
+     */
+    byte[] gzip(byte[] input) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            // "nowrap", because we write the gzip header and trailer ourselves
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            var compressed = new ByteArrayOutputStream(input.length / 4 + 32);
+            compressed.writeBytes(GZIP_HEADER);
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] buffer = new byte[8 * 1024];
+            while (! deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                compressed.write(buffer, 0, count);
+            }
+
+            // the trailer is a checksum of the original bytes, then their length, both little-endian
+            var crc = new CRC32();
+            crc.update(input);
+            writeIntLittleEndian(compressed, (int) crc.getValue());
+            writeIntLittleEndian(compressed, input.length);
+            return compressed.toByteArray();
+        } finally {
+            deflater.reset();
+            if (! deflaters.offer(deflater)) {
+                // the pool is full, so let this one go, along with its memory
+                deflater.end();
+            }
+        }
+    }
+
+    private static void writeIntLittleEndian(ByteArrayOutputStream outputStream, int value) {
+        outputStream.write(value);
+        outputStream.write(value >>> 8);
+        outputStream.write(value >>> 16);
+        outputStream.write(value >>> 24);
+    }
+}
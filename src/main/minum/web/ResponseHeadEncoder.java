@@ -0,0 +1,160 @@
+package minum.web;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static minum.web.WebEngine.HTTP_CRLF;
+
+/**
+ * Builds the head of a response - the status line and the headers - as
+ * bytes, in a buffer that is kept and reused for each response on a connection.
+ * <p>
+ *     The parts that never change, like each status line and "Server: minum",
+ *     are encoded once, up front.  The Date header only changes once a second,
+ *     so rather than formatting the time for every response, we format it when
+ *     the second changes and share that among everyone - HTTP/2 responses too,
+ *     through {@link #currentDate()}.
+ * </p>
+ */
+final class ResponseHeadEncoder {
+
+    private static final byte[] SERVER_HEADER = ascii("Server: minum" + HTTP_CRLF);
+    private static final byte[] CRLF = ascii(HTTP_CRLF);
+    private static final byte[] HEADER_SEPARATOR = ascii(": ");
+
+    private static final Map<StatusLine.StatusCode, byte[]> STATUS_LINES = new EnumMap<>(StatusLine.StatusCode.class);
+    static {
+        for (var statusCode : StatusLine.StatusCode.values()) {
+            STATUS_LINES.put(statusCode, ascii("HTTP/1.1 " + statusCode.code + " " + statusCode.shortDescription + HTTP_CRLF));
+        }
+    }
+
+    /**
+     * The Date header for a particular second, as its value and as a whole header line
+     */
+    private record DateHeader(long epochSecond, String value, byte[] bytes) {}
+
+    private static volatile DateHeader currentDateHeader = new DateHeader(Long.MIN_VALUE, null, null);
+
+    private byte[] buffer = new byte[512];
+    private int count;
+
+    /**
+     * Begin a new response head, with its status line, Date, and Server headers.
+     * @param overrideForDateTime if not null, the date to use instead of the
+     *                            current time, for tests.
+     */
+    ResponseHeadEncoder start(StatusLine.StatusCode statusCode, ZonedDateTime overrideForDateTime) {
+        count = 0;
+        write(STATUS_LINES.get(statusCode));
+        write(overrideForDateTime == null ? currentDateHeader() : dateHeader(overrideForDateTime));
+        write(SERVER_HEADER);
+        return this;
+    }
+
+    ResponseHeadEncoder header(String name, String value) {
+        writeString(name);
+        write(HEADER_SEPARATOR);
+        writeString(value);
+        write(CRLF);
+        return this;
+    }
+
+    /**
+     * Adds the blank line that ends the head.
+     */
+    ResponseHeadEncoder finish() {
+        write(CRLF);
+        return this;
+    }
+
+    void sendOn(ISocketWrapper sw) throws IOException {
+        sw.send(buffer, 0, count);
+    }
+
+    /**
+     * Send the head along with a body, together in one write where the socket allows.
+     */
+    void sendOn(ISocketWrapper sw, byte[] body) throws IOException {
+        sw.send(ByteBuffer.wrap(buffer, 0, count), ByteBuffer.wrap(body));
+    }
+
+    private static byte[] currentDateHeader() {
+        return currentDateHeaderForThisSecond().bytes();
+    }
+
+    /**
+     * The value for a Date header right now, like "Tue, 3 Jun 2008 11:05:30 GMT"
+     */
+    static String currentDate() {
+        return currentDateHeaderForThisSecond().value();
+    }
+
+    private static DateHeader currentDateHeaderForThisSecond() {
+        long epochSecond = System.currentTimeMillis() / 1000;
+        DateHeader dateHeader = currentDateHeader;
+        if (dateHeader.epochSecond() != epochSecond) {
+            // if a few threads get here at once, they each do the same work, and that's fine
+            String value = formatDate(ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneOffset.UTC));
+            dateHeader = new DateHeader(epochSecond, value, ascii("Date: " + value + HTTP_CRLF));
+            currentDateHeader = dateHeader;
+        }
+        return dateHeader;
+    }
+
+    private static byte[] dateHeader(ZonedDateTime dateTime) {
+        return ascii("Date: " + formatDate(dateTime) + HTTP_CRLF);
+    }
+
+    private static String formatDate(ZonedDateTime dateTime) {
+        return dateTime.format(DateTimeFormatter.RFC_1123_DATE_TIME);
+    }
+
+    /**
+     * Header names and values are nearly always plain ASCII, which we can copy
+     * over a character at a time.  Anything else gets encoded as UTF-8.
+     */
+    private void writeString(String value) {
+        int start = count;
+        int length = value.length();
+        ensureCapacity(count + length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                count = start;
+                write(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(count + bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+}
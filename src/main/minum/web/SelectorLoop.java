@@ -0,0 +1,237 @@
+package minum.web;
+
+import minum.Constants;
+import minum.logging.ILogger;
+import minum.utils.StacktraceUtils;
+import minum.utils.ThrowingRunnable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An alternative to the blocking accept loop in {@link Server}, used
+ * when {@link Constants#USE_NIO_SELECTOR} is enabled.
+ * <p>
+ *     In the blocking approach, every connection gets a thread for as long
+ *     as it lives.  With keep-alive, that means a browser sitting idle between
+ *     clicks is holding a thread hostage for up to {@link Constants#SOCKET_TIMEOUT_MILLIS}.
+ * </p>
+ * <p>
+ *     Here, instead, a single thread watches all the idle connections
+ *     using a {@link Selector}.  As bytes arrive, we collect them without
+ *     blocking, and only once a full request head (the start line and headers,
+ *     ending with a blank line) has arrived do we hand the socket over to a
+ *     worker thread.  The worker runs the usual handler in blocking mode and,
+ *     when the response is sent and the connection is idle again, hands the
+ *     socket back here by way of {@link ISocketWrapper#parkIfIdle()}.
+ * </p>
+ * <p>
+ *     This only applies to the plain-text server.  TLS requires an
+ *     {@link javax.net.ssl.SSLEngine} to work with channels, which we
+ *     don't have, so the secure server stays with the blocking loop.
+ * </p>
+ */
+final class SelectorLoop implements AutoCloseable {
+
+    /**
+     * The size of the buffer we read into on the selector thread. Bytes
+     * get copied from here into a buffer specific to each connection.
+     */
+    private static final int SCRATCH_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The most time we'll spend waiting in a select before we wake up
+     * to check for connections that have been idle too long.
+     */
+    private static final int MAX_SELECT_WAIT_MILLIS = 1000;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Server server;
+    private final ILogger logger;
+    private final Constants constants;
+    private final ByteBuffer scratch;
+
+    /**
+     * Sockets that worker threads have handed back to us.  They
+     * can't register with the selector themselves while we are
+     * blocked in a select, so they leave them here and wake us up.
+     */
+    private final Queue<SocketWrapper> parkedSockets;
+
+    SelectorLoop(ServerSocketChannel serverChannel, Server server, ILogger logger, Constants constants) throws IOException {
+        this.serverChannel = serverChannel;
+        this.server = server;
+        this.logger = logger;
+        this.constants = constants;
+        this.selector = Selector.open();
+        this.scratch = ByteBuffer.allocateDirect(SCRATCH_BUFFER_SIZE);
+        this.parkedSockets = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Builds the innermost loop of the selector-based server.  It runs
+     * until the selector is closed, at which point it exits quietly.
+     * @param handler the handler that takes charge once a request is ready to read.
+     */
+    ThrowingRunnable<Exception> buildLoop(ThrowingConsumer<ISocketWrapper, IOException> handler) {
+        return () -> {
+            Thread.currentThread().setName("Main Server (selector)");
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            int selectWaitMillis = Math.min(constants.SOCKET_TIMEOUT_MILLIS, MAX_SELECT_WAIT_MILLIS);
+            try {
+                while (selector.isOpen()) {
+                    selector.select(selectWaitMillis);
+                    registerParkedSockets();
+                    List<SocketWrapper> readySockets = new ArrayList<>();
+                    var iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            acceptAll();
+                        } else if (key.isReadable()) {
+                            var sw = (SocketWrapper) key.attachment();
+                            if (readWithoutBlocking(key, sw)) {
+                                key.cancel();
+                                readySockets.add(sw);
+                            }
+                        }
+                    }
+                    if (!readySockets.isEmpty()) {
+                        dispatch(readySockets, handler);
+                    }
+                    closeIdleSockets();
+                }
+            } catch (ClosedSelectorException ex) {
+                logger.logTrace(() -> server + " selector closed, leaving the selector loop");
+            }
+        };
+    }
+
+    /**
+     * Accept every connection that is waiting, registering each
+     * with the selector to be told when it has something to say.
+     */
+    private void acceptAll() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            var sw = new SocketWrapper(channel, server, this, logger, constants.SOCKET_TIMEOUT_MILLIS, maxRequestHeadBytes());
+            logger.logTrace(() -> String.format("client connected from %s", sw.getRemoteAddrWithPort()));
+            server.addSocketWrapper(sw);
+            channel.register(selector, SelectionKey.OP_READ, sw);
+        }
+    }
+
+    /**
+     * Read whatever the client has sent us so far, without waiting for more.
+     * @return true if this socket has enough for a worker to begin handling it
+     */
+    private boolean readWithoutBlocking(SelectionKey key, SocketWrapper sw) throws IOException {
+        scratch.clear();
+        int count;
+        try {
+            count = sw.getChannel().read(scratch);
+        } catch (IOException ex) {
+            logger.logDebug(() -> ex.getMessage() + " - remote address: " + sw.getRemoteAddrWithPort());
+            count = -1;
+        }
+        if (count < 0) {
+            // the client hung up on us.
+            key.cancel();
+            sw.close();
+            return false;
+        }
+        scratch.flip();
+        sw.appendPendingInput(scratch);
+        return sw.hasRequestReady();
+    }
+
+    /**
+     * Switch the sockets back to blocking mode and hand them to workers.
+     * See {@link Server#handOff(ThrowingConsumer, ISocketWrapper)}
+     */
+    private void dispatch(List<SocketWrapper> readySockets, ThrowingConsumer<ISocketWrapper, IOException> handler) throws IOException {
+        // a channel can't be made blocking while it is still registered, and
+        // canceled keys are only fully deregistered during the next select.
+        selector.selectNow();
+        for (var sw : readySockets) {
+            try {
+                sw.getChannel().configureBlocking(true);
+            } catch (IOException | IllegalBlockingModeException ex) {
+                logger.logDebug(() -> "unable to hand off " + sw + " to a worker: " + ex);
+                sw.close();
+                continue;
+            }
+            server.handOff(handler, sw);
+        }
+    }
+
+    /**
+     * Called by a worker thread once it has sent its response and the
+     * client has nothing more waiting.  The socket will be watched again
+     * by the selector thread.
+     */
+    void park(SocketWrapper sw) throws IOException {
+        sw.getChannel().configureBlocking(false);
+        parkedSockets.add(sw);
+        selector.wakeup();
+    }
+
+    private void registerParkedSockets() {
+        SocketWrapper sw;
+        while ((sw = parkedSockets.poll()) != null) {
+            try {
+                sw.getChannel().register(selector, SelectionKey.OP_READ, sw);
+                SocketWrapper finalSw = sw;
+                logger.logTrace(() -> finalSw + " parked on the selector");
+            } catch (ClosedChannelException ex) {
+                server.removeMyRecord(sw);
+            }
+        }
+    }
+
+    /**
+     * Close connections that have been idle longer than {@link Constants#SOCKET_TIMEOUT_MILLIS}
+     * so that they don't accumulate forever, mirroring the read timeout
+     * in the blocking approach.
+     */
+    private void closeIdleSockets() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof SocketWrapper sw &&
+                    now - sw.getLastActivityMillis() > constants.SOCKET_TIMEOUT_MILLIS) {
+                logger.logTrace(() -> "Read timed out - remote address: " + sw.getRemoteAddrWithPort());
+                key.cancel();
+                try {
+                    sw.close();
+                } catch (IOException ex) {
+                    logger.logDebug(() -> StacktraceUtils.stackTraceToString(ex));
+                }
+            }
+        }
+    }
+
+    /**
+     * A client may send no more than this many bytes before we have
+     * a full request head.  Past this, we hand it to a worker anyway,
+     * where the limits on line sizes and header counts will deal with it.
+     */
+    private int maxRequestHeadBytes() {
+        return constants.MAX_READ_LINE_SIZE_BYTES * (constants.MAX_HEADERS_COUNT + 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        serverChannel.close();
+    }
+}
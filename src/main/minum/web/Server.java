@@ -11,10 +11,15 @@ import minum.utils.StacktraceUtils;
 import minum.utils.ThrowingRunnable;
 
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The purpose here is to make it marginally easier to
@@ -35,13 +40,45 @@ final class Server implements AutoCloseable {
     private final Constants constants;
     private final UnderInvestigation underInvestigation;
 
+    /**
+     * If we were built with a {@link ServerSocketChannel}, this watches
+     * the connections using a selector.  Otherwise, null, and we
+     * use the blocking accept loop.
+     */
+    private final SelectorLoop selectorLoop;
+
     /**
      * This is the future returned when we submitted the
      * thread for the central server loop to the ExecutorService
      */
     private Future<?> centralLoopFuture;
 
+    /**
+     * Runs the handling of each connection, or turns it away
+     * if we are too busy.  Built when the server starts.
+     */
+    private WorkerPool workerPool;
+
+    /**
+     * How long we ask a client to wait before trying again, when we
+     * turn it away for being too busy.
+     */
+    static final int RETRY_AFTER_SECONDS = 5;
+
+    /*
+     * Counts of the TLS handshakes on this server.  See {@link #getHandshakeStatistics()}
+     */
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakeNanos = new AtomicLong();
+    private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+
     Server(ServerSocket ss, Context context, String serverName, TheBrig theBrig) {
+        this(ss, null, context, serverName, theBrig);
+    }
+
+    private Server(ServerSocket ss, ServerSocketChannel ssc, Context context, String serverName, TheBrig theBrig) {
         this.serverSocket = ss;
         this.logger = context.getLogger();
         this.constants = context.getConstants();
@@ -49,6 +86,20 @@ final class Server implements AutoCloseable {
         this.theBrig = theBrig;
         setOfSWs = new SetOfSws(new ConcurrentSet<>(), logger, serverName);
         this.underInvestigation = new UnderInvestigation(constants);
+        try {
+            this.selectorLoop = ssc == null ? null : new SelectorLoop(ssc, this, logger, constants);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Build a server around a {@link ServerSocketChannel}, which will use
+     * a {@link SelectorLoop} to watch its connections rather than giving
+     * each one its own thread.
+     */
+    static Server makeSelectorServer(ServerSocketChannel ssc, Context context, String serverName, TheBrig theBrig) {
+        return new Server(ssc.socket(), ssc, context, serverName, theBrig);
     }
 
     /**
@@ -58,7 +109,10 @@ final class Server implements AutoCloseable {
      * @param handler the commonest handler will be found at {@link WebFramework#makePrimaryHttpHandler}
      */
     void start(ExecutorService es, ThrowingConsumer<ISocketWrapper, IOException> handler) {
-        ThrowingRunnable<Exception> serverCode = buildMainServerLoop(es, handler);
+        this.workerPool = new WorkerPool(es, constants);
+        ThrowingRunnable<Exception> serverCode = selectorLoop == null ?
+                buildMainServerLoop(es, handler) :
+                selectorLoop.buildLoop(handler);
         Runnable t = ThrowingRunnable.throwingRunnableWrapper(serverCode, logger);
         this.centralLoopFuture = es.submit(t);
     }
@@ -86,19 +140,54 @@ final class Server implements AutoCloseable {
                     logger.logTrace(() -> String.format("client connected from %s", sw.getRemoteAddrWithPort()));
                     setOfSWs.add(sw);
                     if (handler != null) {
-                        ThrowingRunnable<Exception> innerServerCode = buildExceptionHandlingInnerCore(handler, sw);
-                        es.submit(ThrowingRunnable.throwingRunnableWrapper(innerServerCode, logger));
+                        handOff(handler, sw);
                     }
                 }
             } catch (SocketException ex) {
                 if (!(ex.getMessage().contains("Socket closed") || ex.getMessage().contains("Socket is closed"))) {
                     logger.logAsyncError(() -> StacktraceUtils.stackTraceToString(ex));
                 }
+            } catch (ClosedChannelException ex) {
+                // a server socket opened through a channel reports being closed this way instead
+                logger.logTrace(() -> serverName + " closed while waiting to accept a connection");
             }
         };
         return serverCode;
     }
 
+    /**
+     * Give a connection to a worker to handle, or, if the {@link WorkerPool}
+     * has no room for it, turn it away.  A client on a plain connection is
+     * told we are too busy with a 503 Service Unavailable.  On a secure
+     * connection, that would mean a TLS handshake, which is exactly the
+     * expensive work we're trying to avoid, so we just hang up.
+     */
+    void handOff(ThrowingConsumer<ISocketWrapper, IOException> handler, ISocketWrapper sw) {
+        ThrowingRunnable<Exception> innerServerCode = buildExceptionHandlingInnerCore(handler, sw);
+        if (workerPool.submit(sw.getRemoteAddr(), ThrowingRunnable.throwingRunnableWrapper(innerServerCode, logger))) {
+            return;
+        }
+        logger.logDebug(() -> serverName + " is too busy, turning away " + sw.getRemoteAddrWithPort());
+        try {
+            if (! (serverSocket instanceof SSLServerSocket)) {
+                new ResponseHeadEncoder().start(StatusLine.StatusCode._503_SERVICE_UNAVAILABLE, null)
+                        .header("Retry-After", String.valueOf(RETRY_AFTER_SECONDS))
+                        .header("Content-Length", "0")
+                        .header("Connection", "close")
+                        .finish()
+                        .sendOn(sw);
+            }
+        } catch (IOException ex) {
+            logger.logDebug(() -> "unable to tell " + sw.getRemoteAddrWithPort() + " we are too busy: " + ex);
+        } finally {
+            try {
+                sw.close();
+            } catch (IOException ex) {
+                logger.logDebug(() -> "unable to close " + sw.getRemoteAddrWithPort() + ": " + ex);
+            }
+        }
+    }
+
     /**
      * By volume of code, this method is primarily focused on handling the kinds
      * of exceptional situations that can arise from handling the HTTP communication
@@ -127,6 +216,9 @@ final class Server implements AutoCloseable {
                     logger.logDebug(() -> ex.getMessage() + " - remote address: " + sw.getRemoteAddrWithPort());
                 }
 
+            } catch (ClosedChannelException ex) {
+                // the same as "Socket closed" above, for sockets that have channels
+                logger.logDebug(() -> ex.getClass().getSimpleName() + " - remote address: " + sw.getRemoteAddrWithPort());
             } catch (ForbiddenUseException ex) {
                 logger.logDebug(ex::getMessage);
             } catch (SSLException ex) {
@@ -142,12 +234,85 @@ final class Server implements AutoCloseable {
         return innerServerCode;
     }
 
+    /**
+     * Carry out the TLS handshake on a socket this server accepted, with
+     * its own timeout, keeping count of how long it took and whether the
+     * client resumed an earlier session.  See {@link ISocketWrapper#handshake()}
+     */
+    void handshake(SSLSocket socket) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        int readTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(constants.TLS_HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            socket.startHandshake();
+        } catch (IOException ex) {
+            failedHandshakes.incrementAndGet();
+            throw ex;
+        }
+        socket.setSoTimeout(readTimeout);
+        long nanos = System.nanoTime() - startNanos;
+
+        // a resumed session keeps the creation time of the session it resumes
+        boolean isResumed = socket.getSession().getCreationTime() < startMillis;
+        if (isResumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeNanos.addAndGet(nanos);
+        } else {
+            fullHandshakes.incrementAndGet();
+            fullHandshakeNanos.addAndGet(nanos);
+        }
+        logger.logTrace(() -> String.format("%s TLS handshake with %s took %d microseconds",
+                isResumed ? "resumed" : "full", socket.getRemoteSocketAddress(), nanos / 1000));
+    }
+
+    /**
+     * A snapshot of the TLS handshakes on this server.  A full handshake
+     * costs far more than resuming a session, so they are counted apart.
+     * @param full how many handshakes started a new session
+     * @param resumed how many resumed an earlier session
+     * @param failed how many handshakes didn't finish, including timeouts
+     * @param fullNanos the total time taken by full handshakes
+     * @param resumedNanos the total time taken by resumed handshakes
+     */
+    record HandshakeStatistics(long full, long resumed, long failed, long fullNanos, long resumedNanos) {}
+
+    HandshakeStatistics getHandshakeStatistics() {
+        return new HandshakeStatistics(fullHandshakes.get(), resumedHandshakes.get(), failedHandshakes.get(),
+                fullHandshakeNanos.get(), resumedHandshakeNanos.get());
+    }
+
+    /**
+     * Answer a request on one of an HTTP/2 connection's streams, using the
+     * {@link WorkerPool}'s workers for streams rather than those for connections.
+     * @return false if the work was turned away, in which case it will never run
+     */
+    boolean submitStreamWork(Runnable work) {
+        return workerPool.submitStream(work);
+    }
+
+    /**
+     * How busy the workers handling this server's connections are.
+     * See {@link WorkerPool.Statistics}
+     */
+    WorkerPool.Statistics getWorkerStatistics() {
+        return workerPool.getStatistics();
+    }
+
     public void close() throws IOException {
+        if (fullHandshakes.get() + resumedHandshakes.get() + failedHandshakes.get() > 0) {
+            logger.logDebug(() -> serverName + " TLS handshakes: " + getHandshakeStatistics());
+        }
+        if (workerPool != null) {
+            logger.logDebug(() -> serverName + " workers: " + workerPool.getStatistics());
+        }
         // close all the running sockets
         setOfSWs.stopAllServers();
         logger.logTrace(() -> "close called on " + this);
         // close the primary server socket
+        if (selectorLoop != null) selectorLoop.close();
         serverSocket.close();
+        if (workerPool != null) workerPool.close();
     }
 
     /**
@@ -173,6 +338,14 @@ final class Server implements AutoCloseable {
         return setOfSWs.getSocketWrapperByRemoteAddr(sw.getLocalAddr(), sw.getLocalPort());
     }
 
+    /**
+     * Adds a newly-accepted socket to our records, for when
+     * the socket was accepted by the {@link SelectorLoop}.
+     */
+    void addSocketWrapper(ISocketWrapper sw) {
+        setOfSWs.add(sw);
+    }
+
     /**
      * When we first create a SocketWrapper in Server, we provide it
      * a reference back to this object, so that it can call
@@ -0,0 +1,189 @@
+package minum.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A buffered stream over a socket's input, one per connection.
+ * <p>
+ *     Reading the head of a request one byte at a time straight off the
+ *     socket costs a system call per byte (and on the TLS port, a call into
+ *     the record decryption per byte).  Instead, we pull in as much as the
+ *     socket has ready in one bulk read, and the start line, header, and body
+ *     readers all take their bytes from here.
+ * </p>
+ * <p>
+ *     Since this may read past the end of the current request, everything
+ *     reading from a connection must go through this stream - never through
+ *     the raw socket stream underneath.
+ * </p>
+ * <p>
+ *     The {@link SelectorLoop} also places bytes here, read while it was
+ *     waiting for a full request head to arrive.
+ * </p>
+ */
+final class SocketInputStream extends InputStream {
+
+    /**
+     * Returned by {@link #readLine(ByteArrayOutputStream, int)} when the
+     * stream ended before we got to a newline.
+     */
+    static final int END_OF_STREAM = -1;
+
+    /**
+     * Returned by {@link #readLine(ByteArrayOutputStream, int)} when the
+     * client sent more bytes than allowed without a newline.
+     */
+    static final int LINE_TOO_LONG = -2;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final InputStream socketInputStream;
+    private byte[] buffer = EMPTY;
+    private int position;
+    private int limit;
+
+    SocketInputStream(InputStream socketInputStream) {
+        this.socketInputStream = socketInputStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && fill() < 0) return -1;
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position == limit) {
+            // nothing buffered, and the caller wants at least as much as we
+            // would buffer anyway - skip the copy and read directly into theirs.
+            if (len >= DEFAULT_BUFFER_SIZE) return socketInputStream.read(b, off, len);
+            if (fill() < 0) return -1;
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Reads a line of text into the provided output, stopping at a newline,
+     * which is consumed but not included.  Carriage returns are skipped.
+     * @param maxLineBytes if this many bytes are read without finding a
+     *                     newline, we stop and return {@link #LINE_TOO_LONG}
+     * @return the count of bytes consumed before the newline, or
+     * {@link #END_OF_STREAM} or {@link #LINE_TOO_LONG}.
+     */
+    int readLine(ByteArrayOutputStream out, int maxLineBytes) throws IOException {
+        int consumed = 0;
+        while (true) {
+            if (position == limit && fill() < 0) return END_OF_STREAM;
+            int end = Math.min(limit, position + (maxLineBytes - consumed));
+            for (int i = position; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    writeWithoutCarriageReturns(out, position, i);
+                    consumed += i - position;
+                    position = i + 1;
+                    return consumed;
+                }
+            }
+            writeWithoutCarriageReturns(out, position, end);
+            consumed += end - position;
+            position = end;
+            if (consumed == maxLineBytes) return LINE_TOO_LONG;
+        }
+    }
+
+    private void writeWithoutCarriageReturns(ByteArrayOutputStream out, int start, int end) {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '\r') {
+                out.write(buffer, runStart, i - runStart);
+                runStart = i + 1;
+            }
+        }
+        out.write(buffer, runStart, end - runStart);
+    }
+
+    /**
+     * Reads from the socket into our buffer, as much as it has for us
+     * (up to the size of the buffer).  Only called when the buffer is used up.
+     * @return the count of bytes read, or -1 if the stream has ended
+     */
+    private int fill() throws IOException {
+        position = 0;
+        limit = 0;
+        if (buffer.length == 0) buffer = new byte[DEFAULT_BUFFER_SIZE];
+        int count = socketInputStream.read(buffer, 0, buffer.length);
+        if (count > 0) limit = count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - position) + socketInputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socketInputStream.close();
+    }
+
+    /**
+     * True if there are bytes in the buffer that haven't been read.
+     */
+    boolean hasBuffered() {
+        return position < limit;
+    }
+
+    /**
+     * Adds bytes to the end of the buffer, growing it if necessary.
+     */
+    void append(ByteBuffer bytes) {
+        int count = bytes.remaining();
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit + count > buffer.length) {
+            byte[] bigger = new byte[Math.max(limit + count, Math.max(DEFAULT_BUFFER_SIZE, buffer.length * 2))];
+            System.arraycopy(buffer, 0, bigger, 0, limit);
+            buffer = bigger;
+        }
+        bytes.get(buffer, limit, count);
+        limit += count;
+    }
+
+    /**
+     * The head of a request ends with a blank line.  If the client
+     * has sent more than we will tolerate without one, we'll call it
+     * ready anyway, and let the usual limits on reading handle it.
+     */
+    boolean hasRequestHead(int maxHeadBytes) {
+        if (limit - position >= maxHeadBytes) return true;
+        for (int i = position + 1; i < limit; i++) {
+            if (buffer[i] != '\n') continue;
+            if (buffer[i - 1] == '\n') return true;
+            if (buffer[i - 1] == '\r' && i - 2 >= position && buffer[i - 2] == '\n') return true;
+        }
+        return false;
+    }
+
+    /**
+     * Let go of the buffer if everything in it has been read, so that
+     * a connection sitting idle isn't holding onto memory.
+     */
+    void releaseIfEmpty() {
+        if (position == limit) {
+            buffer = EMPTY;
+            position = 0;
+            limit = 0;
+        }
+    }
+}
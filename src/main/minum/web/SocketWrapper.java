@@ -2,11 +2,18 @@ package minum.web;
 
 import minum.logging.ILogger;
 
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 
 /**
@@ -14,12 +21,47 @@ import java.nio.charset.Charset;
  */
 final class SocketWrapper implements ISocketWrapper, AutoCloseable {
 
+    /**
+     * When sending several buffers on an encrypted socket, we'll copy them
+     * together if the total is at most this size, the most that fits in one TLS record.
+     */
+    private static final int MAX_BYTES_TO_COMBINE = 16 * 1024;
+
+    /**
+     * The most we'll hold onto for {@link #holdOutput()} before
+     * sending it anyway.
+     */
+    private static final int MAX_HELD_BYTES = 64 * 1024;
+
     private final Socket socket;
-    private final InputStream inputStream;
+    private final SocketInputStream inputStream;
     private final OutputStream writer;
     private final ILogger logger;
     private final Server server;
 
+    /**
+     * These are only set when this socket is being watched by a
+     * {@link SelectorLoop} between requests.  Otherwise, null.
+     */
+    private final SocketChannel channel;
+    private final SelectorLoop selectorLoop;
+    private final int maxPendingBytes;
+
+    /**
+     * The last time we received bytes from the client or finished
+     * handling a request.  Used by the {@link SelectorLoop} to
+     * close connections that sit idle too long.
+     */
+    private volatile long lastActivityMillis;
+
+    /**
+     * While not null, what we send is collected here rather than
+     * going out right away.  See {@link #holdOutput()}
+     */
+    private ByteArrayOutputStream heldOutput;
+
+    private boolean isHandshakeDone;
+
     /**
      * Constructor
      * @param socket a socket we intend to wrap with methods applicable to our use cases
@@ -33,20 +75,141 @@ final class SocketWrapper implements ISocketWrapper, AutoCloseable {
     SocketWrapper(Socket socket, Server server, ILogger logger, int timeoutMillis) throws IOException {
         this.socket = socket;
         this.socket.setSoTimeout(timeoutMillis);
-        this.inputStream = socket.getInputStream();
+        this.inputStream = new SocketInputStream(socket.getInputStream());
+        writer = socket.getOutputStream();
+        this.logger = logger;
+        this.server = server;
+        this.channel = null;
+        this.selectorLoop = null;
+        this.maxPendingBytes = 0;
+    }
+
+    /**
+     * Builds a wrapper for a socket accepted by a {@link SelectorLoop}.  The
+     * loop collects the first bytes of each request without blocking, and
+     * those are read first from {@link #getInputStream()} before we carry
+     * on reading from the socket.
+     * @param maxPendingBytes the most bytes we'll collect before treating the request as ready
+     *                        to be handled, whether or not we have seen the end of its headers.
+     */
+    SocketWrapper(SocketChannel channel, Server server, SelectorLoop selectorLoop, ILogger logger, int timeoutMillis, int maxPendingBytes) throws IOException {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.socket.setSoTimeout(timeoutMillis);
+        this.inputStream = new SocketInputStream(socket.getInputStream());
+        this.maxPendingBytes = maxPendingBytes;
         writer = socket.getOutputStream();
         this.logger = logger;
         this.server = server;
+        this.selectorLoop = selectorLoop;
+        this.lastActivityMillis = System.currentTimeMillis();
     }
 
     @Override
     public void send(String msg) throws IOException {
-        writer.write(msg.getBytes(Charset.defaultCharset()));
+        send(msg.getBytes(Charset.defaultCharset()));
     }
 
     @Override
     public void send(byte[] bodyContents) throws IOException {
-        writer.write(bodyContents);
+        send(bodyContents, 0, bodyContents.length);
+    }
+
+    @Override
+    public void send(byte[] bytes, int offset, int length) throws IOException {
+        if (heldOutput != null) {
+            hold(bytes, offset, length);
+        } else {
+            writer.write(bytes, offset, length);
+        }
+    }
+
+    /**
+     * With a channel underneath (our plain, non-encrypted sockets), all the
+     * buffers go to the operating system in one gathering write.  For
+     * encrypted sockets, each write becomes its own encrypted record, so
+     * if the total is small we copy them together first and write once.
+     */
+    @Override
+    public void send(ByteBuffer... buffers) throws IOException {
+        if (heldOutput != null) {
+            for (ByteBuffer buffer : buffers) {
+                int count = buffer.remaining();
+                hold(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+                buffer.position(buffer.position() + count);
+            }
+            return;
+        }
+        long total = 0;
+        for (ByteBuffer buffer : buffers) total += buffer.remaining();
+        if (socket.getChannel() != null) {
+            SocketChannel socketChannel = socket.getChannel();
+            while (total > 0) {
+                total -= socketChannel.write(buffers);
+            }
+        } else if (total <= MAX_BYTES_TO_COMBINE) {
+            byte[] combined = new byte[(int) total];
+            int position = 0;
+            for (ByteBuffer buffer : buffers) {
+                int count = buffer.remaining();
+                buffer.get(combined, position, count);
+                position += count;
+            }
+            writer.write(combined);
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                int count = buffer.remaining();
+                writer.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+                buffer.position(buffer.position() + count);
+            }
+        }
+    }
+
+    /**
+     * If the socket has a channel underneath (true for our plain, non-encrypted
+     * sockets) then {@link FileChannel#transferTo} can hand the work to the
+     * operating system, and the file's bytes never pass through our heap.  For
+     * encrypted sockets the bytes must be encrypted on their way through, so
+     * we copy them through a small buffer instead.
+     */
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        // whatever we're holding has to go first
+        writeHeldOutput();
+        WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(writer);
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                throw new IOException("file ended before we sent all " + count + " bytes");
+            }
+            position += sent;
+        }
+    }
+
+    @Override
+    public void holdOutput() {
+        if (heldOutput == null) heldOutput = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeHeldOutput();
+        heldOutput = null;
+    }
+
+    private void hold(byte[] bytes, int offset, int length) throws IOException {
+        heldOutput.write(bytes, offset, length);
+        if (heldOutput.size() >= MAX_HELD_BYTES) {
+            writeHeldOutput();
+        }
+    }
+
+    private void writeHeldOutput() throws IOException {
+        if (heldOutput != null && heldOutput.size() > 0) {
+            heldOutput.writeTo(writer);
+            heldOutput.reset();
+        }
     }
 
     @Override
@@ -75,9 +238,33 @@ final class SocketWrapper implements ISocketWrapper, AutoCloseable {
         return socket.getInetAddress().getHostAddress();
     }
 
+    @Override
+    public void handshake() throws IOException {
+        if (! (socket instanceof SSLSocket sslSocket) || isHandshakeDone) return;
+        // starting it again would begin a new handshake, rather than do nothing
+        isHandshakeDone = true;
+        if (server != null) {
+            server.handshake(sslSocket);
+        } else {
+            sslSocket.startHandshake();
+        }
+    }
+
+    @Override
+    public String getApplicationProtocol() {
+        if (! (socket instanceof SSLSocket sslSocket)) return "";
+        String protocol = sslSocket.getApplicationProtocol();
+        return protocol == null ? "" : protocol;
+    }
+
     @Override
     public void close() throws IOException {
         logger.logTrace(() -> "close called on " + this);
+        try {
+            writeHeldOutput();
+        } catch (IOException ex) {
+            logger.logDebug(() -> "unable to send held output while closing " + this + ": " + ex);
+        }
         socket.close();
         if (server != null) server.removeMyRecord(this);
     }
@@ -87,6 +274,45 @@ final class SocketWrapper implements ISocketWrapper, AutoCloseable {
         return this.inputStream;
     }
 
+    @Override
+    public boolean parkIfIdle() throws IOException {
+        if (selectorLoop == null || inputStream.hasBuffered()) return false;
+        inputStream.releaseIfEmpty();
+        lastActivityMillis = System.currentTimeMillis();
+        selectorLoop.park(this);
+        return true;
+    }
+
+    @Override
+    public boolean submitWork(Runnable work) {
+        return server != null && server.submitStreamWork(work);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    /**
+     * Add bytes the {@link SelectorLoop} read off the socket while
+     * we were waiting for a full request to arrive.
+     */
+    void appendPendingInput(ByteBuffer bytes) {
+        lastActivityMillis = System.currentTimeMillis();
+        inputStream.append(bytes);
+    }
+
+    /**
+     * True when we have received the entire head of a request (the
+     * start line and the headers) and a worker can begin handling it.
+     */
+    boolean hasRequestReady() {
+        return inputStream.hasRequestHead(maxPendingBytes);
+    }
+
     /**
      * Note that since we are indicating just the remote address
      * as the unique value, in cases like tests where we are operating as
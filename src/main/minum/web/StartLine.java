@@ -7,7 +7,6 @@ import minum.logging.ILogger;
 import minum.utils.StringUtils;
 
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static minum.utils.Invariants.mustBeTrue;
@@ -51,12 +50,18 @@ public final class StartLine{
     }
 
     /**
-     * This is our regex for looking at a client's request
-     * and determining what to send them.  For example,
+     * This regex describes a client's request, and how we determine
+     * what to send them.  For example,
      * if they send GET /sample.html HTTP/1.1, we send them sample.html
      * <p>
      * On the other hand if it's not a well-formed request, or
      * if we don't have that file, we reply with an error page
+     * </p>
+     * <p>
+     *     Since this runs for every request, {@link #extractStartLine(String)}
+     *     doesn't actually run the regex - it checks the same things itself, in
+     *     a single pass.  This is kept as the plainest description of what it accepts.
+     * </p>
      */
     static final String startLinePattern = "^([A-Z]{3,8}) /(.*) HTTP/(1.1|1.0)$";
 
@@ -69,15 +74,15 @@ public final class StartLine{
     /**
      * Returns a map of the key-value pairs in the URL,
      * for example in {@code http://foo.com?name=alice} you
-     * have a key of name and a value of alice.
+     * have a key of name and a value of alice.  The map
+     * cannot be modified.
      */
     public Map<String, String> queryString() {
-        if (pathDetails == null || pathDetails.queryString == null || pathDetails.queryString.isEmpty()) {
-            return new HashMap<>();
+        if (pathDetails == null || pathDetails.queryString == null) {
+            return Map.of();
         } else {
-            return new HashMap<>(pathDetails.queryString);
+            return pathDetails.queryString;
         }
-
     }
 
     /**
@@ -106,27 +111,61 @@ public final class StartLine{
      */
     public StartLine extractStartLine(String value) {
         mustNotBeNull(value);
-        Matcher m = StartLine.startLineRegex.matcher(value);
-        // run the regex
-        var doesMatch = m.matches();
-        if (!doesMatch) {
+
+        // the verb: three to eight capital letters, then a space and a slash
+        int verbEnd = 0;
+        while (verbEnd < value.length() && verbEnd <= 8 && value.charAt(verbEnd) >= 'A' && value.charAt(verbEnd) <= 'Z') {
+            verbEnd++;
+        }
+        if (verbEnd < 3 || verbEnd > 8 || ! value.startsWith(" /", verbEnd)) {
+            return StartLine.EMPTY(context);
+        }
+
+        // the version, at the very end
+        int pathEnd = value.length() - HTTP_VERSION_SUFFIX_LENGTH;
+        if (pathEnd < verbEnd + 2 || ! value.startsWith(" HTTP/1.", pathEnd)) {
+            return StartLine.EMPTY(context);
+        }
+        HttpVersion httpVersion = switch (value.charAt(value.length() - 1)) {
+            case '1' -> HttpVersion.ONE_DOT_ONE;
+            case '0' -> HttpVersion.ONE_DOT_ZERO;
+            default -> HttpVersion.NONE;
+        };
+        if (httpVersion == HttpVersion.NONE) {
             return StartLine.EMPTY(context);
         }
-        mustBeTrue(doesMatch, String.format("%s must match the startLinePattern: %s", value, startLinePattern));
-        Verb verb = extractVerb(m.group(1));
-        PathDetails pd = extractPathDetails(m.group(2));
-        HttpVersion httpVersion = getHttpVersion(m.group(3));
 
+        // and everything between is the path
+        for (int i = verbEnd + 2; i < pathEnd; i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n') return StartLine.EMPTY(context);
+        }
+
+        Verb verb = extractVerb(value.substring(0, verbEnd));
+        PathDetails pd = extractPathDetails(value.substring(verbEnd + 2, pathEnd));
         return new StartLine(verb, pd, httpVersion, value, context);
     }
 
+    /**
+     * The length of " HTTP/1.1" at the end of a start line
+     */
+    private static final int HTTP_VERSION_SUFFIX_LENGTH = 9;
+
     private Verb extractVerb(String verbString) {
-        try {
-            return Verb.valueOf(verbString.toUpperCase(Locale.ROOT));
-        } catch (Exception ex) {
-            logger.logDebug(() -> "Unable to convert verb to enum: " + verbString);
-            return Verb.NONE;
-        }
+        return switch (verbString) {
+            case "GET" -> Verb.GET;
+            case "POST" -> Verb.POST;
+            case "PUT" -> Verb.PUT;
+            case "DELETE" -> Verb.DELETE;
+            case "TRACE" -> Verb.TRACE;
+            case "PATCH" -> Verb.PATCH;
+            case "OPTIONS" -> Verb.OPTIONS;
+            case "HEAD" -> Verb.HEAD;
+            default -> {
+                logger.logDebug(() -> "Unable to convert verb to enum: " + verbString);
+                yield Verb.NONE;
+            }
+        };
     }
 
     private PathDetails extractPathDetails(String path) {
@@ -136,8 +175,10 @@ public final class StartLine{
             // in this case, we found a question mark, suggesting that a query string exists
             String rawQueryString = path.substring(locationOfQueryBegin + 1);
             String isolatedPath = path.substring(0, locationOfQueryBegin);
-            Map<String, String> queryString = extractMapFromQueryString(rawQueryString);
-            pd = new PathDetails(isolatedPath, rawQueryString, queryString);
+            // the client gets turned away now if there are too many keys, but we
+            // don't build the map of them unless an endpoint asks for it.
+            checkQueryStringKeysCount(rawQueryString);
+            pd = new PathDetails(isolatedPath, rawQueryString, new QueryStringMap(rawQueryString));
         } else {
             // in this case, no question mark was found, thus no query string
             pd = new PathDetails(path, null, null);
@@ -150,7 +191,8 @@ public final class StartLine{
      * @param isolatedPath the isolated path is found after removing the query string
      * @param rawQueryString the raw query is the string after a question mark (if it exists - it's optional)
      *                       if there is no query string, then we leave rawQuery as a null value
-     * @param queryString the query is a map of the keys -> values found in the query string
+     * @param queryString the query is a map of the keys -> values found in the query string.
+     *                    For a request we received, this cannot be modified.
      */
     public record PathDetails (
         String isolatedPath,
@@ -184,13 +226,59 @@ public final class StartLine{
     }
 
     /**
-     * Extract the HTTP version from the start line
+     * Counts the key-value pairs in a query string the way
+     * {@link #extractMapFromQueryString(String)} would, and throws
+     * if there are more than we allow.
      */
-    private HttpVersion getHttpVersion(String version) {
-        if (version.equals("1.1")) {
-            return HttpVersion.ONE_DOT_ONE;
-        } else {
-            return HttpVersion.ONE_DOT_ZERO;
+    private void checkQueryStringKeysCount(String rawQueryString) {
+        int count = 0;
+        boolean isInKeyValue = false;
+        for (int i = 0; i < rawQueryString.length(); i++) {
+            boolean isSeparator = rawQueryString.charAt(i) == '&';
+            if (! isSeparator && ! isInKeyValue) count++;
+            isInKeyValue = ! isSeparator;
+        }
+        if (count > constants.MAX_QUERY_STRING_KEYS_COUNT) throw new ForbiddenUseException("User tried providing too many query string keys.  Current max: " + constants.MAX_QUERY_STRING_KEYS_COUNT);
+    }
+
+    /**
+     * The keys and values of a query string, which are only picked
+     * apart and decoded the first time something looks at them.
+     * Many requests never need them - a browser asking for a stylesheet
+     * with a version number on the end, for instance.
+     */
+    private final class QueryStringMap extends AbstractMap<String, String> {
+
+        private final String rawQueryString;
+        private volatile Map<String, String> queryStrings;
+
+        private QueryStringMap(String rawQueryString) {
+            this.rawQueryString = rawQueryString;
+        }
+
+        private Map<String, String> queryStrings() {
+            Map<String, String> result = queryStrings;
+            if (result == null) {
+                // if a few threads get here at once, they each do the same work, and that's fine
+                result = Collections.unmodifiableMap(extractMapFromQueryString(rawQueryString));
+                queryStrings = result;
+            }
+            return result;
+        }
+
+        @Override
+        public String get(Object key) {
+            return queryStrings().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return queryStrings().containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return queryStrings().entrySet();
         }
     }
 
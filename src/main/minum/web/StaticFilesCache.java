@@ -3,13 +3,18 @@ package minum.web;
 import minum.Constants;
 import minum.Context;
 import minum.logging.ILogger;
+import minum.utils.ByteUtils;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.*;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import static minum.utils.Invariants.mustBeTrue;
@@ -28,6 +33,12 @@ import static minum.utils.Invariants.mustBeTrue;
  * the shape of this data is simply key -> value. It's a
  * map, but we wrap it in a custom class just to enable better
  * documentation.
+ * <p>
+ * The cache is limited to {@link Constants#STATIC_FILE_CACHE_MAX_BYTES}.  Once
+ * full, the least-recently used responses are dropped to make room (see
+ * {@link minum.utils.LRUCache} for the same idea, counted in entries rather
+ * than bytes).  A dropped response is simply read again if requested.
+ * </p>
  */
 final class StaticFilesCache {
 
@@ -38,16 +49,65 @@ final class StaticFilesCache {
     public static final String STATIC_FILES_DIRECTORY = "static/";
     public static final Pattern badFilePathPatterns = Pattern.compile("//|\\.\\.|:");
 
-    private final Map<String, Response> staticResponses;
+    /**
+     * Our rough guess at the memory a cache entry takes beyond its body,
+     * so that responses sent from disk (which have no body in memory)
+     * still count for something.
+     */
+    static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    /**
+     * Below this size, compressing a file saves too little to bother.
+     */
+    static final int MIN_BYTES_TO_COMPRESS = 256;
+
+    /**
+     * Kept in access order, so the first entry is the least-recently
+     * used.  Synchronize on this when using it.
+     */
+    private final LinkedHashMap<String, CachedFile> staticResponses;
+    private final long maxCacheBytes;
+    private long cachedBytes;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
     private final ILogger logger;
     private final Map<String, String> fileSuffixToMime;
     private final Constants constants;
 
+    /**
+     * If set, we serve static files from this directory on the
+     * filesystem rather than from our resources.
+     * See {@link Constants#STATIC_FILES_DISK_DIRECTORY}
+     */
+    private final Path staticFilesDiskDirectory;
+
+    private final int maxInMemoryBytes;
+
     StaticFilesCache(Context context) {
-        staticResponses = new HashMap<>();
+        this(context,
+                context.getConstants().STATIC_FILES_DISK_DIRECTORY.isBlank() ? null : Path.of(context.getConstants().STATIC_FILES_DISK_DIRECTORY),
+                context.getConstants().STATIC_FILE_MAX_IN_MEMORY_BYTES,
+                context.getConstants().STATIC_FILE_CACHE_MAX_BYTES);
+    }
+
+    /**
+     * This constructor lets us choose where static files come from
+     * and how much we'll keep in memory, mainly for testing.
+     * @param staticFilesDiskDirectory if null, we use our resources
+     * @param maxCacheBytes the most bytes of responses we will hold at once
+     */
+    StaticFilesCache(Context context, Path staticFilesDiskDirectory, int maxInMemoryBytes, long maxCacheBytes) {
+        staticResponses = new LinkedHashMap<>(16, 0.75f, true);
+        this.maxCacheBytes = maxCacheBytes;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
         this.logger = context.getLogger();
         fileSuffixToMime = new HashMap<>();
         this.constants = context.getConstants();
+        this.staticFilesDiskDirectory = staticFilesDiskDirectory == null ? null : staticFilesDiskDirectory.toAbsolutePath().normalize();
+        this.maxInMemoryBytes = maxInMemoryBytes;
         addDefaultValuesForMimeMap();
         readExtraMappings(context.getConstants().EXTRA_MIME_MAPPINGS);
     }
@@ -66,8 +126,94 @@ final class StaticFilesCache {
         fileSuffixToMime.put("html", "text/html; charset=UTF-8");
     }
 
+    /**
+     * A static file, as we hold it in the cache.
+     * @param identity the response with the file as-is
+     * @param gzipped the same file compressed with gzip, or null if we
+     *                don't have a compressed version of it
+     */
+    record CachedFile(Response identity, Response gzipped) {
+
+        /**
+         * Picks the version of this file to send, based on the
+         * encodings the client says it accepts.
+         */
+        Response responseFor(Request request) {
+            if (gzipped != null && request.headers().acceptsEncoding("gzip")) return gzipped;
+            return identity;
+        }
+
+        private long sizeInCache(String file) {
+            return ENTRY_OVERHEAD_BYTES + file.length() + identity.body().length +
+                    (gzipped == null ? 0 : gzipped.body().length);
+        }
+    }
+
+    /**
+     * Returns the uncompressed version of a cached file,
+     * or null if we don't have it.
+     */
     Response getStaticResponse(String key) {
-        return staticResponses.get(key);
+        CachedFile cachedFile = getCachedFile(key);
+        return cachedFile == null ? null : cachedFile.identity();
+    }
+
+    CachedFile getCachedFile(String key) {
+        CachedFile cachedFile;
+        synchronized (staticResponses) {
+            cachedFile = staticResponses.get(key);
+        }
+        if (cachedFile == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return cachedFile;
+    }
+
+    /**
+     * Add a file to the cache, dropping the least-recently
+     * used files if that takes us over our limit.
+     */
+    private void addToCache(String file, CachedFile cachedFile) {
+        long size = cachedFile.sizeInCache(file);
+        if (size > maxCacheBytes) {
+            logger.logTrace(() -> file + " is too large for the static cache, not storing it");
+            return;
+        }
+        logger.logTrace(() -> "Storing in cache - filename: " + file);
+        synchronized (staticResponses) {
+            CachedFile previous = staticResponses.put(file, cachedFile);
+            if (previous != null) cachedBytes -= previous.sizeInCache(file);
+            cachedBytes += size;
+
+            // the entry we just added is the most-recently used, so it
+            // will be the last one we reach here.
+            var iterator = staticResponses.entrySet().iterator();
+            while (cachedBytes > maxCacheBytes && iterator.hasNext()) {
+                var eldest = iterator.next();
+                iterator.remove();
+                cachedBytes -= eldest.getValue().sizeInCache(eldest.getKey());
+                evictions.incrementAndGet();
+                logger.logTrace(() -> "Removing from static cache to make room - filename: " + eldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * A snapshot of how the cache is doing.
+     * @param hits how many times we found what was asked for
+     * @param misses how many times we didn't
+     * @param evictions how many responses were dropped to make room for others
+     * @param entries how many responses are in the cache now
+     * @param bytes roughly how much memory those take up
+     */
+    record Statistics(long hits, long misses, long evictions, int entries, long bytes) {}
+
+    Statistics getStatistics() {
+        synchronized (staticResponses) {
+            return new Statistics(hits.get(), misses.get(), evictions.get(), staticResponses.size(), cachedBytes);
+        }
     }
 
     /**
@@ -79,66 +225,169 @@ final class StaticFilesCache {
      *     callers above us know to return 404 or whatever
      *     with that.
      * </p>
+     * @return the uncompressed version of the file.  See {@link #loadCachedFile(String)}
      */
     Response loadStaticFile(String file) {
+        CachedFile cachedFile = loadCachedFile(file);
+        return cachedFile == null ? null : cachedFile.identity();
+    }
+
+    /**
+     * Like {@link #loadStaticFile(String)}, but returns all the versions
+     * of the file we have.
+     * <p>
+     *     Text files, like CSS and scripts, usually shrink a great deal when
+     *     compressed.  For those, we look for a version already compressed
+     *     with gzip alongside it (e.g. main.css.gz next to main.css) and, if
+     *     there isn't one, compress it ourselves, as long as it's small
+     *     enough to be held in memory.
+     * </p>
+     */
+    CachedFile loadCachedFile(String file) {
         // if someone tries unusual patterns or path traversal, return null
         if (badFilePathPatterns.matcher(file).find()) return null;
 
         try {
-            String fullFileLocation = STATIC_FILES_DIRECTORY + file;
-            byte[] fileContents;
-            URL resource = StaticFilesCache.class.getClassLoader().getResource(fullFileLocation);
+            Map<String, String> headers = staticFileHeaders(file);
+            Response identity = readStaticFile(file, headers);
+            if (identity == null) return null;
 
-            if (resource == null) {
-                logger.logDebug(() -> "Did not find " + file + " in our resources, returning null Response");
-                return null;
+            Response gzipped = null;
+            if (isCompressible(headers.get("Content-Type"))) {
+                var gzipHeaders = new HashMap<>(identity.extraHeaders());
+                gzipHeaders.put("Content-Encoding", "gzip");
+                gzipHeaders.put("Vary", "Accept-Encoding");
+                gzipped = readStaticFile(file + ".gz", gzipHeaders);
+                if (gzipped == null && identity.bodyFile() == null && identity.body().length >= MIN_BYTES_TO_COMPRESS) {
+                    byte[] compressed = ByteUtils.gzip(identity.body());
+                    if (compressed.length < identity.body().length) {
+                        gzipped = new Response(StatusLine.StatusCode._200_OK, gzipHeaders, compressed);
+                    }
+                }
             }
-
-            URI uri = URI.create("");
-            try {
-                uri = resource.toURI();
-            } catch (URISyntaxException ex) {
-                logger.logDebug(() -> "Exception thrown when converting URI to URL for "+resource+": "+ex);
+            if (gzipped != null) {
+                // caches between us and the client need to know the response depends on Accept-Encoding
+                var identityHeaders = new HashMap<>(identity.extraHeaders());
+                identityHeaders.put("Vary", "Accept-Encoding");
+                identity = new Response(identity.statusCode(), identityHeaders, identity.body(), identity.bodyFile());
             }
 
-            if (uri.getScheme().equals("jar")) {
-            /*
-            This part is necessary because it's the only way we can set up to loop
-            through paths (files) later.  That is to say, when we getResource(path), it works fine,
-            but if we want to get a list of all the files in a directory inside our jar file,
-            we have to do it this way.
-             */
-                try (final var fileSystem = FileSystems.getFileSystem(uri)) {
-                    logger.logDebug(() -> "decompressing data into an existing file system");
+            // browsers can use these to ask whether the file has changed, see WebFramework#checkIfNotModified
+            CachedFile result = new CachedFile(identity.withETag(), gzipped == null ? null : gzipped.withETag());
+            addToCache(file, result);
+            return result;
+        } catch (IOException ex) {
+            logger.logAsyncError(() -> "at getStaticResponse.  Returning null.  Error: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Compressing helps text, but formats like images and video are
+     * already compressed, and gzip would only spend time making them larger.
+     */
+    static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") ||
+                mimeType.startsWith("application/javascript") ||
+                mimeType.startsWith("application/json") ||
+                mimeType.startsWith("application/xml") ||
+                mimeType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Reads a file inside the "static" directory, wherever we are
+     * getting those from, into a response with the given headers.
+     * Returns null if there is no such file.
+     */
+    private Response readStaticFile(String file, Map<String, String> headers) throws IOException {
+        if (staticFilesDiskDirectory != null) {
+            return loadFromDiskDirectory(file, headers);
+        } else {
+            return loadFromResources(file, headers);
+        }
+    }
+
+    /**
+     * Used when {@link Constants#STATIC_FILES_DISK_DIRECTORY} is set - we
+     * look for the file in that directory on the filesystem.
+     */
+    private Response loadFromDiskDirectory(String file, Map<String, String> headers) throws IOException {
+        final var myPath = staticFilesDiskDirectory.resolve(file).normalize();
+        if (! myPath.startsWith(staticFilesDiskDirectory) || ! Files.isRegularFile(myPath)) {
+            logger.logDebug(() -> "Did not find " + file + " in " + staticFilesDiskDirectory + ", returning null Response");
+            return null;
+        }
+        return createStaticFileResponse(file, myPath, headers);
+    }
+
+    private Response loadFromResources(String file, Map<String, String> headers) throws IOException {
+        String fullFileLocation = STATIC_FILES_DIRECTORY + file;
+        byte[] fileContents;
+        URL resource = StaticFilesCache.class.getClassLoader().getResource(fullFileLocation);
+
+        if (resource == null) {
+            logger.logDebug(() -> "Did not find " + file + " in our resources, returning null Response");
+            return null;
+        }
+
+        URI uri = URI.create("");
+        try {
+            uri = resource.toURI();
+        } catch (URISyntaxException ex) {
+            logger.logDebug(() -> "Exception thrown when converting URI to URL for "+resource+": "+ex);
+        }
+
+        if (uri.getScheme().equals("jar")) {
+        /*
+        This part is necessary because it's the only way we can set up to loop
+        through paths (files) later.  That is to say, when we getResource(path), it works fine,
+        but if we want to get a list of all the files in a directory inside our jar file,
+        we have to do it this way.
+         */
+            try (final var fileSystem = FileSystems.getFileSystem(uri)) {
+                logger.logDebug(() -> "decompressing data into an existing file system");
+                final var myPath = fileSystem.getPath(fullFileLocation);
+                fileContents = Files.readAllBytes(myPath);
+            } catch (Exception ex) {
+                logger.logDebug(() -> "Unable to use existing file system for decompressing resources.  Falling back to creating new.");
+                try (final var fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
                     final var myPath = fileSystem.getPath(fullFileLocation);
                     fileContents = Files.readAllBytes(myPath);
-                } catch (Exception ex) {
-                    logger.logDebug(() -> "Unable to use existing file system for decompressing resources.  Falling back to creating new.");
-                    try (final var fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
-                        final var myPath = fileSystem.getPath(fullFileLocation);
-                        fileContents = Files.readAllBytes(myPath);
-                    } catch (Exception innerException) {
-                        logger.logAsyncError(() -> "Unable to build file system for decompressing resource.  Exception: " + innerException);
-                        fileContents = null;
-                    }
+                } catch (Exception innerException) {
+                    logger.logAsyncError(() -> "Unable to build file system for decompressing resource.  Exception: " + innerException);
+                    fileContents = null;
                 }
-
-            } else {
-                final var myPath = Paths.get(uri);
-                fileContents = Files.readAllBytes(myPath);
             }
             if (fileContents == null || fileContents.length == 0) return null;
 
-            // if we do get bytes, figure out the best response headers for it.
-            Response result = createStaticFileResponse(file, fileContents);
+            return new Response(StatusLine.StatusCode._200_OK, headers, fileContents);
+        } else {
+            final var myPath = Paths.get(uri);
+            if (! Files.isRegularFile(myPath)) return null;
+            return createStaticFileResponse(file, myPath, headers);
+        }
+    }
 
-            logger.logTrace(() -> "Storing in cache - filename: " + file);
-            staticResponses.put(file, result);
-            return result;
-        } catch (IOException ex) {
-            logger.logAsyncError(() -> "at getStaticResponse.  Returning null.  Error: " + ex);
-            return null;
+    /**
+     * For a static file that sits on the filesystem.  Small files are read
+     * into memory, but anything larger than {@link Constants#STATIC_FILE_MAX_IN_MEMORY_BYTES}
+     * is sent straight from the file each time it's requested (see
+     * {@link ISocketWrapper#sendFile}), so large media doesn't sit on the heap.
+     * <p>
+     *     Since we know when the file changed, we include a Last-Modified header.
+     * </p>
+     */
+    private Response createStaticFileResponse(String file, Path myPath, Map<String, String> headers) throws IOException {
+        long size = Files.size(myPath);
+        if (size == 0) return null;
+        headers = new HashMap<>(headers);
+        headers.put("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Files.getLastModifiedTime(myPath).toInstant().truncatedTo(ChronoUnit.SECONDS).atZone(ZoneOffset.UTC)));
+        if (size <= maxInMemoryBytes) {
+            return new Response(StatusLine.StatusCode._200_OK, headers, Files.readAllBytes(myPath));
         }
+        logger.logTrace(() -> file + " is " + size + " bytes, so it will be sent from disk rather than memory");
+        return Response.fromFile(StatusLine.StatusCode._200_OK, headers, myPath);
     }
 
     /**
@@ -146,6 +395,17 @@ final class StaticFilesCache {
      * an appropritate {@link Response} object to be stored in the cache.
      */
     Response createStaticFileResponse(String path, byte[] fileContents) {
+        return new Response(
+                StatusLine.StatusCode._200_OK,
+                staticFileHeaders(path),
+                fileContents);
+    }
+
+    /**
+     * All static responses will get a cache time of STATIC_FILE_CACHE_TIME
+     * seconds, and a content type based on the file's suffix.
+     */
+    private Map<String, String> staticFileHeaders(String path) {
         String mimeType = null;
 
         // if the provided path has a dot in it, use that
@@ -164,21 +424,10 @@ final class StaticFilesCache {
             mimeType = "application/octet-stream";
         }
 
-        return createOkResponseForStaticFiles(fileContents, mimeType);
-    }
-
-    /**
-     * All static responses will get a cache time of STATIC_FILE_CACHE_TIME seconds
-     */
-    private Response createOkResponseForStaticFiles(byte[] fileContents, String mimeType) {
-        var headers = Map.of(
+        return Map.of(
                 "Cache-Control", "max-age=" + constants.STATIC_FILE_CACHE_TIME,
-                "Content-Type", mimeType);
-
-        return new Response(
-                StatusLine.StatusCode._200_OK,
-                headers,
-                fileContents);
+                "Content-Type", mimeType,
+                "Accept-Ranges", "bytes");
     }
 
     /**
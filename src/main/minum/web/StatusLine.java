@@ -29,6 +29,7 @@ public record StatusLine(StatusCode status, HttpVersion version, String rawValue
         _201_CREATED(201, "CREATED"),
         _202_ACCEPTED(202, "ACCEPTED"),
         _204_NO_CONTENT(204, "NO CONTENT"),
+        _206_PARTIAL_CONTENT(206, "PARTIAL CONTENT"),
 
         /* Redirection messages (300 – 399) */
 
@@ -59,6 +60,7 @@ public record StatusLine(StatusCode status, HttpVersion version, String rawValue
         _413_PAYLOAD_TOO_LARGE(413, "PAYLOAD TOO LARGE"),
         _414_URI_TOO_LONG(414, "URI TOO LONG"),
         _415_UNSUPPORTED_MEDIA_TYPE(415, "UNSUPPORTED MEDIA TYPE"),
+        _416_RANGE_NOT_SATISFIABLE(416, "RANGE NOT SATISFIABLE"),
         _426_UPGRADE_REQUIRED(426, "UPGRADE REQUIRED"),
         _429_TOO_MANY_REQUESTS(429, "TOO MANY REQUESTS"),
         _431_REQUEST_HEADER_FIELDS_TOO_LARGE(431, "REQUEST HEADER FIELDS TOO LARGE"),
@@ -7,11 +7,15 @@ import minum.security.TheBrig;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Path;
 import java.security.KeyStore;
 import java.security.SecureRandom;
@@ -42,8 +46,18 @@ final class WebEngine {
   static final String HTTP_CRLF = "\r\n";
 
   Server startServer(ExecutorService es, ThrowingConsumer<ISocketWrapper, IOException> handler) throws IOException {
+    if (constants.USE_NIO_SELECTOR) {
+      return startSelectorServer(es, handler);
+    }
     int port = constants.SERVER_PORT;
-    ServerSocket ss = new ServerSocket(port);
+    /*
+    We open this through a channel so that the sockets it accepts have channels
+    too, which lets us send files with FileChannel.transferTo.  Otherwise it is
+    used just like a regular blocking ServerSocket.
+     */
+    ServerSocketChannel ssc = ServerSocketChannel.open();
+    ssc.bind(new InetSocketAddress(port));
+    ServerSocket ss = ssc.socket();
     logger.logDebug(() -> String.format("Just created a new ServerSocket: %s", ss));
     Server server = new Server(ss, context, "http server", theBrig);
     logger.logDebug(() -> String.format("Just created a new Server: %s", server));
@@ -53,6 +67,25 @@ final class WebEngine {
     return server;
   }
 
+  /**
+   * Similar to {@link #startServer(ExecutorService, ThrowingConsumer)}, but
+   * the server watches its connections with a {@link java.nio.channels.Selector},
+   * so that idle keep-alive connections are not each holding a thread.
+   * See {@link SelectorLoop}
+   */
+  Server startSelectorServer(ExecutorService es, ThrowingConsumer<ISocketWrapper, IOException> handler) throws IOException {
+    int port = constants.SERVER_PORT;
+    ServerSocketChannel ssc = ServerSocketChannel.open();
+    ssc.bind(new InetSocketAddress(port));
+    logger.logDebug(() -> String.format("Just created a new ServerSocketChannel: %s", ssc));
+    Server server = Server.makeSelectorServer(ssc, context, "http server", theBrig);
+    logger.logDebug(() -> String.format("Just created a new selector-based Server: %s", server));
+    server.start(es, handler);
+    String hostname = constants.HOST_NAME;
+    logger.logDebug(() -> String.format("%s started at http://%s:%s", server, hostname, port));
+    return server;
+  }
+
   Server startSslServer(ExecutorService es, ThrowingConsumer<ISocketWrapper, IOException> handler) throws IOException {
 
     /*
@@ -76,7 +109,7 @@ final class WebEngine {
             "passphrase";
 
     int port = constants.SECURE_SERVER_PORT;
-    ss = createSslSocketWithSpecificKeystore(port, keystoreUrl, keystorePassword);
+    ss = createSslSocketWithSpecificKeystore(port, keystoreUrl, keystorePassword, constants.USE_HTTP2);
     logger.logDebug(() -> String.format("Just created a new ServerSocket: %s", ss));
     Server server = new Server(ss, context, "https server", theBrig);
     logger.logDebug(() -> String.format("Just created a new SSL Server: %s", server));
@@ -125,8 +158,11 @@ final class WebEngine {
 
   /**
    * Create an SSL Socket using a specified keystore
+   * @param offerHttp2 if true, clients are offered HTTP/2 during the
+   *                   handshake (ALPN), and otherwise HTTP/1.1 is assumed.
+   *                   See {@link Http2Connection}
    */
-  ServerSocket createSslSocketWithSpecificKeystore(int sslPort, URL keystoreUrl, String keystorePassword) {
+  ServerSocket createSslSocketWithSpecificKeystore(int sslPort, URL keystoreUrl, String keystorePassword, boolean offerHttp2) {
     try (InputStream keystoreInputStream = keystoreUrl.openStream()) {
       final var keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
       char[] passwordCharArray = keystorePassword.toCharArray();
@@ -140,8 +176,20 @@ final class WebEngine {
       final var sslContext = SSLContext.getInstance("TLSv1.3");
       sslContext.init(keyManagers, null, new SecureRandom());
 
+      // clients coming back within the timeout can resume their session, skipping the costly part of the handshake
+      final var sessionContext = sslContext.getServerSessionContext();
+      sessionContext.setSessionCacheSize(constants.TLS_SESSION_CACHE_SIZE);
+      sessionContext.setSessionTimeout(constants.TLS_SESSION_TIMEOUT_SECONDS);
+
       final var socketFactory = sslContext.getServerSocketFactory();
-      return socketFactory.createServerSocket(sslPort);
+      final var serverSocket = (SSLServerSocket) socketFactory.createServerSocket(sslPort);
+      if (offerHttp2) {
+        // the sockets it accepts take on these parameters
+        SSLParameters sslParameters = serverSocket.getSSLParameters();
+        sslParameters.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+        serverSocket.setSSLParameters(sslParameters);
+      }
+      return serverSocket;
     } catch (Exception ex) {
       logger.logDebug(ex::getMessage);
       throw new RuntimeException(ex);
@@ -12,17 +12,24 @@ import minum.utils.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import static minum.utils.Invariants.mustBeTrue;
+import static minum.web.StatusLine.StatusCode._206_PARTIAL_CONTENT;
+import static minum.web.StatusLine.StatusCode._304_NOT_MODIFIED;
 import static minum.web.StatusLine.StatusCode._404_NOT_FOUND;
+import static minum.web.StatusLine.StatusCode._416_RANGE_NOT_SATISFIABLE;
 import static minum.web.StatusLine.StatusCode._500_INTERNAL_SERVER_ERROR;
 import static minum.web.WebEngine.HTTP_CRLF;
 
@@ -42,26 +49,20 @@ public final class WebFramework {
     private final StopwatchUtils stopWatchUtils;
     private final BodyProcessor bodyProcessor;
     private final Random random;
+    private final ResponseCompressor responseCompressor;
 
     /**
-     * This is used as a key when registering endpoints
-     */
-    record VerbPath(StartLine.Verb verb, String path) { }
-
-    /**
-     * The list of paths that our system is registered to handle.
-     */
-    private final Map<VerbPath, Function<Request, Response>> registeredDynamicPaths;
-
-    /**
-     * These are registrations for paths that partially match, for example,
-     * if the client sends us GET /.well-known/acme-challenge/HGr8U1IeTW4kY_Z6UIyaakzOkyQgPr_7ArlLgtZE8SX
+     * The paths our system is registered to handle, for each verb.  This
+     * includes paths that partially match, for example, if the client
+     * sends us GET /.well-known/acme-challenge/HGr8U1IeTW4kY_Z6UIyaakzOkyQgPr_7ArlLgtZE8SX
      * and we want to match ".well-known/acme-challenge"
      */
-    private final Map<VerbPath, Function<Request, Response>> registeredPartialPaths;
+    private final Map<StartLine.Verb, PathTree<Function<Request, Response>>> registeredPaths;
 
     // This is just used for testing.  If it's null, we use the real time.
     private final ZonedDateTime overrideForDateTime;
+    // the value of the Keep-Alive header, the same for every response
+    private final String keepAliveHeaderValue;
     private final FullSystem fs;
     private StaticFilesCache staticFilesCache;
     private final ILogger logger;
@@ -86,7 +87,13 @@ public final class WebFramework {
         // build the handler
 
         return (sw) -> {
-            try (sw) {
+            /*
+            If the socket gets handed back to a selector between requests (see
+            ISocketWrapper.parkIfIdle), it is still very much alive, and we
+            must not close it on our way out.
+             */
+            boolean isParked = false;
+            try {
 
                 // if we recognize this client as an attacker, dump them.
                 TheBrig theBrig = (fs != null && fs.getTheBrig() != null) ? fs.getTheBrig() : null;
@@ -100,8 +107,18 @@ public final class WebFramework {
                     }
                 }
 
+                sw.handshake();
+
+                // a client that agreed to HTTP/2 during the TLS handshake speaks nothing else
+                if (sw.getApplicationProtocol().equals("h2")) {
+                    logger.logTrace(() -> sw + " is using HTTP/2");
+                    new Http2Connection(context, sw, request -> respondToHttp2Request(request, handlerFinder, sw, theBrig)).run();
+                    return;
+                }
+
                 var fullStopwatch = stopWatchUtils.startTimer();
                 final var is = sw.getInputStream();
+                final var responseHead = new ResponseHeadEncoder();
 
                 /*
                 By default, browsers expect the server to run in keep-alive mode.
@@ -190,52 +207,242 @@ public final class WebFramework {
                         logger.logDebug(() -> "Is " + sw.getRemoteAddr() + " looking for a vulnerability? " + isVulnSeeking);
                         if (isVulnSeeking && theBrig != null) {
                             theBrig.sendToJail(sw.getRemoteAddr() + "_vuln_seeking", constants.VULN_SEEKING_JAIL_DURATION);
+                            body.deleteTempFiles();
                             return;
                         }
                         resultingResponse = new Response(_404_NOT_FOUND);
                     } else {
-                        var handlerStopwatch = new StopwatchUtils().startTimer();
-                        try {
-                            clientRequest = new Request(hi, sl, body, sw.getRemoteAddr());
-                            resultingResponse = endpoint.apply(clientRequest);
-                        } catch (Exception ex) {
-                            // if an error happens while running an endpoint's code, this is the
-                            // last-chance handling of that error where we return a 500 and a
-                            // random code to the client, so a developer can find the detailed
-                            // information in the logs, which have that same value.
-                            int randomNumber = random.nextInt();
-                            logger.logAsyncError(() -> "error while running endpoint " + endpoint + ". Code: " + randomNumber + ". Error: " + StacktraceUtils.stackTraceToString(ex));
-                            resultingResponse = new Response(_500_INTERNAL_SERVER_ERROR, "Server error: " + randomNumber, Map.of("Content-Type", "text/plain;charset=UTF-8"));
-                        }
-                        logger.logTrace(() -> String.format("handler processing of %s %s took %d millis", sw, sl, handlerStopwatch.stopTimer()));
+                        clientRequest = new Request(hi, sl, body, sw.getRemoteAddr());
+                        resultingResponse = runEndpoint(endpoint, clientRequest, sw);
                     }
 
-                    String statusLineAndHeaders = convertResponseToString(clientRequest, resultingResponse, isKeepAlive);
-
-                    // Here is where the bytes actually go out on the socket
-                    String response = statusLineAndHeaders + HTTP_CRLF;
-                    Response finalResultingResponse = resultingResponse;
-
-                    logger.logTrace(() -> "Sending headers back: " + response);
-                    sw.send(response);
+                    resultingResponse = checkIfNotModified(clientRequest, resultingResponse);
+                    // without chunked encoding, the only way to mark the end of a streamed body is to close the connection.
+                    if (resultingResponse.bodyWriter() != null && sl.getVersion() != HttpVersion.ONE_DOT_ONE) {
+                        isKeepAlive = false;
+                    }
 
-                    if (clientRequest.startLine().getVerb() == StartLine.Verb.HEAD) {
-                        Request finalClientRequest = clientRequest;
-                        logger.logDebug(() -> "client " + finalClientRequest.remoteRequester() +
-                                " is requesting HEAD for "+ finalClientRequest.startLine().getPathDetails().isolatedPath() +
-                                ".  Excluding body from response");
-                    } else {
-                        logger.logTrace(() -> "Sending body back: " + StringUtils.byteArrayToString(finalResultingResponse.body()));
-                        sw.send(resultingResponse.body());
+                    // if the client has already sent its next request (pipelining), we hold
+                    // onto this response so the replies go back together once we've caught up.
+                    boolean isAnotherRequestWaiting = isKeepAlive && is.available() > 0;
+                    if (isAnotherRequestWaiting) sw.holdOutput();
+                    try {
+                        sendResponse(sw, responseHead, clientRequest, resultingResponse, isKeepAlive);
+                    } finally {
+                        // large parts of a multipart upload were kept in temporary files
+                        body.deleteTempFiles();
                     }
+                    if (! isAnotherRequestWaiting) sw.flush();
                     logger.logTrace(() -> String.format("full processing (including communication time) of %s %s took %d millis", sw, sl, fullStopwatch.stopTimer()));
 
                     if (! isKeepAlive) break;
+
+                    // if the client is idle, hand the socket back to the selector, if there is one
+                    if (sw.parkIfIdle()) {
+                        isParked = true;
+                        return;
+                    }
                 }
+            } finally {
+                if (! isParked) sw.close();
             }
         };
     }
 
+    /**
+     * Runs the code of an endpoint.  If it throws, this is the last-chance
+     * handling of that error, where we return a 500 and a random code to the
+     * client, so a developer can find the detailed information in the logs,
+     * which have that same value.
+     */
+    private Response runEndpoint(Function<Request, Response> endpoint, Request clientRequest, ISocketWrapper sw) {
+        var handlerStopwatch = new StopwatchUtils().startTimer();
+        Response response;
+        try {
+            response = endpoint.apply(clientRequest);
+        } catch (Exception ex) {
+            int randomNumber = random.nextInt();
+            logger.logAsyncError(() -> "error while running endpoint " + endpoint + ". Code: " + randomNumber + ". Error: " + StacktraceUtils.stackTraceToString(ex));
+            response = new Response(_500_INTERNAL_SERVER_ERROR, "Server error: " + randomNumber, Map.of("Content-Type", "text/plain;charset=UTF-8"));
+        }
+        logger.logTrace(() -> String.format("handler processing of %s %s took %d millis", sw, clientRequest.startLine(), handlerStopwatch.stopTimer()));
+        return response;
+    }
+
+    /**
+     * The HTTP/2 counterpart to the request handling in {@link #makePrimaryHttpHandler(Function)},
+     * run for each stream of an {@link Http2Connection}.  The difference is
+     * that a vulnerability seeker still gets their 404 - the connection is
+     * shared with their other requests - and it's their next connection we drop.
+     */
+    private Response respondToHttp2Request(Request clientRequest, Function<StartLine, Function<Request, Response>> handlerFinder, ISocketWrapper sw, TheBrig theBrig) {
+        StartLine sl = clientRequest.startLine();
+        Function<Request, Response> endpoint = handlerFinder.apply(sl);
+        if (endpoint == null) {
+            logger.logDebug(() -> String.format("%s requested an unregistered path of %s.  Returning 404", sw, sl.getPathDetails().isolatedPath()));
+            if (theBrig != null && underInvestigation.isLookingForSuspiciousPaths(sl.getPathDetails().isolatedPath())) {
+                logger.logDebug(() -> sw.getRemoteAddr() + " is looking for a vulnerability");
+                theBrig.sendToJail(sw.getRemoteAddr() + "_vuln_seeking", constants.VULN_SEEKING_JAIL_DURATION);
+            }
+            return new Response(_404_NOT_FOUND);
+        }
+        return checkIfNotModified(clientRequest, runEndpoint(endpoint, clientRequest, sw));
+    }
+
+    /**
+     * Here is where the bytes actually go out on the socket - the status
+     * line, the headers, and then the body, or the parts of the body the
+     * client asked for (see {@link ByteRanges}).
+     */
+    private void sendResponse(ISocketWrapper sw, ResponseHeadEncoder responseHead, Request clientRequest, Response resultingResponse, boolean isKeepAlive) throws IOException {
+        if (resultingResponse.bodyWriter() != null) {
+            sendStreamedResponse(sw, responseHead, clientRequest, resultingResponse, isKeepAlive);
+            return;
+        }
+
+        /*
+        If the body is a file, we open it now, both to learn its length for
+        the headers and so that the length we announce matches what we send.
+         */
+        FileChannel bodyFile = null;
+        if (resultingResponse.bodyFile() != null) {
+            try {
+                bodyFile = FileChannel.open(resultingResponse.bodyFile(), StandardOpenOption.READ);
+            } catch (NoSuchFileException ex) {
+                Response finalResponse = resultingResponse;
+                logger.logDebug(() -> "file for response no longer exists: " + finalResponse.bodyFile() + ". Returning 404");
+                resultingResponse = new Response(_404_NOT_FOUND);
+            }
+        }
+
+        try {
+            long bodyLength = bodyFile != null ? bodyFile.size() : resultingResponse.body().length;
+            List<ByteRanges.Range> ranges = ByteRanges.requestedRanges(clientRequest, resultingResponse, bodyLength);
+
+            Response headResponse = resultingResponse;
+            long sentLength = bodyLength;
+            String multipartBoundary = null;
+            if (ranges != null && ranges.isEmpty()) {
+                logger.logDebug(() -> "client asked for ranges outside the body, replying 416");
+                headResponse = new Response(_416_RANGE_NOT_SATISFIABLE, Map.of("Content-Range", "bytes */" + bodyLength));
+                sentLength = 0;
+            } else if (ranges != null && ranges.size() == 1) {
+                var headers = new HashMap<>(resultingResponse.extraHeaders());
+                headers.put("Content-Range", ranges.get(0).contentRange(bodyLength));
+                headResponse = new Response(_206_PARTIAL_CONTENT, headers);
+                sentLength = ranges.get(0).length();
+            } else if (ranges != null) {
+                multipartBoundary = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+                var headers = new HashMap<String, String>();
+                for (var header : resultingResponse.extraHeaders().entrySet()) {
+                    if (! header.getKey().equalsIgnoreCase("content-type")) headers.put(header.getKey(), header.getValue());
+                }
+                headers.put("Content-Type", "multipart/byteranges; boundary=" + multipartBoundary);
+                headResponse = new Response(_206_PARTIAL_CONTENT, headers);
+                sentLength = 0;
+                for (var range : ranges) {
+                    sentLength += multipartRangeHeader(multipartBoundary, resultingResponse, range, bodyLength).length + range.length();
+                }
+                sentLength += multipartEnd(multipartBoundary).length;
+            }
+
+            encodeResponseHead(responseHead, clientRequest, headResponse, isKeepAlive, sentLength);
+            Response finalResultingResponse = resultingResponse;
+
+            logger.logTrace(() -> "Sending headers back: " + responseHead);
+
+            // the common case - a body we hold in memory - goes out in the same write as the head
+            boolean isHead = clientRequest.startLine().getVerb() == StartLine.Verb.HEAD;
+            if (isHead || ranges != null || bodyFile != null) {
+                responseHead.sendOn(sw);
+            }
+
+            if (isHead) {
+                logger.logDebug(() -> "client " + clientRequest.remoteRequester() +
+                        " is requesting HEAD for "+ clientRequest.startLine().getPathDetails().isolatedPath() +
+                        ".  Excluding body from response");
+            } else if (ranges != null && ranges.size() == 1) {
+                sendBodyRange(sw, resultingResponse, bodyFile, ranges.get(0));
+            } else if (ranges != null && ! ranges.isEmpty()) {
+                for (var range : ranges) {
+                    sw.send(multipartRangeHeader(multipartBoundary, resultingResponse, range, bodyLength));
+                    sendBodyRange(sw, resultingResponse, bodyFile, range);
+                }
+                sw.send(multipartEnd(multipartBoundary));
+            } else if (ranges != null) {
+                // a 416 has no body
+            } else if (bodyFile != null) {
+                logger.logTrace(() -> "Sending body back from file: " + finalResultingResponse.bodyFile());
+                sw.sendFile(bodyFile, 0, bodyLength);
+            } else {
+                logger.logTrace(() -> "Sending body back: " + StringUtils.byteArrayToString(finalResultingResponse.body()));
+                responseHead.sendOn(sw, resultingResponse.body());
+            }
+        } finally {
+            if (bodyFile != null) bodyFile.close();
+        }
+    }
+
+    /**
+     * Sends a response whose body comes from a {@link BodyWriter}, which we
+     * don't know the length of until it's done.  HTTP/1.1 clients get the body
+     * in chunks, and anyone else gets it as-is, followed by the connection closing.
+     * See {@link Response#streaming(StatusLine.StatusCode, Map, BodyWriter)}
+     */
+    private void sendStreamedResponse(ISocketWrapper sw, ResponseHeadEncoder responseHead, Request clientRequest, Response response, boolean isKeepAlive) throws IOException {
+        boolean isChunked = clientRequest.startLine().getVersion() == HttpVersion.ONE_DOT_ONE;
+        Response headResponse = response;
+        if (isChunked) {
+            var headers = new HashMap<>(response.extraHeaders());
+            headers.put("Transfer-Encoding", "chunked");
+            headResponse = new Response(response.statusCode(), headers);
+        }
+        encodeResponseHead(responseHead, clientRequest, headResponse, isKeepAlive, -1);
+        logger.logTrace(() -> "Sending headers back: " + responseHead);
+        responseHead.sendOn(sw);
+
+        if (clientRequest.startLine().getVerb() == StartLine.Verb.HEAD) {
+            logger.logDebug(() -> "client " + clientRequest.remoteRequester() +
+                    " is requesting HEAD for "+ clientRequest.startLine().getPathDetails().isolatedPath() +
+                    ".  Excluding body from response");
+            return;
+        }
+
+        logger.logTrace(() -> "Sending streamed body back " + (isChunked ? "in chunks" : "as-is"));
+        var out = new ResponseBodyStream(sw, isChunked);
+        response.bodyWriter().write(out);
+        // not in a finally block: if the writer failed, the body must be left
+        // unfinished, so the client can tell it didn't get all of it.
+        out.close();
+    }
+
+    private void sendBodyRange(ISocketWrapper sw, Response response, FileChannel bodyFile, ByteRanges.Range range) throws IOException {
+        logger.logTrace(() -> "Sending part of body back: " + range);
+        if (bodyFile != null) {
+            sw.sendFile(bodyFile, range.start(), range.length());
+        } else {
+            sw.send(Arrays.copyOfRange(response.body(), (int) range.start(), (int) range.end() + 1));
+        }
+    }
+
+    /**
+     * When sending several ranges, each is preceded by a boundary
+     * and headers of its own.
+     * See <a href="https://www.rfc-editor.org/rfc/rfc9110.html#name-media-type-multipart-byteran">multipart/byteranges</a>
+     */
+    private static byte[] multipartRangeHeader(String boundary, Response response, ByteRanges.Range range, long bodyLength) {
+        var partHeader = new StringBuilder(HTTP_CRLF + "--" + boundary + HTTP_CRLF);
+        response.extraHeaders().entrySet().stream()
+                .filter(x -> x.getKey().equalsIgnoreCase("content-type"))
+                .forEach(x -> partHeader.append("Content-Type: ").append(x.getValue()).append(HTTP_CRLF));
+        partHeader.append("Content-Range: ").append(range.contentRange(bodyLength)).append(HTTP_CRLF).append(HTTP_CRLF);
+        return partHeader.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] multipartEnd(String boundary) {
+        return (HTTP_CRLF + "--" + boundary + "--" + HTTP_CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+
     /**
      * This handler redirects all traffic to the HTTPS endpoint.
      * <br>
@@ -295,27 +502,24 @@ public final class WebFramework {
 
     /**
      * This is where our strongly-typed {@link Response} gets converted
-     * to a string and sent on the socket.
+     * to bytes, ready to be sent on the socket.  See {@link ResponseHeadEncoder}
+     * @param bodyLength the length of the body, or -1 if we won't know
+     *                   until it has been sent, in which case there is
+     *                   no Content-Length header.
      */
-    private String convertResponseToString(Request request, Response response, boolean isKeepAlive) {
-        String date = Objects.requireNonNullElseGet(overrideForDateTime, () -> ZonedDateTime.now(ZoneId.of("UTC"))).format(DateTimeFormatter.RFC_1123_DATE_TIME);
-
-        StringBuilder stringBuilder = new StringBuilder();
-
-        // add the status line
-        stringBuilder.append( "HTTP/1.1 " + response.statusCode().code + " " + response.statusCode().shortDescription + HTTP_CRLF );
-
-        // add the headers
-        stringBuilder
-                .append( "Date: " + date + HTTP_CRLF )
-                .append( "Server: minum" + HTTP_CRLF )
-                .append(  response.extraHeaders().entrySet().stream().map(x -> x.getKey() + ": " + x.getValue() + HTTP_CRLF).collect(Collectors.joining()));
-
-        // check the correctness of the content-type header versus the data length (if any data, that is)
-        boolean hasContentType = response.extraHeaders().entrySet().stream().anyMatch(x -> x.getKey().toLowerCase(Locale.ROOT).equals("content-type"));
+    private void encodeResponseHead(ResponseHeadEncoder responseHead, Request request, Response response, boolean isKeepAlive, long bodyLength) {
+        // add the status line, and the headers we always send
+        responseHead.start(response.statusCode(), overrideForDateTime);
+
+        // add the headers, checking along the way for a content-type
+        boolean hasContentType = false;
+        for (var header : response.extraHeaders().entrySet()) {
+            responseHead.header(header.getKey(), header.getValue());
+            hasContentType |= header.getKey().equalsIgnoreCase("content-type");
+        }
 
         // if there *is* data, we had better be returning a content type
-        if (response.body().length > 0) {
+        if (bodyLength != 0) {
             mustBeTrue(hasContentType, "a Content-Type header must be specified in the Response object if it returns data. Response details: " + response + " Request: " + request);
         }
 
@@ -330,14 +534,94 @@ public final class WebFramework {
 
         See https://www.rfc-editor.org/rfc/rfc9110.html#name-content-length
          */
-        stringBuilder.append("Content-Length: " + response.body().length + HTTP_CRLF );
+        // a 304 has no body, but a Content-Length would describe the body it stands in
+        // for, and we don't know that here.  It's allowed to leave it out.
+        if (response.statusCode() != _304_NOT_MODIFIED && bodyLength >= 0) {
+            responseHead.header("Content-Length", Long.toString(bodyLength));
+        }
 
         // if we're a keep-alive connection, reply with a keep-alive header
         if (isKeepAlive) {
-            stringBuilder.append("Keep-Alive: timeout=" + constants.SOCKET_TIMEOUT_MILLIS / 1000 + HTTP_CRLF);
+            responseHead.header("Keep-Alive", keepAliveHeaderValue);
+        }
+
+        responseHead.finish();
+    }
+
+    /**
+     * Headers from a full response that we repeat in a 304 Not Modified.
+     * See <a href="https://www.rfc-editor.org/rfc/rfc9110.html#name-304-not-modified">304 Not Modified</a>
+     */
+    private static final Set<String> notModifiedHeaders = Set.of("etag", "cache-control", "vary", "last-modified", "expires", "content-location");
+
+    /**
+     * If the client tells us which version of this response it already has
+     * (with If-None-Match or If-Modified-Since), and that is still the current
+     * version, we reply 304 Not Modified with no body, rather than sending
+     * the whole thing again.  This works for any successful response to a
+     * GET or HEAD that has an ETag or Last-Modified header - see
+     * {@link Response#withETag()}.
+     */
+    Response checkIfNotModified(Request request, Response response) {
+        if (response.statusCode() != StatusLine.StatusCode._200_OK) return response;
+        StartLine.Verb verb = request.startLine().getVerb();
+        if (verb != StartLine.Verb.GET && verb != StartLine.Verb.HEAD) return response;
+
+        String etag = null;
+        String lastModified = null;
+        for (var header : response.extraHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase("etag")) etag = header.getValue();
+            if (header.getKey().equalsIgnoreCase("last-modified")) lastModified = header.getValue();
+        }
+
+        boolean isNotModified;
+        List<String> ifNoneMatch = request.headers().valueByKey("if-none-match");
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence, so we skip If-Modified-Since when it's present
+            isNotModified = etag != null && matchesAnyETag(ifNoneMatch, etag);
+        } else {
+            List<String> ifModifiedSince = request.headers().valueByKey("if-modified-since");
+            isNotModified = ifModifiedSince != null && lastModified != null && isNotModifiedSince(lastModified, ifModifiedSince.get(0));
+        }
+        if (! isNotModified) return response;
+
+        String finalEtag = etag;
+        logger.logTrace(() -> "client already has the current version (" + finalEtag + ") of " + request.startLine().getPathDetails().isolatedPath() + ", replying 304");
+        var headers = new HashMap<String, String>();
+        for (var header : response.extraHeaders().entrySet()) {
+            if (notModifiedHeaders.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                headers.put(header.getKey(), header.getValue());
+            }
         }
+        return new Response(StatusLine.StatusCode._304_NOT_MODIFIED, headers);
+    }
 
-        return stringBuilder.toString();
+    /**
+     * If-None-Match uses the weak comparison, meaning we ignore any W/ prefix
+     */
+    private static boolean matchesAnyETag(List<String> ifNoneMatch, String etag) {
+        String ourTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String value : ifNoneMatch) {
+            for (String theirTag : value.split(",")) {
+                theirTag = theirTag.trim();
+                if (theirTag.equals("*")) return true;
+                if (theirTag.startsWith("W/")) theirTag = theirTag.substring(2);
+                if (theirTag.equals(ourTag)) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isNotModifiedSince(String lastModified, String ifModifiedSince) {
+        try {
+            var ourDate = ZonedDateTime.parse(lastModified, DateTimeFormatter.RFC_1123_DATE_TIME);
+            var theirDate = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return ! ourDate.isAfter(theirDate);
+        } catch (DateTimeParseException ex) {
+            // if we can't make sense of the dates, we'll just send the response
+            logger.logDebug(() -> "unable to compare dates for If-Modified-Since: " + ex.getMessage());
+            return false;
+        }
     }
 
     /**
@@ -360,15 +644,21 @@ public final class WebFramework {
         Function<Request, Response> handler;
         logger.logTrace(() -> "Seeking a handler for " + sl);
 
-        // first we check if there's a simple direct match
-        String requestedPath = sl.getPathDetails().isolatedPath().toLowerCase(Locale.ROOT);
+        String requestedPath = sl.getPathDetails().isolatedPath();
 
         // if the user is asking for a HEAD request, they want to run a GET command
         // but don't want the body.  We'll simply exclude sending the body, later on, when returning the data
         StartLine.Verb verb = sl.getVerb() == StartLine.Verb.HEAD ? StartLine.Verb.GET : sl.getVerb();
 
-        VerbPath key = new VerbPath(verb, requestedPath);
-        handler = registeredDynamicPaths.get(key);
+        // first, a path registered exactly.  The tree compares the spelled-out
+        // parts as though lowercase, and tries a {parameter} segment only where
+        // nothing spelled out matches, keeping the case of the text it captures.
+        PathTree<Function<Request, Response>> pathTree = registeredPaths.get(verb);
+        var pathParameters = new HashMap<String, String>();
+        handler = pathTree == null ? null : pathTree.getExact(requestedPath, pathParameters);
+        if (handler != null && ! pathParameters.isEmpty()) {
+            handler = withPathParameters(handler, Collections.unmodifiableMap(pathParameters));
+        }
 
         if (handler == null) {
             logger.logTrace(() -> "No direct handler found.  looking for a partial match for " + requestedPath);
@@ -389,6 +679,14 @@ public final class WebFramework {
         return handler;
     }
 
+    /**
+     * Wraps an endpoint so that it gets the values of the parameters in
+     * the path it was registered with, through {@link Request#pathParameters()}
+     */
+    private static Function<Request, Response> withPathParameters(Function<Request, Response> handler, Map<String, String> pathParameters) {
+        return request -> handler.apply(new Request(request.headers(), request.startLine(), request.body(), request.remoteRequester(), pathParameters));
+    }
+
     /**
      * last ditch effort - look on disk.  This response will either
      * be the file to return, or null if we didn't find anything.
@@ -399,9 +697,9 @@ public final class WebFramework {
         }
         String requestedPath = sl.getPathDetails().isolatedPath();
         if (staticFilesCache == null) return null;
-        Response response = staticFilesCache.loadStaticFile(requestedPath);
-        if (response != null) {
-            return request -> response;
+        StaticFilesCache.CachedFile cachedFile = staticFilesCache.loadCachedFile(requestedPath);
+        if (cachedFile != null) {
+            return cachedFile::responseFor;
         } else {
             return null;
         }
@@ -417,29 +715,23 @@ public final class WebFramework {
         }
         String requestedPath = sl.getPathDetails().isolatedPath();
         if (staticFilesCache == null) return null;
-        final Response staticResponseFound = staticFilesCache.getStaticResponse(requestedPath);
-        if (staticResponseFound != null) {
+        final StaticFilesCache.CachedFile staticFileFound = staticFilesCache.getCachedFile(requestedPath);
+        if (staticFileFound != null) {
             logger.logTrace(() -> "found a static value to handle "+ requestedPath +", returning it");
-            return request -> staticResponseFound;
+            return staticFileFound::responseFor;
         } else {
             return null;
         }
     }
 
     /**
-     * let's see if we can match the registered paths against a **portion** of the startline
+     * let's see if we can match the registered paths against a **portion** of the startline.
+     * If several match, the longest wins.
      */
     Function<Request, Response> findHandlerByPartialMatch(StartLine sl) {
-        String requestedPath = sl.getPathDetails().isolatedPath();
-        var verbPathFunctionEntry = registeredPartialPaths.entrySet().stream()
-                .filter(x -> requestedPath.startsWith(x.getKey().path()) &&
-                        x.getKey().verb().equals(sl.getVerb()))
-                .findFirst().orElse(null);
-        if (verbPathFunctionEntry != null) {
-            return verbPathFunctionEntry.getValue();
-        } else {
-            return null;
-        }
+        PathTree<Function<Request, Response>> pathTree = registeredPaths.get(sl.getVerb());
+        if (pathTree == null) return null;
+        return pathTree.getLongestPrefix(sl.getPathDetails().isolatedPath());
     }
 
     /**
@@ -459,14 +751,15 @@ public final class WebFramework {
         this.logger = context.getLogger();
         this.constants = context.getConstants();
         this.overrideForDateTime = overrideForDateTime;
-        this.registeredDynamicPaths = new HashMap<>();
-        this.registeredPartialPaths = new HashMap<>();
+        this.keepAliveHeaderValue = "timeout=" + constants.SOCKET_TIMEOUT_MILLIS / 1000;
+        this.registeredPaths = new EnumMap<>(StartLine.Verb.class);
         this.context = context;
         this.underInvestigation = new UnderInvestigation(constants);
         this.inputStreamUtils = new InputStreamUtils(context);
         this.stopWatchUtils = new StopwatchUtils();
         this.bodyProcessor = new BodyProcessor(context);
         this.random = new Random();
+        this.responseCompressor = new ResponseCompressor(constants.DYNAMIC_COMPRESSION_MIN_BYTES);
     }
 
     /**
@@ -477,9 +770,18 @@ public final class WebFramework {
      * Note that the path text expected is *after* the first forward slash,
      * so for example with {@code http://foo.com/mypath}, you provide us "mypath"
      * here.
+     * <br>
+     * A segment of the path may be a parameter, in braces, which matches
+     * whatever the client puts there.  For example, with {@code photo/{id}},
+     * a request for {@code photo/abc123} gets "abc123" from
+     * {@code request.pathParameters().get("id")}.  A path spelled out in
+     * full, like {@code photo/new}, is preferred over one with a parameter.
+     * <br>
+     * If {@link Constants#COMPRESS_DYNAMIC_RESPONSES} is set, the handler's
+     * responses are compressed - see {@link #compressing(Function)}
      */
     public void registerPath(StartLine.Verb verb, String pathName, Function<Request, Response> webHandler) {
-        registeredDynamicPaths.put(new VerbPath(verb, pathName), webHandler);
+        registeredPaths.computeIfAbsent(verb, x -> new PathTree<>()).putExact(pathName, constants.COMPRESS_DYNAMIC_RESPONSES ? compressing(webHandler) : webHandler);
     }
 
     /**
@@ -499,9 +801,27 @@ public final class WebFramework {
      * <p>
      *     Be careful here, be thoughtful - partial paths will
      * </p>
+     * <p>
+     *     If more than one registered partial path matches a request, the
+     *     longest is used.
+     * </p>
      */
     public void registerPartialPath(StartLine.Verb verb, String pathName, Function<Request, Response> webHandler) {
-        registeredPartialPaths.put(new VerbPath(verb, pathName), webHandler);
+        registeredPaths.computeIfAbsent(verb, x -> new PathTree<>()).putPrefix(pathName, constants.COMPRESS_DYNAMIC_RESPONSES ? compressing(webHandler) : webHandler);
+    }
+
+    /**
+     * Wraps an endpoint so that the text it returns is compressed with gzip,
+     * for clients that accept that.  Worthwhile for large pages, like a long
+     * table rendered from a template:
+     * <pre>
+     * {@code webFramework.registerPath(GET, "report", webFramework.compressing(reports::showReport))}
+     * </pre>
+     * Responses smaller than {@link Constants#DYNAMIC_COMPRESSION_MIN_BYTES},
+     * files, streamed bodies, and anything that isn't text are left as they are.
+     */
+    public Function<Request, Response> compressing(Function<Request, Response> webHandler) {
+        return request -> responseCompressor.compress(request, webHandler.apply(request));
     }
 
     /**
@@ -0,0 +1,182 @@
+package minum.web;
+
+import minum.Constants;
+import minum.utils.ExtendedExecutor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the work of handling a server's connections, and decides whether
+ * there is room for another.
+ * <p>
+ *     If {@link Constants#WORKER_THREADS} is set, there are that many threads
+ *     at most, and up to {@link Constants#WORKER_QUEUE_SIZE} connections may
+ *     wait their turn.  Beyond that, a connection is turned away rather than
+ *     getting a thread of its own, so that a flood of clients, or a handful
+ *     of very slow ones, can't use up all our memory on threads.  Otherwise,
+ *     every connection gets a thread from the shared {@link ExecutorService}.
+ * </p>
+ * <p>
+ *     Either way, with {@link Constants#MAX_WORKERS_PER_ADDRESS}, a single
+ *     client can only have so many connections being handled at once.
+ * </p>
+ * <p>
+ *     The requests on an HTTP/2 connection are answered by a second pool,
+ *     bounded the same way, through {@link #submitStream(Runnable)}.  The
+ *     connection's reader holds its worker for as long as the connection is
+ *     open, so if its requests waited for a worker from the same pool, a
+ *     few HTTP/2 connections could take every worker and leave their own
+ *     requests waiting forever.  Those requests don't count against the
+ *     limit per address, either - the connection they arrive on already
+ *     does, and it allows only so many at once.
+ * </p>
+ */
+final class WorkerPool {
+
+    private final ExecutorService es;
+
+    /**
+     * Our own bounded pool of threads, or null if we are using the shared ExecutorService
+     */
+    private final ThreadPoolExecutor boundedExecutor;
+
+    /**
+     * Our own bounded pool for HTTP/2 streams, or null if we are using the shared ExecutorService
+     */
+    private final ThreadPoolExecutor boundedStreamExecutor;
+    private final int maxWorkersPerAddress;
+
+    /**
+     * How many workers are busy for each remote address.  Addresses
+     * with none are removed, so this stays as small as the current load.
+     */
+    private final ConcurrentHashMap<String, Integer> workersByAddress = new ConcurrentHashMap<>();
+
+    /*
+     * Counts for {@link #getStatistics()}
+     */
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shedWhenFull = new AtomicLong();
+    private final AtomicLong shedForAddress = new AtomicLong();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final AtomicLong streamsAdmitted = new AtomicLong();
+    private final AtomicLong streamsShed = new AtomicLong();
+
+    WorkerPool(ExecutorService es, Constants constants) {
+        this(es, constants.WORKER_THREADS, constants.WORKER_QUEUE_SIZE, constants.MAX_WORKERS_PER_ADDRESS);
+    }
+
+    /**
+     * See {@link Constants#WORKER_THREADS}, {@link Constants#WORKER_QUEUE_SIZE},
+     * and {@link Constants#MAX_WORKERS_PER_ADDRESS}
+     */
+    WorkerPool(ExecutorService es, int workerThreads, int queueSize, int maxWorkersPerAddress) {
+        this.es = es;
+        this.maxWorkersPerAddress = maxWorkersPerAddress;
+        this.boundedExecutor = workerThreads > 0 ? boundedExecutor(workerThreads, queueSize) : null;
+        this.boundedStreamExecutor = workerThreads > 0 ? boundedExecutor(workerThreads, queueSize) : null;
+    }
+
+    private static ThreadPoolExecutor boundedExecutor(int workerThreads, int queueSize) {
+        var executor = new ExtendedExecutor(workerThreads, workerThreads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                Executors.defaultThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Run some work for a client at this remote address, if there's room.
+     * @return false if the work was turned away, in which case it will never run
+     */
+    boolean submit(String remoteAddress, Runnable work) {
+        if (maxWorkersPerAddress > 0 && workersByAddress.merge(remoteAddress, 1, Integer::sum) > maxWorkersPerAddress) {
+            release(remoteAddress);
+            shedForAddress.incrementAndGet();
+            return false;
+        }
+        Runnable trackedWork = maxWorkersPerAddress <= 0 ? work : () -> {
+            try {
+                work.run();
+            } finally {
+                release(remoteAddress);
+            }
+        };
+        try {
+            if (boundedExecutor == null) {
+                es.submit(trackedWork);
+            } else {
+                boundedExecutor.submit(trackedWork);
+                peakQueueDepth.accumulateAndGet(boundedExecutor.getQueue().size(), Math::max);
+            }
+        } catch (RejectedExecutionException ex) {
+            if (maxWorkersPerAddress > 0) release(remoteAddress);
+            shedWhenFull.incrementAndGet();
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Answer a request on one of an HTTP/2 connection's streams, if there's room.
+     * @return false if the work was turned away, in which case it will never run
+     */
+    boolean submitStream(Runnable work) {
+        try {
+            if (boundedStreamExecutor == null) {
+                es.submit(work);
+            } else {
+                boundedStreamExecutor.submit(work);
+            }
+        } catch (RejectedExecutionException ex) {
+            streamsShed.incrementAndGet();
+            return false;
+        }
+        streamsAdmitted.incrementAndGet();
+        return true;
+    }
+
+    private void release(String remoteAddress) {
+        workersByAddress.computeIfPresent(remoteAddress, (address, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * A snapshot of how busy this pool is, and has been.
+     * @param admitted how many connections were given to a worker
+     * @param shedWhenFull how many were turned away because every worker was busy and the queue was full
+     * @param shedForAddress how many were turned away because their address already had its share of workers
+     * @param queueDepth how many connections are waiting for a worker right now
+     * @param peakQueueDepth the most that have been waiting at once
+     * @param activeWorkers how many workers are busy right now, if we have our own pool, or else zero
+     * @param streamsAdmitted how many HTTP/2 streams were given to a worker
+     * @param streamsShed how many HTTP/2 streams were turned away because every worker for them was busy
+     */
+    record Statistics(long admitted, long shedWhenFull, long shedForAddress, int queueDepth, int peakQueueDepth, int activeWorkers,
+                      long streamsAdmitted, long streamsShed) {}
+
+    Statistics getStatistics() {
+        return new Statistics(admitted.get(), shedWhenFull.get(), shedForAddress.get(),
+                boundedExecutor == null ? 0 : boundedExecutor.getQueue().size(),
+                peakQueueDepth.get(),
+                boundedExecutor == null ? 0 : boundedExecutor.getActiveCount(),
+                streamsAdmitted.get(), streamsShed.get());
+    }
+
+    /**
+     * Stop our own threads, if we have any.  The shared ExecutorService is left alone.
+     */
+    void close() {
+        if (boundedExecutor != null) boundedExecutor.shutdownNow();
+        if (boundedStreamExecutor != null) boundedStreamExecutor.shutdownNow();
+    }
+}
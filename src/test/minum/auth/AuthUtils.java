@@ -13,6 +13,7 @@ import minum.web.Response;
 
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -48,6 +49,9 @@ public class AuthUtils {
         this.constants = context.getConstants();
         this.userDiskData = userDiskData;
         this.sessionDiskData = sessionDiskData;
+        this.sessionDiskData.registerIndex(SESSIONS_BY_CODE, s -> s.getSessionCode().toLowerCase());
+        this.userDiskData.registerIndex(USERS_BY_NAME, User::getUsername);
+        this.userDiskData.registerIndex(USERS_BY_SESSION, User::getCurrentSession);
         emptySessionId = SessionId.EMPTY;
         this.logger = context.getLogger();
 
@@ -57,6 +61,11 @@ public class AuthUtils {
 
     public static final String cookieKey = "sessionid";
 
+    // names of the indexes we register on our databases
+    private static final String SESSIONS_BY_CODE = "code";
+    private static final String USERS_BY_NAME = "username";
+    private static final String USERS_BY_SESSION = "current_session";
+
     /**
      * Used to extract cookies from the Cookie header
      */
@@ -102,10 +111,9 @@ public class AuthUtils {
         }
 
         // Did we find that session identifier in the database?
-        final SessionId sessionFoundInDatabase = sessionDiskData.values().stream()
-                .filter(x -> Objects.equals(x.getSessionCode().toLowerCase(), listOfSessionIds.get(0).toLowerCase()))
-                .findFirst()
-                .orElse(emptySessionId);
+        final SessionId sessionFoundInDatabase = Objects.requireNonNullElse(
+                sessionDiskData.findExactlyOne(SESSIONS_BY_CODE, listOfSessionIds.get(0).toLowerCase()),
+                emptySessionId);
 
         // they are authenticated if we find their session id in the database
         final var isAuthenticated = !Objects.equals(sessionFoundInDatabase, emptySessionId);
@@ -115,11 +123,11 @@ public class AuthUtils {
         }
 
         // find the user
-        final List<User> authenticatedUser = userDiskData.values().stream().filter(x -> Objects.equals(x.getCurrentSession(), sessionFoundInDatabase.getSessionCode())).toList();
+        final Collection<User> authenticatedUser = userDiskData.getIndexedData(USERS_BY_SESSION, sessionFoundInDatabase.getSessionCode());
 
         mustBeTrue(authenticatedUser.size() == 1, "There must be exactly one user found for a current session. We found: " + authenticatedUser.size());
 
-        return new AuthResult(true, sessionFoundInDatabase.getCreationDateTime(), authenticatedUser.get(0));
+        return new AuthResult(true, sessionFoundInDatabase.getCreationDateTime(), authenticatedUser.iterator().next());
     }
 
     public List<User> getUsers() {
@@ -156,7 +164,7 @@ public class AuthUtils {
     }
 
     public RegisterResult registerUser(String newUsername, String newPassword) {
-        if (userDiskData.values().stream().anyMatch(x -> x.getUsername().equals(newUsername))) {
+        if (! userDiskData.getIndexedData(USERS_BY_NAME, newUsername).isEmpty()) {
             return new RegisterResult(ALREADY_EXISTING_USER, User.EMPTY);
         }
         final var newSalt = StringUtils.generateSecureRandomString(10);
@@ -181,7 +189,7 @@ public class AuthUtils {
      * This is the real findUser
      */
     private LoginResult findUser(String username, String password) {
-        final var foundUsers = userDiskData.values().stream().filter(x -> x.getUsername().equals(username)).toList();
+        final var foundUsers = List.copyOf(userDiskData.getIndexedData(USERS_BY_NAME, username));
         return switch (foundUsers.size()) {
             case 0 -> new LoginResult(LoginResultStatus.NO_USER_FOUND, User.EMPTY);
             case 1 -> passwordCheck(foundUsers.get(0), password);
@@ -204,10 +212,11 @@ public class AuthUtils {
      * the user to have a null session value.
      */
     public User logoutUser(User user) {
-        final List<SessionId> userSession = sessionDiskData.values().stream().filter(s -> Objects.equals(s.getSessionCode(), user.getCurrentSession())).toList();
+        final Collection<SessionId> userSession = user.getCurrentSession() == null ? List.of() :
+                sessionDiskData.getIndexedData(SESSIONS_BY_CODE, user.getCurrentSession().toLowerCase());
         mustBeTrue(userSession.size() == 1, "There must be exactly one session found for this active session id. Count found: " + userSession.size());
 
-        sessionDiskData.delete(userSession.get(0));
+        sessionDiskData.delete(userSession.iterator().next());
 
         userDiskData.delete(user);
         final User updatedUser = new User(user.getId(), user.getUsername(), user.getHashedPassword(), user.getSalt(), null);
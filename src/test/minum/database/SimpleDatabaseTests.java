@@ -5,6 +5,7 @@ import minum.testing.RegexUtils;
 import minum.testing.StopwatchUtils;
 import minum.logging.TestLogger;
 import minum.utils.FileUtils;
+import minum.utils.InvariantException;
 import minum.utils.MyThread;
 
 import java.io.IOException;
@@ -12,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 
 import static java.util.stream.IntStream.range;
@@ -223,6 +225,252 @@ public class SimpleDatabaseTests {
             assertTrue(RegexUtils.isFound("Exception while reading out.simple_db.foos.index.ddps in Db constructor",ex.getMessage()));
         }
 
+        logger.test("Loading many files from disk, in the background");{
+            final var manyDirectory = Path.of("out/simple_db/foos_many");
+            FileUtils.deleteDirectoryRecursivelyIfExists(manyDirectory, logger);
+            final var db = new Db<Foo>(manyDirectory, context, INSTANCE);
+            final var foos = new ArrayList<Foo>();
+            for (int i = 0; i < 500; i++) {
+                foos.add(db.write(new Foo(0, i, "abc" + i)));
+            }
+            db.stop(50, 20);
+            MyThread.sleep(50);
+
+            final var db1 = new Db<Foo>(manyDirectory, context, INSTANCE);
+            db1.loadDataInBackground();
+            assertEqualsDisregardOrder(
+                    db1.values().stream().map(Foo::toString).toList(),
+                    foos.stream().map(Foo::toString).toList());
+            assertTrue(logger.findFirstMessageThatContains("loaded 500 rows", 10).contains("foos_many"));
+            db1.stop();
+            FileUtils.deleteDirectoryRecursivelyIfExists(manyDirectory, logger);
+        }
+
+        logger.test("Secondary indexes let us find data by something other than its index");{
+            final var indexedDirectory = Path.of("out/simple_db/foos_indexed");
+            FileUtils.deleteDirectoryRecursivelyIfExists(indexedDirectory, logger);
+            final var db = new Db<Foo>(indexedDirectory, context, INSTANCE);
+            db.registerIndex("b", x -> x.b);
+            final var foo1 = db.write(new Foo(0, 1, "apple"));
+            final var foo2 = db.write(new Foo(0, 2, "banana"));
+            final var foo3 = db.write(new Foo(0, 3, "banana"));
+            db.write(new Foo(0, 4, null));
+
+            assertEquals(db.findExactlyOne("b", "apple"), foo1);
+            assertEqualsDisregardOrder(db.getIndexedData("b", "banana").stream().map(Foo::toString).toList(), List.of(foo2.toString(), foo3.toString()));
+            assertTrue(db.findExactlyOne("b", "cherry") == null);
+            assertTrue(db.getIndexedData("b", null).isEmpty());
+            assertThrows(InvariantException.class, () -> db.findExactlyOne("b", "banana"));
+
+            // updates and deletes keep the index current
+            final var updatedFoo1 = new Foo(foo1.getIndex(), 1, "cherry");
+            db.update(updatedFoo1);
+            assertTrue(db.getIndexedData("b", "apple").isEmpty());
+            assertEquals(db.findExactlyOne("b", "cherry"), updatedFoo1);
+            db.delete(foo2);
+            assertEquals(db.findExactlyOne("b", "banana"), foo3);
+
+            // an index registered once the data is loaded is built from what is there
+            db.registerIndex("a", x -> String.valueOf(x.a));
+            assertEquals(db.findExactlyOne("a", "3"), foo3);
+
+            var ex = assertThrows(InvariantException.class, () -> db.registerIndex("a", x -> x.b));
+            assertEquals(ex.getMessage(), "There is already an index registered with the name a");
+            var ex2 = assertThrows(InvariantException.class, () -> db.getIndexedData("c", "foo"));
+            assertEquals(ex2.getMessage(), "There is no index registered with the name c");
+            db.stop();
+            MyThread.sleep(20);
+
+            // an index registered before the data is loaded is built while loading
+            final var db1 = new Db<Foo>(indexedDirectory, context, INSTANCE);
+            db1.registerIndex("b", x -> x.b);
+            assertEquals(db1.findExactlyOne("b", "banana"), foo3);
+            db1.stop();
+            FileUtils.deleteDirectoryRecursivelyIfExists(indexedDirectory, logger);
+        }
+
+        /*
+         * Several threads change the data at once while another reads through
+         * it.  The reader should never get an exception, and once everyone is
+         * done, what is in memory should be what's on disk.
+         */
+        logger.test("Reading and changing data from many threads at once");{
+            final var concurrentDirectory = Path.of("out/simple_db/foos_concurrent");
+            FileUtils.deleteDirectoryRecursivelyIfExists(concurrentDirectory, logger);
+            final var db = new Db<Foo>(concurrentDirectory, context, INSTANCE, new DbLogStorage<>(concurrentDirectory, context, INSTANCE, 1024 * 1024));
+            final var es = context.getExecutorService();
+            final var futures = new ArrayList<java.util.concurrent.Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                futures.add(es.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        Foo foo = db.write(new Foo(0, i, "thread" + thread));
+                        db.update(new Foo(foo.getIndex(), i, "thread" + thread + "_updated"));
+                        if (i % 2 == 0) db.delete(foo);
+                    }
+                }));
+            }
+            futures.add(es.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    for (Foo foo : db.values()) {
+                        assertTrue(foo.b.startsWith("thread"));
+                    }
+                }
+            }));
+            for (var future : futures) {
+                try {
+                    future.get();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            assertEquals(db.values().size(), 200);
+            assertTrue(db.snapshot().stream().allMatch(x -> x.b.endsWith("_updated") && x.a % 2 == 1));
+            db.stop(10, 20);
+            MyThread.sleep(20);
+
+            final var db1 = new Db<Foo>(concurrentDirectory, context, INSTANCE, new DbLogStorage<>(concurrentDirectory, context, INSTANCE, 1024 * 1024));
+            assertEqualsDisregardOrder(
+                    db1.values().stream().map(Foo::toString).toList(),
+                    db.values().stream().map(Foo::toString).toList());
+            db1.stop();
+            FileUtils.deleteDirectoryRecursivelyIfExists(concurrentDirectory, logger);
+        }
+
+        /*
+         * Rather than a file per row, the log storage appends each change to
+         * a log file.  We use a tiny segment size here so that we roll over to
+         * new segments - and compact them - after only a few writes.  We talk
+         * to the storage directly, since the Db would combine our updates
+         * into fewer records.
+         */
+        logger.test("Using the append-only log storage");{
+            final var logDirectory = Path.of("out/simple_db/foos_log");
+            FileUtils.deleteDirectoryRecursivelyIfExists(logDirectory, logger);
+            Files.createDirectories(logDirectory);
+            final var storage = new DbLogStorage<Foo>(logDirectory, context, INSTANCE, 200);
+            assertEquals(storage.readNextIndex(), 1L);
+            final var foos = new ArrayList<Foo>();
+            for (int i = 1; i <= 10; i++) {
+                var foo = new Foo(i, i, "original");
+                storage.persistNew(foo);
+                foos.add(foo);
+            }
+            storage.commit(false);
+            for (int i = 1; i < 5; i++) {
+                for (int j = 0; j < foos.size(); j++) {
+                    foos.set(j, new Foo(foos.get(j).getIndex(), foos.get(j).a + i, "updated" + i));
+                    storage.persistUpdate(foos.get(j));
+                }
+                storage.commit(false);
+            }
+            storage.persistDelete(foos.remove(0).getIndex());
+            storage.commit(false);
+            storage.close();
+
+            // after all those updates, most records are obsolete, so we will have compacted
+            assertFalse(Files.exists(logDirectory.resolve("log_0000000001" + DbLogStorage.logFileSuffix)));
+
+            final var db1 = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 200));
+            assertEqualsDisregardOrder(
+                    db1.values().stream().map(Foo::toString).toList(),
+                    foos.stream().map(Foo::toString).toList());
+            assertEquals(db1.index.get(), 11L);
+            db1.stop(10, 20);
+        }
+
+        logger.test("The log storage ignores a partially-written record at the end of the log");{
+            final var logDirectory = Path.of("out/simple_db/foos_log");
+            FileUtils.deleteDirectoryRecursivelyIfExists(logDirectory, logger);
+            final var db = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 1024 * 1024));
+            db.write(new Foo(0, 1, "first"));
+            db.stop(10, 20);
+            MyThread.sleep(20);
+
+            // as if we crashed partway through writing a record
+            Path segment = logDirectory.resolve("log_0000000001" + DbLogStorage.logFileSuffix);
+            Files.writeString(segment, "INSERT 2 50\n2|2|sec", java.nio.file.StandardOpenOption.APPEND);
+
+            final var db1 = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 1024 * 1024));
+            assertEquals(db1.values().size(), 1);
+            db1.write(new Foo(0, 2, "second"));
+            db1.stop(10, 20);
+            MyThread.sleep(20);
+
+            final var db2 = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 1024 * 1024));
+            assertEqualsDisregardOrder(
+                    db2.values().stream().map(Foo::toString).toList(),
+                    List.of(new Foo(1, 1, "first").toString(), new Foo(2, 2, "second").toString()));
+
+            // deleting everything starts the index back at 1
+            for (var foo : new ArrayList<>(db2.values())) {
+                db2.delete(foo);
+            }
+            db2.stop(10, 20);
+            MyThread.sleep(20);
+            final var db3 = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 1024 * 1024));
+            assertEquals(db3.index.get(), 1L);
+            assertTrue(db3.values().isEmpty());
+            db3.stop(10, 20);
+        }
+
+        /*
+         * If the first thing written after a crash starts a new segment, the
+         * partial record has to be gone from the old one by then - otherwise
+         * it would no longer be at the end of the newest segment.
+         */
+        logger.test("The log storage removes a partially-written record even if the next write starts a new segment");{
+            final var logDirectory = Path.of("out/simple_db/foos_log");
+            FileUtils.deleteDirectoryRecursivelyIfExists(logDirectory, logger);
+            final var db = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 200));
+            db.write(new Foo(0, 1, "first"));
+            db.stop(10, 20);
+            MyThread.sleep(20);
+
+            Path segment = logDirectory.resolve("log_0000000001" + DbLogStorage.logFileSuffix);
+            Files.writeString(segment, "INSERT 2 50\n2|2|sec", java.nio.file.StandardOpenOption.APPEND);
+
+            final var db1 = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 200));
+            assertEquals(db1.values().size(), 1);
+            db1.write(new Foo(0, 2, "a".repeat(250)));
+            db1.stop(10, 20);
+            MyThread.sleep(20);
+            assertTrue(Files.exists(logDirectory.resolve("log_0000000002" + DbLogStorage.logFileSuffix)));
+
+            final var db2 = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 200));
+            assertEqualsDisregardOrder(
+                    db2.values().stream().map(Foo::toString).toList(),
+                    List.of(new Foo(1, 1, "first").toString(), new Foo(2, 2, "a".repeat(250)).toString()));
+            db2.stop(10, 20);
+        }
+
+        /*
+         * Changes are sent to disk in batches, and many changes to the same
+         * data within a batch are combined.  A burst of updates to one row
+         * therefore takes far fewer writes than there were updates.
+         */
+        logger.test("A burst of changes to the same data is combined before going to disk");{
+            final var logDirectory = Path.of("out/simple_db/foos_log");
+            FileUtils.deleteDirectoryRecursivelyIfExists(logDirectory, logger);
+            final var db = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 1024 * 1024));
+            final var foo = db.write(new Foo(0, 0, "original"));
+            for (int i = 1; i <= 1000; i++) {
+                db.update(new Foo(foo.getIndex(), i, "updated"));
+            }
+            // written and deleted before ever needing to reach the disk
+            db.delete(db.write(new Foo(0, 0, "short-lived")));
+            db.stop(10, 20);
+            MyThread.sleep(20);
+
+            Path segment = logDirectory.resolve("log_0000000001" + DbLogStorage.logFileSuffix);
+            long recordCount = Files.readAllLines(segment).stream().filter(x -> x.startsWith("INSERT") || x.startsWith("UPDATE")).count();
+            assertTrue(recordCount < 1000, "expected the updates to be combined, but found " + recordCount + " records");
+
+            final var db1 = new Db<Foo>(logDirectory, context, INSTANCE, new DbLogStorage<>(logDirectory, context, INSTANCE, 1024 * 1024));
+            assertEquals(db1.values().stream().map(Foo::toString).toList(), List.of(new Foo(1, 1000, "updated").toString()));
+            db1.stop(10, 20);
+        }
+
 
     }
 
@@ -84,7 +84,8 @@ public class ListPhotos {
             return new Response(_200_OK, lruCache.get(filename),
                     Map.of(
                             "Cache-Control","max-age=604800",
-                            "Content-Type", "image/jpeg"
+                            "Content-Type", "image/jpeg",
+                            "Accept-Ranges", "bytes"
                     ));
         }
         // first let's check to see whether the file is even there.
@@ -129,7 +130,8 @@ public class ListPhotos {
                 return new Response(_200_OK, bytes,
                         Map.of(
                                 "Cache-Control", "max-age=604800",
-                                "Content-Type", "image/jpeg"
+                                "Content-Type", "image/jpeg",
+                                "Accept-Ranges", "bytes"
                         ));
 
             }
@@ -12,8 +12,13 @@ import minum.utils.StacktraceUtils;
 import minum.web.Request;
 import minum.web.Response;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -52,14 +57,13 @@ public class UploadPhoto {
         if (! authResult.isAuthenticated()) {
             return new Response(_401_UNAUTHORIZED);
         }
-        var photoBytes = request.body().asBytes("image_uploads");
+        // the photo may be large, so it is copied over as a stream rather than read into memory
+        var photoInputStream = request.body().asInputStream("image_uploads");
         var shortDescription = request.body().asString("short_description");
         var description = request.body().asString("long_description");
 
-        var newFilename = UUID.nameUUIDFromBytes(photoBytes).toString();
-        final var newPhotograph = new Photograph(0, newFilename, shortDescription, description);
         Path photoDirectory = dbDir.resolve("photo_files");
-        Path photoPath = photoDirectory.resolve(newFilename);
+        String newFilename;
         try {
             logger.logDebug(() -> "Creating a directory for photo_files");
             boolean directoryExists = Files.exists(photoDirectory);
@@ -70,15 +74,37 @@ public class UploadPhoto {
                 logger.logDebug(() -> "Directory: " + photoDirectory + " created");
             }
 
-            Files.write(photoPath, photoBytes);
-        } catch (IOException e) {
+            // the file is named for its contents, so we only learn the name once it's all
+            // been copied.  Uploading the same photo again ends up in the same file.
+            Path temporaryPath = Files.createTempFile(photoDirectory, "upload", ".tmp");
+            try (var digestInputStream = new DigestInputStream(photoInputStream, MessageDigest.getInstance("MD5"))) {
+                Files.copy(digestInputStream, temporaryPath, StandardCopyOption.REPLACE_EXISTING);
+                newFilename = nameUUIDFromDigest(digestInputStream.getMessageDigest().digest()).toString();
+                Files.move(temporaryPath, photoDirectory.resolve(newFilename), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporaryPath);
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
             logger.logAsyncError(() -> StacktraceUtils.stackTraceToString(e));
             return new Response(_500_INTERNAL_SERVER_ERROR, e.toString(), Map.of("Content-Type", "text/plain;charset=UTF-8"));
         }
+        final var newPhotograph = new Photograph(0, newFilename, shortDescription, description);
         db.write(newPhotograph);
         return Response.redirectTo("photos");
     }
 
+    /**
+     * The same as {@link UUID#nameUUIDFromBytes(byte[])}, for bytes whose
+     * MD5 digest we already have.
+     */
+    private static UUID nameUUIDFromDigest(byte[] md5Bytes) {
+        // mark it as a version 3 (name-based, MD5) UUID, of the IETF variant
+        md5Bytes[6] = (byte) ((md5Bytes[6] & 0x0f) | 0x30);
+        md5Bytes[8] = (byte) ((md5Bytes[8] & 0x3f) | 0x80);
+        var buffer = ByteBuffer.wrap(md5Bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
     public List<Photograph> getPhotographs() {
         return db.values().stream().toList();
     }
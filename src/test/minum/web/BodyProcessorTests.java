@@ -4,7 +4,13 @@ import minum.Context;
 import minum.htmlparsing.ParsingException;
 import minum.logging.TestLogger;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 
 import static minum.testing.TestFramework.*;
 
@@ -19,7 +25,7 @@ public class BodyProcessorTests {
         logger.testSuite("BodyProcessorTests");
     }
 
-    public void tests() {
+    public void tests() throws IOException {
 
         logger.test("Edge case - if a multipart form body is missing a valid name value in its headers"); {
             String body = """
@@ -107,5 +113,54 @@ public class BodyProcessorTests {
             assertTrue(exception.getCause().getMessage().contains("aaaaaaaaaaaaaa ... (remainder of data trimmed)"));
         }
 
+        /*
+         * A multipart body is parsed as it is read from the client.  A part
+         * larger than MULTIPART_PART_MAX_IN_MEMORY_BYTES goes into a temporary
+         * file, which is deleted once the request has been handled.  We stop
+         * reading at the end of the body, since the client's next request follows it.
+         */
+        logger.test("A large part of a multipart upload is kept on disk rather than in memory"); {
+            byte[] photo = new byte[context.getConstants().MULTIPART_PART_MAX_IN_MEMORY_BYTES + 1000];
+            for (int i = 0; i < photo.length; i++) photo[i] = (byte) i;
+            var baos = new ByteArrayOutputStream();
+            baos.write("""
+                    preamble, to be ignored\r
+                    --i_am_a_boundary\r
+                    Content-Disposition: form-data; name="text1"\r
+                    \r
+                    I am a value that is text\r
+                    --i_am_a_boundary\r
+                    Content-Type: application/octet-stream\r
+                    Content-Disposition: form-data; name="image_uploads"; filename="photo.jpg"\r
+                    \r
+                    """.getBytes(StandardCharsets.UTF_8));
+            baos.write(photo);
+            baos.write("\r\n--i_am_a_boundary--\r\n".getBytes(StandardCharsets.UTF_8));
+            byte[] multipartBody = baos.toByteArray();
+            baos.write("GET /next_request HTTP/1.1".getBytes(StandardCharsets.UTF_8));
+            var headers = new Headers(List.of(
+                    "Content-Type: multipart/form-data; boundary=i_am_a_boundary",
+                    "Content-Length: " + multipartBody.length), context);
+
+            // the client's bytes arrive a few at a time, so boundaries get split across reads
+            InputStream is = new ByteArrayInputStream(baos.toByteArray()) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    return super.read(b, off, Math.min(len, 7));
+                }
+            };
+            var body = new BodyProcessor(context).extractData(is, headers);
+
+            assertEquals(body.asString("text1"), "I am a value that is text");
+            assertEqualByteArray(body.asBytes("image_uploads"), photo);
+            try (var photoStream = body.asInputStream("image_uploads")) {
+                assertTrue(Arrays.equals(photoStream.readAllBytes(), photo));
+            }
+            assertEquals(new String(is.readAllBytes(), StandardCharsets.UTF_8), "GET /next_request HTTP/1.1");
+
+            body.deleteTempFiles();
+            assertThrows(RuntimeException.class, () -> body.asBytes("image_uploads"));
+        }
+
     }
 }
@@ -6,8 +6,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
@@ -20,6 +24,16 @@ public class FakeSocketWrapper implements ISocketWrapper {
     public Supplier<Integer> getLocalPortAction;
     public ByteArrayOutputStream baos;
     public ByteArrayInputStream bais;
+    // how many times something was sent, to see how the bytes were grouped
+    public int sendCount;
+    // as though agreed on during a TLS handshake, e.g. "h2" for HTTP/2
+    public String applicationProtocol = "";
+    // given work for another thread, returns whether it was accepted.  By default, runs it on a new thread.
+    public Function<Runnable, Boolean> submitWorkAction = work -> {
+        new Thread(work).start();
+        return true;
+    };
+    private boolean isHoldingOutput;
 
     public FakeSocketWrapper() {
         bais = new ByteArrayInputStream(new byte[0]);
@@ -28,14 +42,50 @@ public class FakeSocketWrapper implements ISocketWrapper {
 
     @Override
     public void send(String msg) throws IOException {
+        if (! isHoldingOutput) sendCount += 1;
         baos.write(msg.getBytes(StandardCharsets.UTF_8));
     }
 
     @Override
     public void send(byte[] bodyContents) throws IOException {
+        if (! isHoldingOutput) sendCount += 1;
         baos.write(bodyContents);
     }
 
+    @Override
+    public void send(byte[] bytes, int offset, int length) {
+        if (! isHoldingOutput) sendCount += 1;
+        baos.write(bytes, offset, length);
+    }
+
+    @Override
+    public void send(ByteBuffer... buffers) {
+        if (! isHoldingOutput) sendCount += 1;
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            baos.writeBytes(bytes);
+        }
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        if (! isHoldingOutput) sendCount += 1;
+        file.transferTo(position, count, Channels.newChannel(baos));
+    }
+
+    @Override
+    public void holdOutput() {
+        isHoldingOutput = true;
+    }
+
+    @Override
+    public void flush() {
+        // whatever was held goes out as one more send
+        if (isHoldingOutput) sendCount += 1;
+        isHoldingOutput = false;
+    }
+
     @Override
     public void sendHttpLine(String msg) {
         sendHttpLineAction.accept(msg);
@@ -61,6 +111,14 @@ public class FakeSocketWrapper implements ISocketWrapper {
         return "";
     }
 
+    @Override
+    public void handshake() {}
+
+    @Override
+    public String getApplicationProtocol() {
+        return applicationProtocol;
+    }
+
     @Override
     public void close() {}
 
@@ -68,4 +126,14 @@ public class FakeSocketWrapper implements ISocketWrapper {
     public InputStream getInputStream() {
         return bais;
     }
+
+    @Override
+    public boolean parkIfIdle() {
+        return false;
+    }
+
+    @Override
+    public boolean submitWork(Runnable work) {
+        return submitWorkAction.apply(work);
+    }
 }
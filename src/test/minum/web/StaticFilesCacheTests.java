@@ -4,8 +4,12 @@ import minum.Context;
 import minum.logging.TestLogger;
 import minum.utils.InvariantException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static minum.testing.TestFramework.*;
 
@@ -91,6 +95,107 @@ public class StaticFilesCacheTests {
             assertTrue(response == null);
         }
 
+        /*
+         Static files may instead come from a directory on the filesystem.  Small
+         files are held in memory as usual, but large ones are sent from disk each
+         time, so the response just points at the file.
+         */
+        logger.test("Serving static files from a directory on disk"); {
+            Path staticDirectory = Path.of("out/static_on_disk");
+            Files.createDirectories(staticDirectory);
+            Files.writeString(staticDirectory.resolve("small.css"), "body { color: red; }");
+            Files.write(staticDirectory.resolve("large.webp"), new byte[100 * 1024]);
+            var diskCache = new StaticFilesCache(context, staticDirectory, 64 * 1024, 1024 * 1024);
+
+            Response smallResponse = diskCache.loadStaticFile("small.css");
+            assertEquals(smallResponse.body().length, 20);
+            assertTrue(smallResponse.bodyFile() == null);
+            assertEquals(smallResponse.extraHeaders().get("Content-Type"), "text/css");
+
+            Response largeResponse = diskCache.loadStaticFile("large.webp");
+            assertEquals(largeResponse.body().length, 0);
+            assertEquals(largeResponse.bodyFile(), staticDirectory.resolve("large.webp").toAbsolutePath().normalize());
+            assertEquals(largeResponse.extraHeaders().get("Content-Type"), "image/webp");
+
+            assertTrue(diskCache.loadStaticFile("not_there.css") == null);
+            assertTrue(diskCache.loadStaticFile("../static_on_disk/small.css") == null);
+        }
+
+        /*
+         The cache has a limit on its size in bytes.  Once it's full, the
+         least-recently used responses are dropped to make room.
+         */
+        logger.test("The static cache drops the least-recently used files when full"); {
+            Path staticDirectory = Path.of("out/static_on_disk");
+            Files.createDirectories(staticDirectory);
+            for (String name : List.of("a.bin", "b.bin", "c.bin")) {
+                Files.writeString(staticDirectory.resolve(name), "a".repeat(1000));
+            }
+            long entrySize = StaticFilesCache.ENTRY_OVERHEAD_BYTES + "a.bin".length() + 1000;
+            var boundedCache = new StaticFilesCache(context, staticDirectory, 64 * 1024, entrySize * 2);
+
+            boundedCache.loadStaticFile("a.bin");
+            boundedCache.loadStaticFile("b.bin");
+            // using "a" makes "b" the least-recently used
+            assertTrue(boundedCache.getStaticResponse("a.bin") != null);
+            boundedCache.loadStaticFile("c.bin");
+
+            assertTrue(boundedCache.getStaticResponse("b.bin") == null);
+            assertTrue(boundedCache.getStaticResponse("a.bin") != null);
+            assertTrue(boundedCache.getStaticResponse("c.bin") != null);
+            assertEquals(boundedCache.getStatistics(), new StaticFilesCache.Statistics(3, 1, 1, 2, entrySize * 2));
+        }
+
+        /*
+         Text files get a gzip-compressed version, which is sent to clients
+         that say they can take it.  Both versions are marked as varying by
+         Accept-Encoding, so caches along the way keep them apart.
+         */
+        logger.test("Static text files have a compressed version for clients that accept gzip"); {
+            var cachedFile = staticFilesCache.loadCachedFile("main.css");
+            byte[] uncompressed = cachedFile.identity().body();
+            assertEquals(cachedFile.identity().extraHeaders().get("Vary"), "Accept-Encoding");
+            assertEquals(cachedFile.gzipped().extraHeaders().get("Content-Encoding"), "gzip");
+            assertEquals(cachedFile.gzipped().extraHeaders().get("Vary"), "Accept-Encoding");
+            assertTrue(cachedFile.gzipped().body().length < uncompressed.length);
+            try (var gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(cachedFile.gzipped().body()))) {
+                assertEqualByteArray(gzipInputStream.readAllBytes(), uncompressed);
+            }
+
+            var acceptsGzip = new Request(new Headers(List.of("Accept-Encoding: gzip, deflate, br"), context), StartLine.EMPTY(context), Body.EMPTY(context), "");
+            var noGzip = new Request(new Headers(List.of(), context), StartLine.EMPTY(context), Body.EMPTY(context), "");
+            assertTrue(cachedFile.responseFor(acceptsGzip) == cachedFile.gzipped());
+            assertTrue(cachedFile.responseFor(noGzip) == cachedFile.identity());
+
+            // images are already compressed, so we leave them be
+            var image = staticFilesCache.loadCachedFile("moon.webp");
+            assertTrue(image.gzipped() == null);
+            assertTrue(image.identity().extraHeaders().get("Vary") == null);
+        }
+
+        logger.test("Static files carry an ETag and Last-Modified, so browsers can check if they changed"); {
+            var cachedFile = staticFilesCache.loadCachedFile("index.js");
+            String etag = cachedFile.identity().extraHeaders().get("ETag");
+            assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+            assertTrue(cachedFile.identity().extraHeaders().get("Last-Modified") != null);
+            // a different body means a different ETag
+            assertFalse(etag.equals(cachedFile.gzipped().extraHeaders().get("ETag")));
+            assertEquals(staticFilesCache.loadCachedFile("index.js").identity().extraHeaders().get("ETag"), etag);
+        }
+
+        logger.test("A compressed version of a static file prepared ahead of time is used if present"); {
+            Path staticDirectory = Path.of("out/static_on_disk");
+            Files.createDirectories(staticDirectory);
+            Files.writeString(staticDirectory.resolve("prebuilt.js"), "console.log('hello');");
+            byte[] prebuilt = new byte[]{1, 2, 3};
+            Files.write(staticDirectory.resolve("prebuilt.js.gz"), prebuilt);
+            var diskCache = new StaticFilesCache(context, staticDirectory, 64 * 1024, 1024 * 1024);
+
+            var cachedFile = diskCache.loadCachedFile("prebuilt.js");
+            assertEqualByteArray(cachedFile.gzipped().body(), prebuilt);
+            assertEquals(cachedFile.gzipped().extraHeaders().get("Content-Type"), "application/javascript");
+        }
+
         /*
          If we encounter a file we don't recognize, we'll label it as application/octet-stream.  Browsers
          won't know what to do with this, so they will treat it as if the Content-Disposition header was set
@@ -5,20 +5,37 @@ import minum.exceptions.ForbiddenUseException;
 import minum.htmlparsing.ParsingException;
 import minum.logging.TestLogger;
 import minum.utils.InvariantException;
+import minum.utils.MyThread;
 import minum.utils.StringUtils;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
 import java.time.Month;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
@@ -29,6 +46,7 @@ import static minum.web.StartLine.Verb.GET;
 import static minum.web.StartLine.Verb.POST;
 import static minum.web.StartLine.startLineRegex;
 import static minum.web.StatusLine.StatusCode._200_OK;
+import static minum.web.StatusLine.StatusCode._304_NOT_MODIFIED;
 import static minum.web.StatusLine.StatusCode._404_NOT_FOUND;
 import static minum.web.HttpVersion.ONE_DOT_ONE;
 
@@ -55,7 +73,7 @@ public class WebTests {
     | $$$/ \  $$$| $$_____/| $$  | $$        | $$ /$$| $$_____/ \____  $$  | $$ /$$\____  $$
     | $$/   \  $$|  $$$$$$$| $$$$$$$/        |  $$$$/|  $$$$$$$ /$$$$$$$/  |  $$$$//$$$$$$$/
     |__/     \__/ \_______/|_______/          \___/   \_______/|_______/    \___/ |______*/
-    public void tests() throws IOException {
+    public void tests() throws Exception {
 
         WebEngine webEngine = new WebEngine(context);
 
@@ -200,6 +218,202 @@ public class WebTests {
             }
         }
 
+        /*
+         * A response can point at a file rather than holding its bytes, and
+         * the file is sent straight from disk.  We ask twice on the same
+         * connection to make sure the length we announce is what we send.
+         */
+        logger.test("A response with a file for its body is sent from disk");{
+            Path bigFile = Path.of("out/file_response_body.txt");
+            Files.createDirectories(bigFile.getParent());
+            Files.writeString(bigFile, "abcdefghij".repeat(20_000));
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "big_file", r -> Response.fromFile(_200_OK, Map.of("Content-Type", "text/plain"), bigFile));
+            try (Server primaryServer = webEngine.startServer(es, wf.makePrimaryHttpHandler())) {
+                try (var client = webEngine.startClient(primaryServer)) {
+                    InputStream is = client.getInputStream();
+                    for (int i = 0; i < 2; i++) {
+                        client.sendHttpLine("GET /big_file HTTP/1.1");
+                        client.sendHttpLine("Host: localhost:8080");
+                        client.sendHttpLine("");
+
+                        StatusLine statusLine = StatusLine.extractStatusLine(inputStreamUtils.readLine(is));
+                        assertEquals(statusLine.rawValue(), "HTTP/1.1 200 OK");
+                        Headers hi = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                        assertEquals(hi.valueByKey("content-length"), List.of("200000"));
+                        assertEquals(readBody(is, hi.contentLength()), "abcdefghij".repeat(20_000));
+                    }
+                }
+            }
+        }
+
+        /*
+         * A streamed body is written as the response goes out, so its length
+         * isn't known up front.  An HTTP/1.1 client gets it in chunks, and the
+         * connection carries on afterwards.  An HTTP/1.0 client gets it as-is,
+         * and the connection closing marks the end.
+         */
+        logger.test("A response with a streamed body is sent in chunks");{
+            String row = "1,2,3,four,five,six\n";
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "export", r -> Response.streaming(_200_OK, Map.of("Content-Type", "text/csv"), out -> {
+                for (int i = 0; i < 1000; i++) out.write(row.getBytes(StandardCharsets.UTF_8));
+            }));
+            wf.registerPath(GET, "hello", r -> Response.htmlOk("hello"));
+            try (Server primaryServer = webEngine.startServer(es, wf.makePrimaryHttpHandler())) {
+                try (var client = webEngine.startClient(primaryServer)) {
+                    InputStream is = client.getInputStream();
+                    client.sendHttpLine("GET /export HTTP/1.1");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 200 OK");
+                    Headers hi = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertEquals(hi.valueByKey("transfer-encoding"), List.of("chunked"));
+                    assertTrue(hi.valueByKey("content-length") == null);
+                    var received = new ByteArrayOutputStream();
+                    int chunkCount = 0;
+                    while (true) {
+                        int size = Integer.parseInt(inputStreamUtils.readLine(is), 16);
+                        received.write(inputStreamUtils.read(size, is));
+                        inputStreamUtils.readLine(is);
+                        if (size == 0) break;
+                        chunkCount += 1;
+                    }
+                    assertEquals(received.toString(StandardCharsets.UTF_8), row.repeat(1000));
+                    assertEquals(chunkCount, 3);
+
+                    client.sendHttpLine("GET /hello HTTP/1.1");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 200 OK");
+                    Headers hi2 = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertEquals(readBody(is, hi2.contentLength()), "hello");
+                }
+                try (var client = webEngine.startClient(primaryServer)) {
+                    InputStream is = client.getInputStream();
+                    client.sendHttpLine("GET /export HTTP/1.0");
+                    client.sendHttpLine("Connection: keep-alive");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 200 OK");
+                    Headers hi = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertTrue(hi.valueByKey("transfer-encoding") == null);
+                    assertTrue(hi.valueByKey("keep-alive") == null);
+                    assertEquals(new String(is.readAllBytes(), StandardCharsets.UTF_8), row.repeat(1000));
+                }
+            }
+        }
+
+        /*
+         * When a response has an ETag, a client sending the same value back in
+         * If-None-Match gets a 304 with no body.  The connection carries on
+         * afterwards, so the 304 must not claim to have a body.
+         */
+        logger.test("A client that already has the current version of a response gets a 304");{
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "hello", r -> Response.htmlOk("hello").withETag());
+            String etag = Response.htmlOk("hello").withETag().extraHeaders().get("ETag");
+            try (Server primaryServer = webEngine.startServer(es, wf.makePrimaryHttpHandler())) {
+                try (var client = webEngine.startClient(primaryServer)) {
+                    InputStream is = client.getInputStream();
+                    client.sendHttpLine("GET /hello HTTP/1.1");
+                    client.sendHttpLine("If-None-Match: \"abc\", " + etag);
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 304 NOT MODIFIED");
+                    Headers hi = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertEquals(hi.valueByKey("etag"), List.of(etag));
+                    assertTrue(hi.valueByKey("content-length") == null);
+
+                    client.sendHttpLine("GET /hello HTTP/1.1");
+                    client.sendHttpLine("If-None-Match: \"abc\"");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 200 OK");
+                    Headers hi2 = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertEquals(readBody(is, hi2.contentLength()), "hello");
+                }
+            }
+        }
+
+        logger.test("A client asking If-Modified-Since gets a 304 if the response is no newer");{
+            var wf = new WebFramework(context, default_zdt);
+            var response = new Response(_200_OK, "hello", Map.of("Content-Type", "text/plain", "Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT"));
+            Function<String, Request> requestWithIfModifiedSince = date -> new Request(
+                    new Headers(List.of("If-Modified-Since: " + date), context),
+                    StartLine.EMPTY(context).extractStartLine("GET /hello HTTP/1.1"),
+                    Body.EMPTY(context),
+                    "");
+            assertEquals(wf.checkIfNotModified(requestWithIfModifiedSince.apply("Wed, 21 Oct 2015 07:28:00 GMT"), response).statusCode(), _304_NOT_MODIFIED);
+            assertEquals(wf.checkIfNotModified(requestWithIfModifiedSince.apply("Thu, 22 Oct 2015 07:28:00 GMT"), response).statusCode(), _304_NOT_MODIFIED);
+            assertEquals(wf.checkIfNotModified(requestWithIfModifiedSince.apply("Tue, 20 Oct 2015 07:28:00 GMT"), response).statusCode(), _200_OK);
+            assertEquals(wf.checkIfNotModified(requestWithIfModifiedSince.apply("not a date"), response).statusCode(), _200_OK);
+        }
+
+        logger.test("Parsing the Range header");{
+            assertEquals(ByteRanges.parse("bytes=0-99", 1000), List.of(new ByteRanges.Range(0, 99)));
+            assertEquals(ByteRanges.parse("bytes=900-", 1000), List.of(new ByteRanges.Range(900, 999)));
+            assertEquals(ByteRanges.parse("bytes=-100", 1000), List.of(new ByteRanges.Range(900, 999)));
+            assertEquals(ByteRanges.parse("bytes=-5000", 1000), List.of(new ByteRanges.Range(0, 999)));
+            assertEquals(ByteRanges.parse("bytes=990-5000", 1000), List.of(new ByteRanges.Range(990, 999)));
+            assertEquals(ByteRanges.parse("bytes=0-0, 10-19", 1000), List.of(new ByteRanges.Range(0, 0), new ByteRanges.Range(10, 19)));
+            // asking only for bytes beyond the end can't be satisfied
+            assertEquals(ByteRanges.parse("bytes=1000-", 1000), List.of());
+            // things we can't make sense of mean we send everything
+            assertTrue(ByteRanges.parse("bytes=abc", 1000) == null);
+            assertTrue(ByteRanges.parse("bytes=20-10", 1000) == null);
+            assertTrue(ByteRanges.parse("lines=1-2", 1000) == null);
+            assertTrue(ByteRanges.parse("bytes=" + "1-2,".repeat(ByteRanges.MAX_RANGES + 1), 1000) == null);
+        }
+
+        /*
+         * A client can ask for part of a response backed by a file, and we
+         * send just that part, straight from the file.
+         */
+        logger.test("A client asking for ranges of a file gets just those parts");{
+            Path rangeFile = Path.of("out/range_response_body.txt");
+            Files.createDirectories(rangeFile.getParent());
+            Files.writeString(rangeFile, "0123456789".repeat(100));
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "ranged", r -> Response.fromFile(_200_OK, Map.of("Content-Type", "text/plain"), rangeFile).withETag());
+            try (Server primaryServer = webEngine.startServer(es, wf.makePrimaryHttpHandler())) {
+                try (var client = webEngine.startClient(primaryServer)) {
+                    InputStream is = client.getInputStream();
+
+                    client.sendHttpLine("GET /ranged HTTP/1.1");
+                    client.sendHttpLine("Range: bytes=5-14");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 206 PARTIAL CONTENT");
+                    Headers hi = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertEquals(hi.valueByKey("content-range"), List.of("bytes 5-14/1000"));
+                    assertEquals(readBody(is, hi.contentLength()), "5678901234");
+
+                    client.sendHttpLine("GET /ranged HTTP/1.1");
+                    client.sendHttpLine("Range: bytes=0-1, -3");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 206 PARTIAL CONTENT");
+                    Headers hi2 = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    String boundary = hi2.valueByKey("content-type").get(0).replace("multipart/byteranges; boundary=", "");
+                    assertEquals(readBody(is, hi2.contentLength()),
+                            "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/1000\r\n\r\n01" +
+                            "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 997-999/1000\r\n\r\n789" +
+                            "\r\n--" + boundary + "--\r\n");
+
+                    client.sendHttpLine("GET /ranged HTTP/1.1");
+                    client.sendHttpLine("Range: bytes=2000-");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 416 RANGE NOT SATISFIABLE");
+                    Headers hi3 = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertEquals(hi3.valueByKey("content-range"), List.of("bytes */1000"));
+                    assertEquals(hi3.contentLength(), 0);
+
+                    // if the client's copy is out of date, it gets everything
+                    client.sendHttpLine("GET /ranged HTTP/1.1");
+                    client.sendHttpLine("Range: bytes=5-14");
+                    client.sendHttpLine("If-Range: \"outdated\"");
+                    client.sendHttpLine("");
+                    assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 200 OK");
+                    Headers hi4 = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                    assertEquals(readBody(is, hi4.contentLength()), "0123456789".repeat(100));
+                }
+            }
+        }
+
         // test while controlling the fake socket wrapper
         logger.test("TDD of a handler");{
             FakeSocketWrapper sw = new FakeSocketWrapper();
@@ -249,6 +463,45 @@ public class WebTests {
             assertThrows(InvariantException.class, () -> StartLine.EMPTY(context).extractStartLine(null));
         }
 
+        logger.test("extractStartLine accepts what the startLinePattern describes, and nothing else");{
+            List<String> startLines = List.of(
+                    "GET /a/b?c=d HTTP/1.1",
+                    "OPTIONS /with a space HTTP/1.0",
+                    "PROPFIND / HTTP/1.1",
+                    "GO / HTTP/1.1",
+                    "VERYLONGVERB / HTTP/1.1",
+                    "get / HTTP/1.1",
+                    "GET  / HTTP/1.1",
+                    "GET / HTTP/1.1 ",
+                    "GET /HTTP/1.1",
+                    "GET / http/1.1",
+                    "GET /\n HTTP/1.1"
+            );
+            for (String s : startLines) {
+                boolean isEmpty = StartLine.EMPTY(context).extractStartLine(s).equals(StartLine.EMPTY(context));
+                assertEquals(isEmpty, ! startLineRegex.matcher(s).matches());
+            }
+            StartLine sl = StartLine.EMPTY(context).extractStartLine("PROPFIND /with a space HTTP/1.0");
+            assertEquals(sl.getVerb(), StartLine.Verb.NONE);
+            assertEquals(sl.getPathDetails().isolatedPath(), "with a space");
+            assertEquals(sl.getVersion(), HttpVersion.ONE_DOT_ZERO);
+        }
+
+        logger.test("The query string is decoded when asked for, and can't be changed");{
+            StartLine sl = StartLine.EMPTY(context).extractStartLine("GET /search?q=a%20b&&page=2 HTTP/1.1");
+            assertEquals(sl.getPathDetails().isolatedPath(), "search");
+            assertEquals(sl.getPathDetails().rawQueryString(), "q=a%20b&&page=2");
+            assertEquals(sl.queryString().get("q"), "a b");
+            assertEquals(sl.queryString(), Map.of("q", "a b", "page", "2"));
+            assertTrue(sl.queryString() == sl.queryString());
+            assertThrows(UnsupportedOperationException.class, () -> sl.queryString().put("page", "3"));
+
+            // too many keys is caught as the start line is read, not later on
+            String tooManyKeys = "foo=bar&".repeat(context.getConstants().MAX_QUERY_STRING_KEYS_COUNT + 1);
+            assertThrows(ForbiddenUseException.class, () -> StartLine.EMPTY(context).extractStartLine("GET /search?" + tooManyKeys + " HTTP/1.1"));
+            StartLine.EMPTY(context).extractStartLine("GET /search?" + "foo=bar&".repeat(context.getConstants().MAX_QUERY_STRING_KEYS_COUNT) + " HTTP/1.1");
+        }
+
         logger.test("positive test for extractStatusLine");{
             StatusLine sl = StatusLine.extractStatusLine("HTTP/1.1 200 OK");
             assertEquals(sl.status(), _200_OK);
@@ -399,6 +652,27 @@ public class WebTests {
             assertEquals(result.get(1).length, 129);
         }
 
+        /*
+         * The boundary search skips ahead using a table built from the boundary.
+         * It must still find a boundary that begins partway through what
+         * looked like the start of one - here, the first dash of three.
+         */
+        logger.test("Searching for a boundary in bytes"); {
+            var search = new BoundarySearch("--abc".getBytes(StandardCharsets.UTF_8));
+            byte[] data = "x---abc-ab--abc".getBytes(StandardCharsets.UTF_8);
+            assertEquals(search.indexOf(data, 0, data.length), 2);
+            assertEquals(search.indexOf(data, 3, data.length), 10);
+            assertEquals(search.indexOf(data, 3, data.length - 1), -1);
+            assertEquals(search.indexOf(new byte[0], 0, 0), -1);
+
+            var bp = new BodyProcessor(context);
+            List<byte[]> result = bp.split("---abc\r\nfirst\r\n--abc\r\nsecond\r\n--abc--".getBytes(StandardCharsets.UTF_8), "--abc");
+            assertEquals(result.size(), 3);
+            assertEquals(new String(result.get(0), StandardCharsets.UTF_8), "-");
+            assertEquals(new String(result.get(1), StandardCharsets.UTF_8), "first\r\n");
+            assertEquals(new String(result.get(2), StandardCharsets.UTF_8), "second\r\n");
+        }
+
         logger.test("Examining the algorithm for parsing multipart data"); {
             byte[] multiPartData = makeTestMultiPartData();
             var bp = new BodyProcessor(context);
@@ -461,17 +735,607 @@ public class WebTests {
             }
         }
 
+        /*
+         * The head of a response is written straight into a byte buffer that
+         * gets reused for each response on a connection.  The Date header is
+         * worked out at most once a second, unless a test overrides it.
+         */
+        logger.test("The head of a response is encoded to bytes"); {
+            var responseHead = new ResponseHeadEncoder();
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            responseHead.start(_200_OK, default_zdt).header("Content-Type", "text/plain").header("X-Name", "caf\u00e9").finish().sendOn(fakeSocketWrapper);
+            assertEquals(fakeSocketWrapper.baos.toString(StandardCharsets.UTF_8), """
+                    HTTP/1.1 200 OK\r
+                    Date: Tue, 4 Jan 2022 09:25:00 GMT\r
+                    Server: minum\r
+                    Content-Type: text/plain\r
+                    X-Name: caf\u00e9\r
+                    \r
+                    """);
+
+            // the second response on the buffer starts fresh, with the current time
+            fakeSocketWrapper.baos.reset();
+            responseHead.start(_404_NOT_FOUND, null).finish().sendOn(fakeSocketWrapper);
+            List<String> lines = fakeSocketWrapper.baos.toString(StandardCharsets.UTF_8).lines().toList();
+            assertEquals(lines.get(0), "HTTP/1.1 404 NOT FOUND");
+            var date = ZonedDateTime.parse(lines.get(1).replace("Date: ", ""), DateTimeFormatter.RFC_1123_DATE_TIME);
+            assertTrue(Math.abs(date.toEpochSecond() - ZonedDateTime.now().toEpochSecond()) < 5);
+            assertEquals(lines.size(), 4);
+
+            // HTTP/2 responses use the same value, from the same cache
+            var sharedDate = ZonedDateTime.parse(ResponseHeadEncoder.currentDate(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            assertTrue(Math.abs(sharedDate.toEpochSecond() - date.toEpochSecond()) < 5);
+        }
+
+        /*
+         * The head and body of a small response go out together, so
+         * they can share a packet rather than the body waiting on its own.
+         */
+        logger.test("A response held in memory is sent in a single write"); {
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "hello", r -> Response.htmlOk("hello"));
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            fakeSocketWrapper.bais = new ByteArrayInputStream("GET /hello HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            wf.makePrimaryHttpHandler().accept(fakeSocketWrapper);
+            assertEquals(fakeSocketWrapper.sendCount, 1);
+            assertTrue(fakeSocketWrapper.baos.toString(StandardCharsets.UTF_8).endsWith("\r\n\r\nhello"));
+        }
+
+        /*
+         * A client may send several requests without waiting for the replies
+         * (pipelining).  We answer them in order, and while there's another
+         * request already waiting, we hold the replies so they go back together.
+         */
+        logger.test("Pipelined requests are answered in order, together"); {
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "first", r -> Response.htmlOk("first"));
+            wf.registerPath(GET, "second", r -> Response.htmlOk("second"));
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            fakeSocketWrapper.bais = new ByteArrayInputStream((
+                    "GET /first HTTP/1.1\r\n\r\n" +
+                    "GET /second HTTP/1.1\r\n\r\n" +
+                    "GET /first HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            wf.makePrimaryHttpHandler().accept(fakeSocketWrapper);
+            assertEquals(fakeSocketWrapper.sendCount, 1);
+            String sent = fakeSocketWrapper.baos.toString(StandardCharsets.UTF_8);
+            assertTrue(sent.indexOf("\r\n\r\nfirst") < sent.indexOf("\r\n\r\nsecond"));
+            assertTrue(sent.endsWith("\r\n\r\nfirst"));
+
+            try (Server primaryServer = webEngine.startServer(es, wf.makePrimaryHttpHandler())) {
+                try (var client = webEngine.startClient(primaryServer)) {
+                    InputStream is = client.getInputStream();
+                    client.send("GET /first HTTP/1.1\r\n\r\nGET /second HTTP/1.1\r\n\r\nGET /first HTTP/1.1\r\n\r\n");
+                    for (String expected : List.of("first", "second", "first")) {
+                        assertEquals(StatusLine.extractStatusLine(inputStreamUtils.readLine(is)).rawValue(), "HTTP/1.1 200 OK");
+                        Headers hi = Headers.make(context, inputStreamUtils).extractHeaderInformation(is);
+                        assertEquals(readBody(is, hi.contentLength()), expected);
+                    }
+                }
+            }
+        }
+
+        /*
+         * HTTP/2 compresses headers with HPACK.  These are examples from
+         * its specification, RFC 7541, appendix C - first without Huffman
+         * coding, then a run of requests with it, where the later requests
+         * refer back to headers the earlier ones added to the dynamic table.
+         */
+        logger.test("HPACK decodes the examples from its specification"); {
+            var decoder = new Hpack.Decoder(4096, 10_000);
+            assertEquals(decoder.decode(HexFormat.of().parseHex("828684410f7777772e6578616d706c652e636f6d")), List.of(
+                    new Hpack.HeaderField(":method", "GET"),
+                    new Hpack.HeaderField(":scheme", "http"),
+                    new Hpack.HeaderField(":path", "/"),
+                    new Hpack.HeaderField(":authority", "www.example.com")));
+
+            decoder = new Hpack.Decoder(4096, 10_000);
+            assertEquals(decoder.decode(HexFormat.of().parseHex("828684418cf1e3c2e5f23a6ba0ab90f4ff")), List.of(
+                    new Hpack.HeaderField(":method", "GET"),
+                    new Hpack.HeaderField(":scheme", "http"),
+                    new Hpack.HeaderField(":path", "/"),
+                    new Hpack.HeaderField(":authority", "www.example.com")));
+            assertEquals(decoder.decode(HexFormat.of().parseHex("828684be5886a8eb10649cbf")), List.of(
+                    new Hpack.HeaderField(":method", "GET"),
+                    new Hpack.HeaderField(":scheme", "http"),
+                    new Hpack.HeaderField(":path", "/"),
+                    new Hpack.HeaderField(":authority", "www.example.com"),
+                    new Hpack.HeaderField("cache-control", "no-cache")));
+            assertEquals(decoder.decode(HexFormat.of().parseHex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")), List.of(
+                    new Hpack.HeaderField(":method", "GET"),
+                    new Hpack.HeaderField(":scheme", "https"),
+                    new Hpack.HeaderField(":path", "/index.html"),
+                    new Hpack.HeaderField(":authority", "www.example.com"),
+                    new Hpack.HeaderField("custom-key", "custom-value")));
+
+            // what we encode, we can decode
+            byte[] encoded = new Hpack.Encoder().header(":status", "200").header(":status", "302")
+                    .header("Content-Type", "text/plain").header("X-Long", "a".repeat(300)).finish();
+            assertEquals(new Hpack.Decoder(4096, 10_000).decode(encoded), List.of(
+                    new Hpack.HeaderField(":status", "200"),
+                    new Hpack.HeaderField(":status", "302"),
+                    new Hpack.HeaderField("content-type", "text/plain"),
+                    new Hpack.HeaderField("x-long", "a".repeat(300))));
+
+            // a block that decodes to more than allowed is refused
+            var smallDecoder = new Hpack.Decoder(4096, 100);
+            assertThrows(ParsingException.class, () -> smallDecoder.decode(encoded));
+        }
+
+        /*
+         * A client that agrees to HTTP/2 sends a preface and then frames.  We
+         * reply with our settings, and answer each request on its own stream.
+         * Here, the client says goodbye (GOAWAY) straight after asking, so the
+         * connection waits for the answer before finishing.
+         */
+        logger.test("An HTTP/2 request is answered on its stream"); {
+            var wf = new WebFramework(context, default_zdt);
+            var requestSeen = new AtomicReference<Request>();
+            wf.registerPath(GET, "hello", r -> {
+                requestSeen.set(r);
+                return Response.htmlOk("hello");
+            });
+            byte[] headerBlock = new Hpack.Encoder().header(":method", "GET").header(":scheme", "https")
+                    .header(":path", "/hello?name=alice").header(":authority", "localhost").header("accept", "text/html").finish();
+            var clientBytes = new ByteArrayOutputStream();
+            clientBytes.writeBytes(Http2Connection.CLIENT_PREFACE);
+            clientBytes.writeBytes(Http2Connection.frameHeader(0, Http2Connection.SETTINGS, 0, 0));
+            clientBytes.writeBytes(Http2Connection.frameHeader(headerBlock.length, Http2Connection.HEADERS, Http2Connection.END_HEADERS | Http2Connection.END_STREAM, 1));
+            clientBytes.writeBytes(headerBlock);
+            clientBytes.writeBytes(Http2Connection.frameHeader(8, Http2Connection.GOAWAY, 0, 0));
+            clientBytes.writeBytes(new byte[8]);
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            fakeSocketWrapper.applicationProtocol = "h2";
+            fakeSocketWrapper.bais = new ByteArrayInputStream(clientBytes.toByteArray());
+
+            wf.makePrimaryHttpHandler().accept(fakeSocketWrapper);
+
+            assertEquals(requestSeen.get().startLine().getVersion(), HttpVersion.TWO);
+            assertEquals(requestSeen.get().startLine().queryString().get("name"), "alice");
+            assertEquals(requestSeen.get().headers().valueByKey("host"), List.of("localhost"));
+            // our settings, then the acknowledgement of theirs, then the response
+            var frames = new ByteArrayInputStream(fakeSocketWrapper.baos.toByteArray());
+            byte[] frameHeader = frames.readNBytes(9);
+            assertEquals((int) frameHeader[3], Http2Connection.SETTINGS);
+            frames.skipNBytes(((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff));
+            frameHeader = frames.readNBytes(9);
+            assertEquals((int) frameHeader[3], Http2Connection.SETTINGS);
+            assertEquals((int) frameHeader[4], Http2Connection.ACK);
+            frameHeader = frames.readNBytes(9);
+            assertEquals((int) frameHeader[3], Http2Connection.HEADERS);
+            assertEquals(Http2Connection.readInt(frameHeader, 5), 1);
+            List<Hpack.HeaderField> responseHeaders = new Hpack.Decoder(4096, 10_000).decode(frames.readNBytes(((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff)));
+            assertEquals(responseHeaders.get(0), new Hpack.HeaderField(":status", "200"));
+            assertTrue(responseHeaders.contains(new Hpack.HeaderField("content-length", "5")));
+            frameHeader = frames.readNBytes(9);
+            assertEquals((int) frameHeader[3], Http2Connection.DATA);
+            assertEquals((int) frameHeader[4], Http2Connection.END_STREAM);
+            assertEquals(new String(frames.readNBytes(frameHeader[2]), StandardCharsets.UTF_8), "hello");
+            assertEquals(frames.available(), 0);
+        }
+
+        /*
+         * A stream the client resets still counts against the limit on streams
+         * at once until we're done working on it, so a client can't open and
+         * reset streams to pile up more work than the limit allows.  Here the
+         * work is never run, as though every worker were still busy with it.
+         */
+        logger.test("HTTP/2 streams reset by the client count until their work is done"); {
+            var wf = new WebFramework(context, default_zdt);
+            byte[] headerBlock = new Hpack.Encoder().header(":method", "GET").header(":scheme", "https")
+                    .header(":path", "/hello").header(":authority", "localhost").finish();
+            var clientBytes = new ByteArrayOutputStream();
+            clientBytes.writeBytes(Http2Connection.CLIENT_PREFACE);
+            clientBytes.writeBytes(Http2Connection.frameHeader(0, Http2Connection.SETTINGS, 0, 0));
+            for (int streamId = 1; streamId <= 201; streamId += 2) {
+                clientBytes.writeBytes(Http2Connection.frameHeader(headerBlock.length, Http2Connection.HEADERS, Http2Connection.END_HEADERS | Http2Connection.END_STREAM, streamId));
+                clientBytes.writeBytes(headerBlock);
+                clientBytes.writeBytes(Http2Connection.frameHeader(4, Http2Connection.RST_STREAM, 0, streamId));
+                clientBytes.writeBytes(Http2Connection.intBytes(Http2Connection.CANCEL));
+            }
+            var submittedWork = new ArrayList<Runnable>();
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            fakeSocketWrapper.applicationProtocol = "h2";
+            fakeSocketWrapper.submitWorkAction = work -> submittedWork.add(work);
+            fakeSocketWrapper.bais = new ByteArrayInputStream(clientBytes.toByteArray());
+
+            wf.makePrimaryHttpHandler().accept(fakeSocketWrapper);
+
+            // the first hundred are being worked on, and the next is refused
+            assertEquals(submittedWork.size(), 100);
+            var frames = new ByteArrayInputStream(fakeSocketWrapper.baos.toByteArray());
+            byte[] frameHeader = frames.readNBytes(9);
+            frames.skipNBytes(((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff));
+            frameHeader = frames.readNBytes(9);
+            assertEquals((int) frameHeader[4], Http2Connection.ACK);
+            frameHeader = frames.readNBytes(9);
+            assertEquals((int) frameHeader[3], Http2Connection.RST_STREAM);
+            assertEquals(Http2Connection.readInt(frameHeader, 5), 201);
+            assertEquals(Http2Connection.readInt(frames.readNBytes(4), 0), Http2Connection.REFUSED_STREAM);
+            assertEquals(frames.available(), 0);
+        }
+
+        /*
+         * When the server has no worker to spare, a stream is refused, and the
+         * client may try it again.  A client that keeps trying regardless is
+         * told to calm down, and the connection ends.
+         */
+        logger.test("HTTP/2 streams are refused when there is no worker for them"); {
+            var wf = new WebFramework(context, default_zdt);
+            byte[] headerBlock = new Hpack.Encoder().header(":method", "GET").header(":scheme", "https")
+                    .header(":path", "/hello").header(":authority", "localhost").finish();
+            var clientBytes = new ByteArrayOutputStream();
+            clientBytes.writeBytes(Http2Connection.CLIENT_PREFACE);
+            clientBytes.writeBytes(Http2Connection.frameHeader(0, Http2Connection.SETTINGS, 0, 0));
+            for (int streamId = 1; streamId <= 203; streamId += 2) {
+                clientBytes.writeBytes(Http2Connection.frameHeader(headerBlock.length, Http2Connection.HEADERS, Http2Connection.END_HEADERS | Http2Connection.END_STREAM, streamId));
+                clientBytes.writeBytes(headerBlock);
+            }
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            fakeSocketWrapper.applicationProtocol = "h2";
+            fakeSocketWrapper.submitWorkAction = work -> false;
+            fakeSocketWrapper.bais = new ByteArrayInputStream(clientBytes.toByteArray());
+
+            wf.makePrimaryHttpHandler().accept(fakeSocketWrapper);
+
+            var frames = new ByteArrayInputStream(fakeSocketWrapper.baos.toByteArray());
+            byte[] frameHeader = frames.readNBytes(9);
+            frames.skipNBytes(((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff));
+            frames.skipNBytes(9);
+            for (int streamId = 1; streamId <= 199; streamId += 2) {
+                frameHeader = frames.readNBytes(9);
+                assertEquals((int) frameHeader[3], Http2Connection.RST_STREAM);
+                assertEquals(Http2Connection.readInt(frameHeader, 5), streamId);
+                assertEquals(Http2Connection.readInt(frames.readNBytes(4), 0), Http2Connection.REFUSED_STREAM);
+            }
+            frameHeader = frames.readNBytes(9);
+            assertEquals((int) frameHeader[3], Http2Connection.GOAWAY);
+            byte[] goAway = frames.readNBytes(8);
+            assertEquals(Http2Connection.readInt(goAway, 4), Http2Connection.ENHANCE_YOUR_CALM);
+            assertEquals(frames.available(), 0);
+        }
+
+        /*
+         * The request bodies held for a connection are limited, all together.
+         * As they near the limit, we stop giving the client more window, so
+         * that it waits.  A client that goes past it anyway has its stream
+         * refused.  Here the work is never run, so the bodies are never let go.
+         */
+        logger.test("HTTP/2 request bodies held for a connection are limited"); {
+            var wf = new WebFramework(context, default_zdt);
+            int maxReadSize = context.getConstants().MAX_READ_SIZE_BYTES;
+            long maxBufferedBodyBytes = 2L * maxReadSize;
+            byte[] headerBlock = new Hpack.Encoder().header(":method", "POST").header(":scheme", "https")
+                    .header(":path", "/upload").header(":authority", "localhost").finish();
+            byte[] chunk = new byte[Http2Connection.DEFAULT_MAX_FRAME_SIZE];
+            var clientBytes = new ByteArrayOutputStream();
+            clientBytes.writeBytes(Http2Connection.CLIENT_PREFACE);
+            clientBytes.writeBytes(Http2Connection.frameHeader(0, Http2Connection.SETTINGS, 0, 0));
+            // two bodies of the largest size allowed, which together reach the limit
+            for (int streamId = 1; streamId <= 3; streamId += 2) {
+                clientBytes.writeBytes(Http2Connection.frameHeader(headerBlock.length, Http2Connection.HEADERS, Http2Connection.END_HEADERS, streamId));
+                clientBytes.writeBytes(headerBlock);
+                for (int sent = 0; sent < maxReadSize; sent += chunk.length) {
+                    int length = Math.min(chunk.length, maxReadSize - sent);
+                    int flags = sent + length == maxReadSize ? Http2Connection.END_STREAM : 0;
+                    clientBytes.writeBytes(Http2Connection.frameHeader(length, Http2Connection.DATA, flags, streamId));
+                    clientBytes.write(chunk, 0, length);
+                }
+            }
+            // and a third, which has no room
+            clientBytes.writeBytes(Http2Connection.frameHeader(headerBlock.length, Http2Connection.HEADERS, Http2Connection.END_HEADERS, 5));
+            clientBytes.writeBytes(headerBlock);
+            clientBytes.writeBytes(Http2Connection.frameHeader(1, Http2Connection.DATA, 0, 5));
+            clientBytes.write(0);
+            var submittedWork = new ArrayList<Runnable>();
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            fakeSocketWrapper.applicationProtocol = "h2";
+            fakeSocketWrapper.submitWorkAction = work -> submittedWork.add(work);
+            fakeSocketWrapper.bais = new ByteArrayInputStream(clientBytes.toByteArray());
+
+            wf.makePrimaryHttpHandler().accept(fakeSocketWrapper);
+
+            assertEquals(submittedWork.size(), 2);
+            long connectionWindowReturned = 0;
+            int refusedStream = 0;
+            var frames = new ByteArrayInputStream(fakeSocketWrapper.baos.toByteArray());
+            while (frames.available() > 0) {
+                byte[] frameHeader = frames.readNBytes(9);
+                byte[] payload = frames.readNBytes(((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff));
+                int streamId = Http2Connection.readInt(frameHeader, 5);
+                if (frameHeader[3] == Http2Connection.WINDOW_UPDATE && streamId == 0) {
+                    connectionWindowReturned += Http2Connection.readInt(payload, 0);
+                }
+                if (frameHeader[3] == Http2Connection.RST_STREAM) {
+                    assertEquals(Http2Connection.readInt(payload, 0), Http2Connection.REFUSED_STREAM);
+                    refusedStream = streamId;
+                }
+            }
+            // the client was never invited to send more than the limit allows
+            assertTrue(connectionWindowReturned + Http2Connection.DEFAULT_WINDOW_SIZE <= maxBufferedBodyBytes + Http2Connection.DEFAULT_WINDOW_SIZE / 2,
+                    "window returned: " + connectionWindowReturned);
+            assertEquals(refusedStream, 5);
+        }
+
+        /*
+         * A real HTTP/2 client - the one built into Java - agrees to HTTP/2
+         * with our TLS server, and sends its requests all at once on a
+         * single connection.
+         */
+        logger.test("A client can use HTTP/2 with our secure server"); {
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "hello", r -> Response.htmlOk("hello " + r.startLine().queryString().get("id")));
+            wf.registerPath(POST, "greet", r -> Response.htmlOk("hi " + r.body().asString("name")));
+            wf.registerPath(GET, "large", r -> Response.htmlOk("a".repeat(200_000)));
+            wf.registerPath(GET, "streamed", r -> Response.streaming(_200_OK, Map.of("Content-Type", "text/plain"), out -> {
+                for (int i = 0; i < 3; i++) out.write(("part " + i + ";").getBytes(StandardCharsets.UTF_8));
+            }));
+            var serverSocket = webEngine.createSslSocketWithSpecificKeystore(
+                    context.getConstants().SECURE_SERVER_PORT, WebEngine.class.getClassLoader().getResource("certs/keystore"), "passphrase", true);
+            try (var secureServer = new Server(serverSocket, context, "https server", null)) {
+                secureServer.start(es, wf.makePrimaryHttpHandler());
+                var httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).sslContext(trustEverythingSslContext()).build();
+                String baseUrl = "https://localhost:" + context.getConstants().SECURE_SERVER_PORT + "/";
+
+                // the first request sets up the connection, and the rest share it
+                var first = httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "hello?id=0")).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(first.version(), HttpClient.Version.HTTP_2);
+                assertEquals(first.body(), "hello 0");
+
+                var pending = new ArrayList<CompletableFuture<HttpResponse<String>>>();
+                for (int i = 1; i <= 10; i++) {
+                    pending.add(httpClient.sendAsync(HttpRequest.newBuilder(URI.create(baseUrl + "hello?id=" + i)).build(), HttpResponse.BodyHandlers.ofString()));
+                }
+                for (int i = 1; i <= 10; i++) {
+                    assertEquals(pending.get(i - 1).join().body(), "hello " + i);
+                }
+
+                var posted = httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "greet"))
+                        .header("Content-Type", "application/x-www-form-urlencoded")
+                        .POST(HttpRequest.BodyPublishers.ofString("name=alice")).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(posted.body(), "hi alice");
+
+                var large = httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "large")).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(large.body().length(), 200_000);
+
+                var streamed = httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "streamed")).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(streamed.body(), "part 0;part 1;part 2;");
+                assertTrue(streamed.headers().firstValue("transfer-encoding").isEmpty());
+
+                var notFound = httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "nothing_here")).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(notFound.statusCode(), 404);
+            }
+        }
+
+        /*
+         * A full TLS handshake is expensive.  A client that comes back
+         * can resume its earlier session with a cheaper one, and the
+         * server keeps count of which kind each handshake was.
+         */
+        logger.test("A client coming back resumes its TLS session"); {
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "hello", r -> Response.htmlOk("hello"));
+            var serverSocket = webEngine.createSslSocketWithSpecificKeystore(
+                    context.getConstants().SECURE_SERVER_PORT, WebEngine.class.getClassLoader().getResource("certs/keystore"), "passphrase", false);
+            try (var secureServer = new Server(serverSocket, context, "https server", null)) {
+                secureServer.start(es, wf.makePrimaryHttpHandler());
+                var socketFactory = trustEverythingSslContext().getSocketFactory();
+                for (int i = 0; i < 2; i++) {
+                    try (var socket = socketFactory.createSocket("localhost", secureServer.getPort())) {
+                        socket.getOutputStream().write("GET /hello HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                        String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                        assertTrue(response.endsWith("\r\n\r\nhello"));
+                    }
+                }
+                var statistics = secureServer.getHandshakeStatistics();
+                assertEquals(statistics.full(), 1L);
+                assertEquals(statistics.resumed(), 1L);
+                assertEquals(statistics.failed(), 0L);
+                assertTrue(statistics.fullNanos() > 0);
+            }
+        }
+
+        /*
+         * When every worker is busy and the queue is full, or a single
+         * client already has its share of workers, we turn connections
+         * away rather than taking on more than we can handle.
+         */
+        logger.test("A bounded worker pool sheds load when it is full"); {
+            var workerPool = new WorkerPool(es, 1, 1, 2);
+            var isReleased = new java.util.concurrent.CountDownLatch(1);
+            var hasStarted = new java.util.concurrent.CountDownLatch(1);
+            var finished = new java.util.concurrent.CountDownLatch(2);
+            Runnable slowWork = () -> {
+                hasStarted.countDown();
+                try {
+                    isReleased.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            };
+            try {
+                assertTrue(workerPool.submit("1.2.3.4", slowWork));
+                hasStarted.await();
+                // waits in the queue
+                assertTrue(workerPool.submit("1.2.3.4", slowWork));
+                // this address already has two
+                assertFalse(workerPool.submit("1.2.3.4", slowWork));
+                // the one worker is busy, and the queue is full
+                assertFalse(workerPool.submit("5.6.7.8", slowWork));
+
+                var statistics = workerPool.getStatistics();
+                assertEquals(statistics.admitted(), 2L);
+                assertEquals(statistics.shedForAddress(), 1L);
+                assertEquals(statistics.shedWhenFull(), 1L);
+                assertEquals(statistics.queueDepth(), 1);
+                assertEquals(statistics.peakQueueDepth(), 1);
+                assertEquals(statistics.activeWorkers(), 1);
+
+                isReleased.countDown();
+                finished.await();
+                MyThread.sleep(50);
+                assertTrue(workerPool.submit("1.2.3.4", () -> {}));
+            } finally {
+                workerPool.close();
+            }
+        }
+
+        /*
+         * An HTTP/2 connection's reader holds its worker for as long as the
+         * connection is open.  Its requests are answered by workers of their
+         * own, so even with a single worker for connections, and a single
+         * connection allowed for the address, the requests are answered.
+         */
+        logger.test("HTTP/2 requests don't wait on the workers reading connections"); {
+            var workerPool = new WorkerPool(es, 1, 1, 1);
+            var wf = new WebFramework(context, default_zdt);
+            wf.registerPath(GET, "hello", r -> Response.htmlOk("hello"));
+            byte[] headerBlock = new Hpack.Encoder().header(":method", "GET").header(":scheme", "https")
+                    .header(":path", "/hello").header(":authority", "localhost").finish();
+            var clientBytes = new ByteArrayOutputStream();
+            clientBytes.writeBytes(Http2Connection.CLIENT_PREFACE);
+            clientBytes.writeBytes(Http2Connection.frameHeader(0, Http2Connection.SETTINGS, 0, 0));
+            clientBytes.writeBytes(Http2Connection.frameHeader(headerBlock.length, Http2Connection.HEADERS, Http2Connection.END_HEADERS | Http2Connection.END_STREAM, 1));
+            clientBytes.writeBytes(headerBlock);
+            clientBytes.writeBytes(Http2Connection.frameHeader(8, Http2Connection.GOAWAY, 0, 0));
+            clientBytes.writeBytes(new byte[8]);
+            var fakeSocketWrapper = new FakeSocketWrapper();
+            fakeSocketWrapper.applicationProtocol = "h2";
+            fakeSocketWrapper.submitWorkAction = workerPool::submitStream;
+            fakeSocketWrapper.bais = new ByteArrayInputStream(clientBytes.toByteArray());
+            var finished = new java.util.concurrent.CountDownLatch(1);
+            try {
+                assertTrue(workerPool.submit("1.2.3.4", () -> {
+                    try {
+                        wf.makePrimaryHttpHandler().accept(fakeSocketWrapper);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    } finally {
+                        finished.countDown();
+                    }
+                }));
+                assertTrue(finished.await(10, java.util.concurrent.TimeUnit.SECONDS), "the connection never finished");
+                assertTrue(fakeSocketWrapper.baos.toString(StandardCharsets.UTF_8).endsWith("hello"));
+                assertEquals(workerPool.getStatistics().streamsAdmitted(), 1L);
+            } finally {
+                workerPool.close();
+            }
+        }
+
         logger.test("Headers test - multiple headers"); {
             Headers headers = new Headers(List.of("foo: a", "foo: b"), context);
             assertEqualsDisregardOrder(headers.valueByKey("foo"), List.of("a","b"));
         }
 
+        logger.test("Headers are looked up without regard to case, however the client wrote them"); {
+            Headers headers = new Headers(List.of(
+                    "CONTENT-LENGTH:42",
+                    "content-type: text/plain",
+                    "Connection: Keep-Alive",
+                    "X-Content-Type-Options: nosniff",
+                    "Cookie: a=1",
+                    "cookie: b=2"), context);
+            assertEquals(headers.contentLength(), 42);
+            assertEquals(headers.contentType(), "content-type: text/plain");
+            assertTrue(headers.hasKeepAlive());
+            assertFalse(headers.hasConnectionClose());
+            assertEquals(headers.valueByKey("Cookie"), List.of("a=1", "b=2"));
+            assertEquals(headers.valueByKey("x-content-type-options"), List.of("nosniff"));
+
+            Headers noHeaders = new Headers(List.of(), context);
+            assertEquals(noHeaders.contentLength(), -1);
+            assertEquals(noHeaders.contentType(), "");
+            assertThrows(InvariantException.class, () -> new Headers(List.of("Content-Length: lots"), context).contentLength());
+            assertThrows(InvariantException.class, () -> new Headers(List.of("Content-Type: a", "Content-Type: b"), context).contentType());
+        }
+
         /*
         If we just stayed with path plus query string....  But no, it's boring, I guess, to
         have consistency and safety, so people decided we should have paths
         with a pattern like /my/path/{id}.  unnecessary.  stupid.  whatever,
         it's the world I have to live in.  It's a bit complicated of a test, so I'll explain as I go.
          */
+        logger.test("Headers can tell us which content encodings a client accepts"); {
+            var headers = new Headers(List.of("Accept-Encoding: deflate, gzip;q=1.0, br;q=0"), context);
+            assertTrue(headers.acceptsEncoding("gzip"));
+            assertTrue(headers.acceptsEncoding("deflate"));
+            assertFalse(headers.acceptsEncoding("br"));
+            assertFalse(headers.acceptsEncoding("zstd"));
+            assertFalse(new Headers(List.of(), context).acceptsEncoding("gzip"));
+            assertTrue(new Headers(List.of("Accept-Encoding: *"), context).acceptsEncoding("gzip"));
+            assertFalse(new Headers(List.of("Accept-Encoding: *, gzip;q=0"), context).acceptsEncoding("gzip"));
+        }
+
+        logger.test("An endpoint can have its responses compressed"); {
+            var webFramework = new WebFramework(context);
+            String page = "<p>a row in a long table</p>\n".repeat(200);
+            var handler = webFramework.compressing(request -> Response.htmlOk(page));
+            var startLine = StartLine.EMPTY(context).extractStartLine("GET /report HTTP/1.1");
+
+            var gzipRequest = new Request(new Headers(List.of("Accept-Encoding: gzip, deflate"), context), startLine, Body.EMPTY(context), "");
+            Response compressed = handler.apply(gzipRequest);
+            assertEquals(compressed.extraHeaders().get("Content-Encoding"), "gzip");
+            assertEquals(compressed.extraHeaders().get("Vary"), "Accept-Encoding");
+            assertTrue(compressed.body().length < page.length() / 10);
+            try (var gzipInputStream = new java.util.zip.GZIPInputStream(new ByteArrayInputStream(compressed.body()))) {
+                assertEquals(new String(gzipInputStream.readAllBytes(), StandardCharsets.UTF_8), page);
+            }
+            // the Deflater goes back in the pool, and is good to use again
+            assertEqualByteArray(handler.apply(gzipRequest).body(), compressed.body());
+
+            var plainRequest = new Request(new Headers(List.of(), context), startLine, Body.EMPTY(context), "");
+            Response uncompressed = handler.apply(plainRequest);
+            assertTrue(uncompressed.extraHeaders().get("Content-Encoding") == null);
+            assertEquals(uncompressed.extraHeaders().get("Vary"), "Accept-Encoding");
+            assertEquals(StringUtils.byteArrayToString(uncompressed.body()), page);
+
+            // small bodies aren't worth the trouble
+            var small = webFramework.compressing(request -> Response.htmlOk("hello")).apply(gzipRequest);
+            assertEquals(StringUtils.byteArrayToString(small.body()), "hello");
+
+            // a Vary or ETag the endpoint set, in whatever case, is kept and added to
+            var withOwnHeaders = webFramework.compressing(request -> new Response(_200_OK, page,
+                    Map.of("content-type", "text/html; charset=UTF-8", "vary", "Cookie", "etag", "\"abc\""))).apply(gzipRequest);
+            assertEquals(withOwnHeaders.extraHeaders().get("vary"), "Cookie, Accept-Encoding");
+            assertEquals(withOwnHeaders.extraHeaders().get("etag"), "\"abc-gzip\"");
+            assertTrue(withOwnHeaders.extraHeaders().get("Vary") == null);
+            assertTrue(withOwnHeaders.extraHeaders().get("ETag") == null);
+        }
+
+        logger.test("A registered path may have parameters"); {
+            var webFramework = new WebFramework(context);
+            webFramework.registerPath(GET, "photo/{id}", request -> Response.htmlOk("photo " + request.pathParameters().get("id")));
+            webFramework.registerPath(GET, "photo/new", request -> Response.htmlOk("new photo"));
+            webFramework.registerPath(GET, "album/{album}/photo/{id}", request ->
+                    Response.htmlOk(request.pathParameters().get("album") + " has " + request.pathParameters().get("id")));
+            Function<String, String> respondTo = startLineString -> {
+                var startLine = StartLine.EMPTY(context).extractStartLine(startLineString);
+                var endpoint = webFramework.findEndpointForThisStartline(startLine);
+                if (endpoint == null) return null;
+                var request = new Request(new Headers(List.of(), context), startLine, Body.EMPTY(context), "");
+                return StringUtils.byteArrayToString(endpoint.apply(request).body());
+            };
+
+            // the value keeps its case, though the rest of the path needn't match it
+            assertEquals(respondTo.apply("GET /photo/AbC123 HTTP/1.1"), "photo AbC123");
+            assertEquals(respondTo.apply("GET /PHOTO/abc HTTP/1.1"), "photo abc");
+            // spelled out wins, but only for exactly that
+            assertEquals(respondTo.apply("GET /photo/new HTTP/1.1"), "new photo");
+            assertEquals(respondTo.apply("GET /photo/newer HTTP/1.1"), "photo newer");
+            assertEquals(respondTo.apply("GET /album/summer/photo/7 HTTP/1.1"), "summer has 7");
+            // a parameter is a whole segment, and isn't empty
+            assertTrue(respondTo.apply("GET /photo/ HTTP/1.1") == null);
+            assertTrue(respondTo.apply("GET /photo/a/b HTTP/1.1") == null);
+
+            // an endpoint without parameters gets none
+            webFramework.registerPath(GET, "plain", request -> Response.htmlOk("parameters: " + request.pathParameters()));
+            assertEquals(respondTo.apply("GET /plain HTTP/1.1"), "parameters: {}");
+
+            assertThrows(InvariantException.class, () -> webFramework.registerPath(GET, "photo/{name}", request -> Response.htmlOk("")));
+            assertThrows(InvariantException.class, () -> webFramework.registerPath(GET, "photo-{id}", request -> Response.htmlOk("")));
+            assertThrows(InvariantException.class, () -> webFramework.registerPartialPath(GET, "photo/{id}", request -> Response.htmlOk("")));
+        }
+
         logger.test("Matching a path in an insane world"); {
             // The startline causing us heartache
             String startLineString = "GET /.well-known/acme-challenge/HGr8U1IeTW4kY_Z6UIyaakzOkyQgPr_7ArlLgtZE8SX HTTP/1.1";
@@ -565,6 +1429,85 @@ public class WebTests {
             }
         }
 
+        /*
+        With the selector-based server, an idle keep-alive connection is handed
+        back to the selector between requests, rather than holding a thread.
+        The client shouldn't be able to tell the difference.
+         */
+        logger.test("The selector-based server handles a keep-alive conversation"); {
+            final Function<StartLine, Function<Request, Response>> testHandler = (sl -> r -> Response.htmlOk("looking good!"));
+
+            WebFramework wf = new WebFramework(context, default_zdt);
+            try (Server primaryServer = webEngine.startSelectorServer(es, wf.makePrimaryHttpHandler(testHandler))) {
+                try (var client = webEngine.startClient(primaryServer)) {
+                    InputStream is = client.getInputStream();
+                    Headers headers = Headers.make(context, inputStreamUtils);
+
+                    // the request head arrives in two pieces.  Nothing happens until it's all there.
+                    client.sendHttpLine("GET /some_endpoint HTTP/1.1");
+                    MyThread.sleep(20);
+                    client.sendHttpLine("Host: localhost:8080");
+                    client.sendHttpLine("");
+
+                    StatusLine statusLine1 = StatusLine.extractStatusLine(inputStreamUtils.readLine(is));
+                    assertEquals(statusLine1.status(), _200_OK);
+                    Headers headers1 = headers.extractHeaderInformation(is);
+                    assertEquals(readBody(is, headers1.contentLength()), "looking good!");
+
+                    // give the worker a moment to hand the socket back to the selector
+                    MyThread.sleep(20);
+                    assertTrue(logger.findFirstMessageThatContains("parked on the selector", 8).contains("parked on the selector"));
+
+                    // the same connection gets used for the next request
+                    client.sendHttpLine("GET /some_endpoint HTTP/1.1");
+                    client.sendHttpLine("Host: localhost:8080");
+                    client.sendHttpLine("Connection: close");
+                    client.sendHttpLine("");
+
+                    StatusLine statusLine2 = StatusLine.extractStatusLine(inputStreamUtils.readLine(is));
+                    assertEquals(statusLine2.status(), _200_OK);
+                    Headers headers2 = headers.extractHeaderInformation(is);
+                    assertEquals(readBody(is, headers2.contentLength()), "looking good!");
+                    assertTrue(headers2.valueByKey("keep-alive") == null);
+                }
+            }
+        }
+
+        /*
+         * A socket hands us whatever has arrived so far, which is often only part
+         * of a line.  Here we have a stream that never gives more than three bytes
+         * at a time, to make sure lines spanning several reads come out whole, and
+         * that the body can be read from the same buffer afterwards.
+         */
+        logger.test("A connection's buffered stream reads lines that span several reads"); {
+            byte[] request = "GET /foo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello".getBytes(StandardCharsets.UTF_8);
+            var trickle = new ByteArrayInputStream(request) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    return super.read(b, off, Math.min(len, 3));
+                }
+            };
+            var sis = new SocketInputStream(trickle);
+
+            assertEquals(inputStreamUtils.readLine(sis), "GET /foo HTTP/1.1");
+            assertEquals(inputStreamUtils.readLine(sis), "Host: localhost");
+            assertEquals(inputStreamUtils.readLine(sis), "Content-Length: 5");
+            assertEquals(inputStreamUtils.readLine(sis), "");
+            assertEquals(new String(inputStreamUtils.read(5, sis), StandardCharsets.UTF_8), "hello");
+            assertTrue(inputStreamUtils.readLine(sis) == null);
+        }
+
+        logger.test("A connection's buffered stream still limits the length of a line"); {
+            int max = context.getConstants().MAX_READ_LINE_SIZE_BYTES;
+            var sis = new SocketInputStream(new ByteArrayInputStream("a".repeat(max + 10).getBytes(StandardCharsets.UTF_8)));
+            assertEquals(inputStreamUtils.readLine(sis), "");
+            assertEquals(logger.findFirstMessageThatContains("in readLine", 8), "in readLine, client sent more bytes than allowed.  Current max: " + max);
+
+            // a line just under the limit is fine
+            var sis2 = new SocketInputStream(new ByteArrayInputStream(("b".repeat(max - 1) + "\n").getBytes(StandardCharsets.UTF_8)));
+            assertEquals(inputStreamUtils.readLine(sis2), "b".repeat(max - 1));
+        }
+
         /*
         Noticed a failure in this code, adjusting to be more robust
          */
@@ -614,6 +1557,28 @@ public class WebTests {
 
         }
 
+        logger.test("When several registered paths match, the longest wins"); {
+            var webFramework = new WebFramework(context, default_zdt);
+            Function<Request, Response> wellKnownHandler = request -> Response.htmlOk("well-known");
+            Function<Request, Response> acmeHandler = request -> Response.htmlOk("acme");
+            Function<Request, Response> exactHandler = request -> Response.htmlOk("exact");
+            Function<Request, Response> otherHandler = request -> Response.htmlOk("other");
+            webFramework.registerPartialPath(GET, ".well-known/acme-challenge", acmeHandler);
+            webFramework.registerPartialPath(GET, ".well-known", wellKnownHandler);
+            webFramework.registerPath(GET, ".well-known/acme", exactHandler);
+            webFramework.registerPath(GET, ".well-known/other", otherHandler);
+
+            Function<String, Function<Request, Response>> find = path ->
+                    webFramework.findEndpointForThisStartline(new StartLine(GET, new StartLine.PathDetails(path, "", Map.of()), ONE_DOT_ONE, "", context));
+            assertEquals(find.apply(".well-known/acme-challenge/HGr8U1IeTW4kY"), acmeHandler);
+            assertEquals(find.apply(".well-known/acme-challeng"), wellKnownHandler);
+            assertEquals(find.apply(".well-known/acme"), exactHandler);
+            assertEquals(find.apply(".well-known/other"), otherHandler);
+            assertEquals(find.apply(".well-known/othe"), wellKnownHandler);
+            assertEquals(find.apply(".well-known"), wellKnownHandler);
+            assertTrue(find.apply(".well-know") == null);
+        }
+
         logger.test("Make the queryString method more robust"); {
             // if pathDetails is null, we'll get an empty hashmap
             var startLine1 = new StartLine(GET, null, ONE_DOT_ONE, "", context);
@@ -724,4 +1689,25 @@ public class WebTests {
         return StringUtils.byteArrayToString(inputStreamUtils.read(length, is));
     }
 
+    /**
+     * Our test certificate is self-signed, and not for localhost, so
+     * the client must be told not to check it.
+     */
+    private static SSLContext trustEverythingSslContext() throws Exception {
+        var trustEverything = new X509ExtendedTrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+            public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+            public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+            public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        var sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[]{trustEverything}, null);
+        return sslContext;
+    }
+
 }